@@ -0,0 +1,631 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.apache.ant.dotnet;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.ant.dotnet.util.FileTimestamps;
+import org.apache.ant.dotnet.util.PlanMode;
+import org.apache.ant.dotnet.util.StateFiles;
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.RuntimeConfigurable;
+import org.apache.tools.ant.SubBuildListener;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+
+/**
+ * Remembers the inputs and outputs of the {@link Watchable} tasks of
+ * this library between builds, so a chain of tasks whose inputs
+ * haven't changed is skipped by a single check.
+ *
+ * <p>If the <code>ant.dotnet.graph</code> property is true, each
+ * task records the files it has read and written, together with
+ * their timestamps and the timestamps of the directories its
+ * filesets have scanned, once it has completed successfully.  The
+ * first task of a build that asks whether it is up to date reads the
+ * timestamps of all recorded files in one go, a task is skipped if
+ * none of its files has changed and all tasks that have created its
+ * inputs are skipped as well.  The decision is taken again after any
+ * task that hasn't been skipped has finished, as it may have
+ * rewritten an input of a later task.</p>
+ *
+ * <p>Tasks are identified by their name and configuration, changing
+ * an attribute or nested element makes the task run its own up to
+ * date check again.  Changes to referenced types are not seen.</p>
+ *
+ * @since .NET Antlib 1.2
+ */
+public class ArtifactGraph {
+
+    /**
+     * Name of the property that enables the graph.
+     */
+    public static final String PROPERTY = "ant.dotnet.graph";
+
+    private static final String FILE_NAME = "artifact-graph.properties";
+
+    private static final String BUILD_REFERENCE = "ant.dotnet.artifactgraph";
+
+    /**
+     * a file name no exclude pattern names explicitly, a directory
+     * whose contents are excluded excludes it
+     */
+    private static final String PROBE = "\u0000";
+
+    /**
+     * instances by absolute path of their state file, they only hold
+     * what is persisted - what happens during the build of a project
+     * is tracked by a {@link Build} stored as reference of the project
+     */
+    private static final Map INSTANCES = new HashMap();
+
+    private final File stateFile;
+
+    /**
+     * key to Node
+     */
+    private final Map nodes = new HashMap();
+
+    private boolean modified = false;
+
+    private ArtifactGraph(Project p, File stateFile) {
+        this.stateFile = stateFile;
+        Properties props = StateFiles.load(p, stateFile);
+        for (Iterator iter = props.entrySet().iterator(); iter.hasNext();) {
+            Map.Entry e = (Map.Entry) iter.next();
+            Node n = Node.parse((String) e.getKey(), (String) e.getValue());
+            if (n != null) {
+                nodes.put(n.key, n);
+            }
+        }
+    }
+
+    /**
+     * Whether the graph is enabled for the given project.
+     *
+     * <p>It is disabled in plan mode, which needs the tasks' own up
+     * to date checks.</p>
+     */
+    public static boolean isEnabled(Project p) {
+        return Project.toBoolean(p.getProperty(PROPERTY))
+            && !PlanMode.isEnabled(p);
+    }
+
+    /**
+     * Whether the task can be skipped as neither its files nor the
+     * inputs of the tasks creating them have changed since it last
+     * completed.
+     *
+     * @param task a task implementing {@link Watchable}
+     */
+    public static boolean isUpToDate(Task task) {
+        if (!(task instanceof Watchable) || !isEnabled(task.getProject())) {
+            return false;
+        }
+        return getBuild(task.getProject()).isUpToDate(task);
+    }
+
+    /**
+     * Records the files of a task that has completed successfully.
+     *
+     * @param task a task implementing {@link Watchable}
+     */
+    public static void record(Task task) {
+        if (!(task instanceof Watchable) || !isEnabled(task.getProject())) {
+            return;
+        }
+        getBuild(task.getProject()).record(task);
+    }
+
+    /**
+     * Tells the graph that a command of the task has failed without
+     * failing the build, the task is not recorded.
+     */
+    public static void commandFailed(Task task) {
+        if (isEnabled(task.getProject())) {
+            getBuild(task.getProject()).commandFailed(task);
+        }
+    }
+
+    private static ArtifactGraph getInstance(Project p) {
+        File f = StateFiles.getStateFile(p, FILE_NAME);
+        synchronized (INSTANCES) {
+            ArtifactGraph g = (ArtifactGraph) INSTANCES.get(f.getAbsolutePath());
+            if (g == null) {
+                g = new ArtifactGraph(p, f);
+                INSTANCES.put(f.getAbsolutePath(), g);
+            }
+            return g;
+        }
+    }
+
+    private static Build getBuild(Project p) {
+        synchronized (p) {
+            Build b = (Build) p.getReference(BUILD_REFERENCE);
+            if (b == null) {
+                b = new Build(p, getInstance(p));
+                p.addReference(BUILD_REFERENCE, b);
+                p.addBuildListener(b);
+            }
+            return b;
+        }
+    }
+
+    /**
+     * Reads the timestamps of all recorded files and decides which
+     * tasks are up to date.
+     *
+     * @return the keys of all tasks that are up to date
+     */
+    private synchronized Set check(Project p) {
+        List files = new ArrayList();
+        for (Iterator iter = nodes.values().iterator(); iter.hasNext();) {
+            Node n = (Node) iter.next();
+            for (int i = 0; i < n.files.length; i++) {
+                files.add(n.files[i]);
+            }
+        }
+        FileTimestamps timestamps = new FileTimestamps(p);
+        timestamps.readAll(files);
+
+        // output to the key of the task creating it
+        Map producers = new HashMap();
+        // key to Boolean, whether the task's own files are unchanged
+        Map unchanged = new HashMap();
+        for (Iterator iter = nodes.values().iterator(); iter.hasNext();) {
+            Node n = (Node) iter.next();
+            boolean same = true;
+            for (int i = 0; same && i < n.files.length; i++) {
+                same = timestamps.lastModified(n.files[i]) == n.timestamps[i];
+            }
+            unchanged.put(n.key, Boolean.valueOf(same));
+            for (int i = n.inputs; i < n.inputs + n.outputs; i++) {
+                producers.put(n.files[i], n.key);
+            }
+        }
+        Map verdicts = new HashMap();
+        Set upToDate = new LinkedHashSet();
+        for (Iterator iter = nodes.keySet().iterator(); iter.hasNext();) {
+            String key = (String) iter.next();
+            if (isUpToDate(key, unchanged, producers, verdicts)) {
+                upToDate.add(key);
+            }
+        }
+        return upToDate;
+    }
+
+    /**
+     * a task is up to date if its own files are unchanged and all
+     * tasks creating its inputs are up to date
+     */
+    private boolean isUpToDate(String key, Map unchanged, Map producers,
+                               Map verdicts) {
+        Boolean v = (Boolean) verdicts.get(key);
+        if (v != null) {
+            return v.booleanValue();
+        }
+        // a cycle means a task rewrites its own inputs
+        verdicts.put(key, Boolean.FALSE);
+        Node n = (Node) nodes.get(key);
+        boolean result = ((Boolean) unchanged.get(key)).booleanValue();
+        for (int i = 0; result && i < n.inputs; i++) {
+            String producer = (String) producers.get(n.files[i]);
+            result = producer == null
+                || isUpToDate(producer, unchanged, producers, verdicts);
+        }
+        verdicts.put(key, Boolean.valueOf(result));
+        return result;
+    }
+
+    /**
+     * Replaces the node of the same task and those of all other tasks
+     * that have created one of its outputs.
+     */
+    private synchronized void put(Node node) {
+        Set outputs = new HashSet();
+        for (int i = node.inputs; i < node.inputs + node.outputs; i++) {
+            outputs.add(node.files[i]);
+        }
+        for (Iterator iter = nodes.values().iterator(); iter.hasNext();) {
+            Node n = (Node) iter.next();
+            for (int i = n.inputs; i < n.inputs + n.outputs; i++) {
+                if (outputs.contains(n.files[i])) {
+                    iter.remove();
+                    break;
+                }
+            }
+        }
+        nodes.put(node.key, node);
+        modified = true;
+    }
+
+    private synchronized void save(Project p) {
+        if (!modified) {
+            return;
+        }
+        Properties props = new Properties();
+        for (Iterator iter = nodes.values().iterator(); iter.hasNext();) {
+            Node n = (Node) iter.next();
+            props.setProperty(n.key, n.toString());
+        }
+        StateFiles.store(p, props, stateFile,
+                         "inputs and outputs of .NET Antlib tasks");
+        modified = false;
+    }
+
+    /**
+     * The key of a task, made of its name and a hash of its
+     * configuration with all properties expanded.
+     *
+     * @return null if the task hasn't been configured from a build
+     * file
+     */
+    private static String getKey(Task task) {
+        RuntimeConfigurable wrapper = task.getRuntimeConfigurableWrapper();
+        if (wrapper == null) {
+            return null;
+        }
+        StringBuffer sb = new StringBuffer();
+        sb.append(task.getProject().getBaseDir()).append('\n');
+        appendConfiguration(task.getProject(), wrapper, sb);
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            byte[] digest = md5.digest(sb.toString().getBytes("UTF-8"));
+            StringBuffer key = new StringBuffer(task.getTaskName()).append('#');
+            for (int i = 0; i < digest.length; i++) {
+                key.append(Character.forDigit((digest[i] >> 4) & 0xf, 16))
+                    .append(Character.forDigit(digest[i] & 0xf, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new BuildException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new BuildException(e);
+        }
+    }
+
+    private static void appendConfiguration(Project p, RuntimeConfigurable rc,
+                                            StringBuffer sb) {
+        sb.append('<').append(rc.getElementTag());
+        Map attributes = new TreeMap(rc.getAttributeMap());
+        for (Iterator iter = attributes.entrySet().iterator(); iter.hasNext();) {
+            Map.Entry e = (Map.Entry) iter.next();
+            sb.append(' ').append(e.getKey()).append("=\"")
+                .append(p.replaceProperties(String.valueOf(e.getValue())))
+                .append('"');
+        }
+        sb.append('>');
+        sb.append(p.replaceProperties(rc.getText().toString().trim()));
+        for (Enumeration e = rc.getChildren(); e.hasMoreElements();) {
+            appendConfiguration(p, (RuntimeConfigurable) e.nextElement(), sb);
+        }
+        sb.append("</>");
+    }
+
+    /**
+     * Adds the directories a fileset scans - all directories below
+     * its base directory that may hold included files.
+     */
+    private static void addDirectories(Project p, FileSet fs,
+                                       Collection dirs) {
+        File base = fs.getDir(p);
+        boolean cs = fs.isCaseSensitive();
+        String[] includes = fs.mergeIncludes(p);
+        if (includes == null || includes.length == 0) {
+            includes = new String[] {"**"};
+        }
+        for (int i = 0; i < includes.length; i++) {
+            includes[i] = normalize(includes[i]);
+        }
+        List excludes = new ArrayList();
+        String[] ex = fs.mergeExcludes(p);
+        for (int i = 0; ex != null && i < ex.length; i++) {
+            excludes.add(normalize(ex[i]));
+        }
+        if (fs.getDefaultexcludes()) {
+            String[] d = DirectoryScanner.getDefaultExcludes();
+            for (int i = 0; i < d.length; i++) {
+                excludes.add(normalize(d[i]));
+            }
+        }
+        addDirectories(base, "", includes, excludes, cs, dirs);
+    }
+
+    private static void addDirectories(File dir, String relative,
+                                       String[] includes, List excludes,
+                                       boolean cs, Collection dirs) {
+        dirs.add(dir.getAbsoluteFile());
+        File[] children = dir.listFiles();
+        for (int i = 0; children != null && i < children.length; i++) {
+            if (!children[i].isDirectory()) {
+                continue;
+            }
+            String path = relative.length() == 0 ? children[i].getName()
+                : relative + File.separator + children[i].getName();
+            boolean mayHold = false;
+            for (int j = 0; !mayHold && j < includes.length; j++) {
+                mayHold = SelectorUtils.matchPatternStart(includes[j], path, cs);
+            }
+            for (Iterator iter = excludes.iterator(); mayHold && iter.hasNext();) {
+                mayHold = !SelectorUtils.matchPath((String) iter.next(),
+                                                   path + File.separator
+                                                   + PROBE, cs);
+            }
+            if (mayHold) {
+                addDirectories(children[i], path, includes, excludes, cs,
+                               dirs);
+            }
+        }
+    }
+
+    /**
+     * normalizes a pattern the way DirectoryScanner does
+     */
+    private static String normalize(String pattern) {
+        String p = pattern.replace('/', File.separatorChar)
+            .replace('\\', File.separatorChar);
+        return p.endsWith(File.separator) ? p + "**" : p;
+    }
+
+    /**
+     * The files of a task and their timestamps, inputs first, then
+     * outputs, then the directories scanned.
+     */
+    private static class Node {
+        private final String key;
+        private final File[] files;
+        private final long[] timestamps;
+        private final int inputs;
+        private final int outputs;
+
+        Node(String key, File[] files, long[] timestamps, int inputs,
+             int outputs) {
+            this.key = key;
+            this.files = files;
+            this.timestamps = timestamps;
+            this.inputs = inputs;
+            this.outputs = outputs;
+        }
+
+        /**
+         * @return null if the value is broken
+         */
+        static Node parse(String key, String value) {
+            String[] lines = value.split("\n");
+            String[] counts = lines[0].split(" ");
+            if (counts.length != 2) {
+                return null;
+            }
+            File[] files = new File[lines.length - 1];
+            long[] timestamps = new long[files.length];
+            try {
+                for (int i = 1; i < lines.length; i++) {
+                    int space = lines[i].indexOf(' ');
+                    timestamps[i - 1] =
+                        Long.parseLong(lines[i].substring(0, space));
+                    files[i - 1] = new File(lines[i].substring(space + 1));
+                }
+                int inputs = Integer.parseInt(counts[0]);
+                int outputs = Integer.parseInt(counts[1]);
+                if (inputs < 0 || outputs < 0
+                    || inputs + outputs > files.length) {
+                    return null;
+                }
+                return new Node(key, files, timestamps, inputs, outputs);
+            } catch (RuntimeException e) {
+                // ignore a broken entry
+                return null;
+            }
+        }
+
+        public String toString() {
+            StringBuffer sb = new StringBuffer();
+            sb.append(inputs).append(' ').append(outputs);
+            for (int i = 0; i < files.length; i++) {
+                sb.append('\n').append(timestamps[i]).append(' ')
+                    .append(files[i].getPath());
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * The decisions taken during a single build, saves the graph and
+     * logs the skipped tasks when the build finishes.
+     */
+    private static class Build implements SubBuildListener {
+        private final Project project;
+        private final ArtifactGraph graph;
+        /**
+         * the keys of the tasks that are up to date, null if they
+         * need to be checked again
+         */
+        private Set upToDate;
+        /**
+         * tasks that have been skipped and haven't finished, yet -
+         * identified by their wrappers as the UnknownElement of a
+         * finished task doesn't know the task anymore
+         */
+        private final Map skipped = new IdentityHashMap();
+        private final Map failed = new IdentityHashMap();
+        private int checks = 0;
+        private long checkMillis = 0;
+        private int skippedCount = 0;
+
+        Build(Project project, ArtifactGraph graph) {
+            this.project = project;
+            this.graph = graph;
+        }
+
+        synchronized boolean isUpToDate(Task task) {
+            String key = getKey(task);
+            if (key == null) {
+                return false;
+            }
+            if (upToDate == null) {
+                long start = System.currentTimeMillis();
+                upToDate = graph.check(project);
+                checks++;
+                checkMillis += System.currentTimeMillis() - start;
+            }
+            if (!upToDate.contains(key)) {
+                return false;
+            }
+            skipped.put(task.getRuntimeConfigurableWrapper(), Boolean.TRUE);
+            skippedCount++;
+            task.log("Neither the files of this task nor the inputs of the"
+                     + " tasks creating them have changed", Project.MSG_VERBOSE);
+            return true;
+        }
+
+        synchronized void record(Task task) {
+            // the task may have rewritten inputs of other tasks
+            upToDate = null;
+            if (failed.remove(task.getRuntimeConfigurableWrapper()) != null) {
+                return;
+            }
+            String key = getKey(task);
+            if (key == null) {
+                return;
+            }
+            Collection inputs = new ArrayList();
+            Collection filesets = new ArrayList();
+            Collection outputs = new ArrayList();
+            ((Watchable) task).addWatchedFiles(inputs, filesets, outputs);
+            if (outputs.size() == 0) {
+                return;
+            }
+            Set outs = new LinkedHashSet();
+            for (Iterator iter = outputs.iterator(); iter.hasNext();) {
+                File f = ((File) iter.next()).getAbsoluteFile();
+                if (!f.exists()) {
+                    task.log(f + " doesn't exist, not recording the task",
+                             Project.MSG_VERBOSE);
+                    return;
+                }
+                outs.add(f);
+            }
+            // an output that is also an input counts as an output
+            Set ins = new LinkedHashSet();
+            for (Iterator iter = inputs.iterator(); iter.hasNext();) {
+                File f = ((File) iter.next()).getAbsoluteFile();
+                if (!outs.contains(f)) {
+                    ins.add(f);
+                }
+            }
+            Set dirs = new LinkedHashSet();
+            for (Iterator iter = filesets.iterator(); iter.hasNext();) {
+                addDirectories(project, (FileSet) iter.next(), dirs);
+            }
+            dirs.removeAll(ins);
+            dirs.removeAll(outs);
+            List files = new ArrayList(ins);
+            files.addAll(outs);
+            files.addAll(dirs);
+            File[] f = (File[]) files.toArray(new File[files.size()]);
+            FileTimestamps timestamps = new FileTimestamps(project);
+            timestamps.readAll(files);
+            long[] t = new long[f.length];
+            for (int i = 0; i < f.length; i++) {
+                t[i] = timestamps.lastModified(f[i]);
+            }
+            graph.put(new Node(key, f, t, ins.size(), outs.size()));
+        }
+
+        synchronized void commandFailed(Task task) {
+            failed.put(task.getRuntimeConfigurableWrapper(), Boolean.TRUE);
+        }
+
+        public void taskFinished(BuildEvent event) {
+            RuntimeConfigurable wrapper =
+                event.getTask().getRuntimeConfigurableWrapper();
+            synchronized (this) {
+                if (skipped.remove(wrapper) == null) {
+                    upToDate = null;
+                }
+                failed.remove(wrapper);
+            }
+        }
+
+        public void buildFinished(BuildEvent event) {
+            finish();
+        }
+
+        public void subBuildFinished(BuildEvent event) {
+            if (event.getProject() == project) {
+                finish();
+            }
+        }
+
+        private synchronized void finish() {
+            graph.save(project);
+            if (skippedCount > 0) {
+                project.log(skippedCount + " task"
+                            + (skippedCount == 1 ? " has" : "s have")
+                            + " been skipped, the artifact graph has found"
+                            + " their inputs unchanged in " + checks
+                            + " check" + (checks == 1 ? "" : "s") + " taking "
+                            + checkMillis + " ms");
+            }
+            upToDate = null;
+            skipped.clear();
+            failed.clear();
+            checks = 0;
+            checkMillis = 0;
+            skippedCount = 0;
+        }
+
+        public void buildStarted(BuildEvent event) {
+        }
+
+        public void subBuildStarted(BuildEvent event) {
+        }
+
+        public void targetStarted(BuildEvent event) {
+        }
+
+        public void targetFinished(BuildEvent event) {
+        }
+
+        public void taskStarted(BuildEvent event) {
+        }
+
+        public void messageLogged(BuildEvent event) {
+        }
+    }
+}
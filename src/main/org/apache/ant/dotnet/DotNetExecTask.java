@@ -18,12 +18,29 @@
 
 package org.apache.ant.dotnet;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import org.apache.ant.dotnet.metadata.MetadataReader;
+import org.apache.ant.dotnet.util.BoundedStreamHandler;
+import org.apache.ant.dotnet.util.PlanMode;
+import org.apache.ant.dotnet.util.ProcessGovernor;
+import org.apache.ant.dotnet.util.ProcessTreeWatchdog;
+import org.apache.ant.dotnet.util.PumpingLogStreamHandler;
+import org.apache.ant.dotnet.util.SupervisedExecute;
+import org.apache.ant.dotnet.util.TaskHistory;
+import org.apache.ant.dotnet.util.Toolchain;
 import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
 import org.apache.tools.ant.Task;
 import org.apache.tools.ant.taskdefs.Execute;
 import org.apache.tools.ant.taskdefs.ExecTask;
+import org.apache.tools.ant.taskdefs.ExecuteStreamHandler;
+import org.apache.tools.ant.taskdefs.ExecuteWatchdog;
 import org.apache.tools.ant.taskdefs.condition.Os;
 import org.apache.tools.ant.types.Environment;
+import org.apache.tools.ant.types.RedirectorElement;
 
 /**
  * Specialized <exec> that knows how to deal with Mono vs. Microsoft's
@@ -34,7 +51,7 @@ public class DotNetExecTask extends ExecTask {
     /**
      * "Magic" VM argument for Microsoft's VM.
      */
-    private static final String MS_VM = "microsoft";
+    static final String MS_VM = "microsoft";
 
     /**
      * The user supplied executable attribute.
@@ -56,6 +73,95 @@ public class DotNetExecTask extends ExecTask {
      */
     private String errorProperty;
 
+    /**
+     * Whether any of the redirection attributes has been used.
+     *
+     * @since .NET Antlib 1.2
+     */
+    private boolean redirected = false;
+
+    /**
+     * Mono has been told to use ahead of time compiled images of
+     * the executable.
+     *
+     * @since .NET Antlib 1.2
+     */
+    private boolean useAotImages = false;
+
+    /**
+     * Time spent to create the ahead of time compiled images.
+     *
+     * @since .NET Antlib 1.2
+     */
+    private long aotCompileMillis = 0;
+
+    /**
+     * Whether the executable may be run by a {@link ManagedToolHost}.
+     *
+     * @since .NET Antlib 1.2
+     */
+    private boolean hostable = true;
+
+    /**
+     * Whether a timeout or spawn has been set, either rules out the
+     * tool host.
+     *
+     * @since .NET Antlib 1.2
+     */
+    private boolean needsOwnProcess = false;
+
+    /**
+     * The timeout, ExecTask doesn't expose it.
+     *
+     * @since .NET Antlib 1.2
+     */
+    private Long timeout;
+
+    /**
+     * Whether the process is spawned, ExecTask doesn't expose it.
+     *
+     * @since .NET Antlib 1.2
+     */
+    private boolean spawn = false;
+
+    /**
+     * The process slots of the running executable, may be null.
+     *
+     * @since .NET Antlib 1.2
+     */
+    private ProcessGovernor.Ticket ticket;
+
+    /**
+     * The nested env elements, ExecTask doesn't expose them.
+     *
+     * @since .NET Antlib 1.2
+     */
+    private final Environment nestedEnv = new Environment();
+
+    /**
+     * Whether the VM launcher is used, ExecTask doesn't expose it.
+     *
+     * @since .NET Antlib 1.2
+     */
+    private boolean vmLauncher = true;
+
+    /**
+     * The stream handler and watchdog created for the current
+     * execution.
+     *
+     * @since .NET Antlib 1.2
+     */
+    private ExecuteStreamHandler handler;
+    private ExecuteWatchdog watchdog;
+
+    /**
+     * The number of arguments setupCommandline has added in front of
+     * the user's arguments.
+     *
+     * @since .NET Antlib 1.2
+     */
+    private int addedArguments = 0;
+
     /**
      * Empty Constructor.
      */
@@ -106,7 +212,243 @@ public class DotNetExecTask extends ExecTask {
             throw new BuildException("The executable attribute is required");
         }
         setupCommandline();
-        super.execute();
+        if (!PlanMode.shouldRun(this, executable, null,
+                                "no up to date check", null)) {
+            return;
+        }
+        // spawned processes aren't waited for
+        ticket = spawn ? null
+            : ProcessGovernor.acquire(this,
+                                      TaskHistory.getKey(this, executable,
+                                                         null),
+                                      executable);
+        long start = System.currentTimeMillis();
+        try {
+            super.execute();
+        } finally {
+            if (ticket != null) {
+                ticket.release();
+                ticket = null;
+            }
+        }
+        long millis = System.currentTimeMillis() - start;
+        TaskHistory history = TaskHistory.getInstance(getProject());
+        if (useAotImages) {
+            long jit = history.getEstimate(TaskHistory.getKey(this, executable,
+                                                              null));
+            log("Ran in " + millis + " ms using AOT images"
+                + (jit >= 0 ? ", " + jit + " ms on average without" : "")
+                + (aotCompileMillis > 0
+                   ? ", creating the images took " + aotCompileMillis + " ms"
+                   : ""));
+            history.record(this, TaskHistory.getKey(this, executable + " (AOT)",
+                                                    null), millis);
+        } else {
+            history.record(this, TaskHistory.getKey(this, executable, null),
+                           millis);
+        }
+    }
+
+    /**
+     * Uses a {@link BoundedStreamHandler} if the project enables it
+     * or a {@link PumpingLogStreamHandler} if virtual threads are
+     * available - unless the output is redirected.
+     *
+     * @since .NET Antlib 1.2
+     */
+    protected ExecuteStreamHandler createHandler() throws BuildException {
+        ExecuteStreamHandler handler = null;
+        if (!redirected) {
+            handler = BoundedStreamHandler.create(this);
+            if (handler == null) {
+                handler = PumpingLogStreamHandler.create(this);
+            }
+        }
+        if (handler == null) {
+            handler = super.createHandler();
+        } else {
+            // ExecTask completes the redirector after the process has
+            // finished, its streams simply stay unused
+            redirector.createStreams();
+        }
+        this.handler = handler;
+        return handler;
+    }
+
+    /**
+     * Whether the executable may be run inside the resident tool host
+     * if the ant.dotnet.toolhost property is true.  Defaults to true.
+     *
+     * @since .NET Antlib 1.2
+     */
+    public void setHostable(boolean b) {
+        hostable = b;
+    }
+
+    public void setTimeout(Long value) {
+        needsOwnProcess |= value != null;
+        timeout = value;
+        super.setTimeout(value);
+    }
+
+    public void setSpawn(boolean spawn) {
+        needsOwnProcess |= spawn;
+        this.spawn = spawn;
+        super.setSpawn(spawn);
+    }
+
+    public void addEnv(Environment.Variable var) {
+        nestedEnv.addVariable(var);
+        super.addEnv(var);
+    }
+
+    /**
+     * Uses a {@link ProcessTreeWatchdog} that tells the {@link
+     * ProcessGovernor} which process to sample if the executable
+     * holds process slots.  With virtual threads enabled it is used
+     * for timeouts as well as it doesn't need a thread of its own.
+     *
+     * @since .NET Antlib 1.2
+     */
+    protected ExecuteWatchdog createWatchdog() throws BuildException {
+        if (ticket == null
+            && (timeout == null || !SupervisedExecute.isEnabled(getProject()))) {
+            watchdog = super.createWatchdog();
+        } else {
+            watchdog = new ProcessTreeWatchdog(this, timeout == null ? 0
+                                               : Math.max(timeout.longValue(),
+                                                          0),
+                                               ticket);
+        }
+        return watchdog;
+    }
+
+    /**
+     * Uses a {@link SupervisedExecute} if virtual threads are
+     * enabled.
+     *
+     * @since .NET Antlib 1.2
+     */
+    protected Execute prepareExec() throws BuildException {
+        Execute exe = super.prepareExec();
+        if (!SupervisedExecute.isEnabled(getProject())) {
+            return exe;
+        }
+        Execute supervised = new SupervisedExecute(handler, watchdog);
+        supervised.setAntRun(getProject());
+        supervised.setWorkingDirectory(exe.getWorkingDirectory());
+        supervised.setVMLauncher(vmLauncher);
+        // exe has merged the nested variables into the inherited
+        // environment unless a new one has been asked for
+        supervised.setNewenvironment(true);
+        supervised.setEnvironment(exe.getEnvironment());
+        return supervised;
+    }
+
+    public void setVMLauncher(boolean vmLauncher) {
+        this.vmLauncher = vmLauncher;
+        super.setVMLauncher(vmLauncher);
+    }
+
+    /**
+     * Runs the executable inside the tool host if possible, starts a
+     * new process otherwise.
+     *
+     * @since .NET Antlib 1.2
+     */
+    protected void runExec(Execute exe) throws BuildException {
+        File assembly = getHostableAssembly(exe);
+        if (assembly != null) {
+            String[] args = cmdl.getArguments();
+            String[] toolArgs = new String[args.length - addedArguments];
+            System.arraycopy(args, addedArguments, toolArgs, 0,
+                             toolArgs.length);
+            Integer result = ManagedToolHost.getInstance(getProject(), vm)
+                .run(this, assembly, exe.getWorkingDirectory(), toolArgs);
+            if (result != null) {
+                int returnCode = result.intValue();
+                maybeSetResultPropertyValue(returnCode);
+                try {
+                    redirector.complete();
+                } catch (IOException e) {
+                    throw new BuildException(e, getLocation());
+                }
+                if (Execute.isFailure(returnCode)) {
+                    if (failOnError) {
+                        throw new BuildException(getTaskType() + " returned: "
+                                                 + returnCode, getLocation());
+                    }
+                    log("Result: " + returnCode, Project.MSG_ERR);
+                }
+                return;
+            }
+        }
+        super.runExec(exe);
+    }
+
+    /**
+     * The assembly to run inside the tool host or null if it has to
+     * run in a process of its own.
+     */
+    private File getHostableAssembly(Execute exe) {
+        if (!hostable || redirected || needsOwnProcess || useAotImages
+            || exe.getEnvironment() != null
+            || !ManagedToolHost.isEnabled(getProject())) {
+            return null;
+        }
+        File f = null;
+        if (vm.equals(MS_VM)) {
+            f = getProject().resolveFile(executable);
+            if (!f.isFile()) {
+                f = Toolchain.getInstance(getProject()).find(executable);
+            }
+        } else if (addedArguments > 0) {
+            f = new File(cmdl.getArguments()[0]);
+        }
+        if (f == null || !f.isFile()
+            || !ManagedToolHost.getInstance(getProject(), vm).canRun(f)) {
+            return null;
+        }
+        try {
+            return MetadataReader.isManagedBinary(f) ? f : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public void setOutput(File out) {
+        redirected = true;
+        super.setOutput(out);
+    }
+
+    public void setError(File error) {
+        redirected = true;
+        super.setError(error);
+    }
+
+    public void setInput(File input) {
+        redirected = true;
+        super.setInput(input);
+    }
+
+    public void setInputString(String inputString) {
+        redirected = true;
+        super.setInputString(inputString);
+    }
+
+    public void setOutputproperty(String outputProp) {
+        redirected = true;
+        super.setOutputproperty(outputProp);
+    }
+
+    public void setErrorProperty(String property) {
+        redirected = true;
+        super.setErrorProperty(property);
+    }
+
+    public void addConfiguredRedirector(RedirectorElement redirectorElement) {
+        redirected = true;
+        super.addConfiguredRedirector(redirectorElement);
     }
 
     /**
@@ -139,13 +481,56 @@ public class DotNetExecTask extends ExecTask {
                 // Mono wants the absolte path of the assembly
                 setResolveExecutable(b || isMono(vm));
                 super.setExecutable(vm);
-                cmdl.createArgument(true)
-                    .setValue(resolveExecutable(executable, isMono(vm)));
+                String resolved = resolveExecutable(executable, false);
+                if (isMono(vm) && resolved.equals(executable)) {
+                    if (isPathOverridden()) {
+                        // the toolchain only knows the PATH Ant runs with
+                        resolved = resolveExecutable(executable, true);
+                    } else {
+                        // not relative to basedir or dir, look at the
+                        // PATH only once per build
+                        File f = Toolchain.getInstance(getProject())
+                            .find(executable);
+                        if (f != null) {
+                            resolved = f.getAbsolutePath();
+                        }
+                    }
+                }
+                cmdl.createArgument(true).setValue(resolved);
+                addedArguments = 1;
+                if (isMono(vm) && MonoAotCache.isEnabled(getProject())
+                    && !PlanMode.isEnabled(getProject())
+                    && new File(resolved).isFile()) {
+                    MonoAotCache cache = new MonoAotCache(this, vm);
+                    File images = cache.getImageDirectory(new File(resolved));
+                    aotCompileMillis = cache.getCompileMillis();
+                    if (images != null) {
+                        useAotImages = true;
+                        addedArguments++;
+                        cmdl.createArgument(true)
+                            .setValue("--aot-path=" + images.getAbsolutePath());
+                    }
+                }
                 setResolveExecutable(b);
             }
         }
     }
 
+    /**
+     * Whether a nested env element sets the PATH.
+     */
+    private boolean isPathOverridden() {
+        for (Iterator iter = nestedEnv.getVariablesVector().iterator();
+             iter.hasNext();) {
+            // Windows spells it Path
+            if ("PATH".equalsIgnoreCase(((Environment.Variable) iter.next())
+                                        .getKey())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Whether the given vm looks like the Mono executable.
      */
@@ -166,6 +551,7 @@ public class DotNetExecTask extends ExecTask {
         exec.setProject(t.getProject());
         exec.setExecutable(executable);
         exec.setTaskName(t.getTaskName());
+        exec.setLocation(t.getLocation());
         if (env != null) {
             String[] environment = env.getVariables();
             if (environment != null) {
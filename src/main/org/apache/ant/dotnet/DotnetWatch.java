@@ -0,0 +1,439 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.apache.ant.dotnet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.TaskContainer;
+import org.apache.tools.ant.UnknownElement;
+import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+import org.apache.tools.ant.util.FileUtils;
+
+/**
+ * Runs its nested tasks and runs them again whenever their inputs
+ * change, until the build is interrupted.
+ *
+ * <p>Nested tasks that implement {@link Watchable} - the compiler
+ * tasks, ilasm, ildasm, wsdltodotnet and wix - are only run again if
+ * one of their inputs has changed, either because it has been edited
+ * or because an earlier nested task has rewritten it.  Other nested tasks run again
+ * whenever a task before them has run.</p>
+ *
+ * <p>The directories holding the inputs are watched by a
+ * WatchService.  The timestamps of all inputs are kept in memory so
+ * that events that don't change a file's timestamp and events caused
+ * by the tasks' own outputs don't trigger a new run.</p>
+ *
+ * @since .NET Antlib 1.2
+ */
+public class DotnetWatch extends Task implements TaskContainer {
+
+    private static final FileUtils FILE_UTILS = FileUtils.getFileUtils();
+
+    private final List tasks = new ArrayList();
+
+    private long quietPeriod = 200;
+
+    private int maxRuns = 0;
+
+    private boolean failOnError = false;
+
+    /**
+     * WatchKey to the directory it watches
+     */
+    private final Map keys = new HashMap();
+
+    /**
+     * watched directories
+     */
+    private final Set watched = new HashSet();
+
+    private WatchService service;
+
+    /**
+     * Adds a task to run.
+     */
+    public void addTask(Task task) {
+        tasks.add(new Entry(task));
+    }
+
+    /**
+     * How long to wait for more changes after a change has been
+     * seen, in milliseconds.  Defaults to 200.
+     */
+    public void setQuietPeriod(long quietPeriod) {
+        this.quietPeriod = quietPeriod;
+    }
+
+    /**
+     * Stop after the tasks have been run again the given number of
+     * times.  Defaults to 0 which means "watch until the build is
+     * interrupted".
+     */
+    public void setMaxRuns(int maxRuns) {
+        this.maxRuns = maxRuns;
+    }
+
+    /**
+     * Whether a failing nested task stops the watch.  Defaults to
+     * false, failures are logged and the tasks are run again after the
+     * next change.
+     */
+    public void setFailOnError(boolean b) {
+        failOnError = b;
+    }
+
+    public void execute() {
+        if (tasks.size() == 0) {
+            throw new BuildException("dotnetwatch needs at least one nested"
+                                     + " task", getLocation());
+        }
+        try {
+            service = FileSystems.getDefault().newWatchService();
+        } catch (IOException e) {
+            throw new BuildException("Can't watch the file system: " + e,
+                                     e, getLocation());
+        }
+        try {
+            runAffected(null, true);
+            for (int runs = 0; maxRuns <= 0 || runs < maxRuns; runs++) {
+                Set changed = waitForChanges();
+                long start = System.currentTimeMillis();
+                int count = runAffected(changed, false);
+                if (count > 0) {
+                    log("Ran " + count + " task" + (count == 1 ? "" : "s")
+                        + " in " + (System.currentTimeMillis() - start)
+                        + " ms, watching for changes");
+                } else {
+                    runs--;
+                }
+            }
+        } catch (InterruptedException e) {
+            log("Interrupted, stopping the watch", Project.MSG_VERBOSE);
+        } finally {
+            FILE_UTILS.close(service);
+            service = null;
+            keys.clear();
+            watched.clear();
+        }
+    }
+
+    /**
+     * Runs the tasks affected by the given changes, in the order they
+     * have been nested.
+     *
+     * @param changed the changed files, null if everything has changed
+     * @param all whether to run all tasks
+     * @return the number of tasks that have been run
+     */
+    private int runAffected(Set changed, boolean all) {
+        if (changed != null) {
+            // our own outputs have been taken care of when the tasks
+            // producing them ran
+            for (Iterator iter = tasks.iterator(); iter.hasNext();) {
+                changed.removeAll(((Entry) iter.next()).outputs);
+            }
+        }
+        Set produced = new HashSet();
+        boolean ranBefore = false;
+        int count = 0;
+        for (Iterator iter = tasks.iterator(); iter.hasNext();) {
+            Entry e = (Entry) iter.next();
+            boolean run = all || changed == null
+                || (e.watchable ? e.isAffectedBy(changed)
+                    || e.isAffectedBy(produced) : ranBefore);
+            if (run) {
+                e.run();
+                produced.addAll(e.outputs);
+                ranBefore = true;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Blocks until something has changed and no further change has
+     * been seen for the quiet period.
+     *
+     * @return the files that have changed, null if events have been
+     * lost
+     */
+    private Set waitForChanges() throws InterruptedException {
+        Set changed = new HashSet();
+        boolean overflow = false;
+        WatchKey key = service.take();
+        while (key != null) {
+            File dir = (File) keys.get(key);
+            for (Iterator iter = key.pollEvents().iterator(); iter.hasNext();) {
+                WatchEvent event = (WatchEvent) iter.next();
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    overflow = true;
+                } else if (dir != null) {
+                    File f = new File(dir, ((Path) event.context()).toString());
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+                        && f.isDirectory() && isWatchedTree(f)) {
+                        // a new directory may hold new inputs
+                        watchTree(f, changed);
+                    }
+                    changed.add(f);
+                }
+            }
+            if (!key.reset()) {
+                watched.remove(keys.remove(key));
+            }
+            key = service.poll(quietPeriod, TimeUnit.MILLISECONDS);
+        }
+        if (overflow) {
+            log("Lost file system events, running all tasks",
+                Project.MSG_VERBOSE);
+            return null;
+        }
+        log(changed.size() + " file" + (changed.size() == 1 ? " has" : "s have")
+            + " changed", Project.MSG_VERBOSE);
+        return changed;
+    }
+
+    /**
+     * whether the given directory is inside one of the filesets of a
+     * nested task
+     */
+    private boolean isWatchedTree(File dir) {
+        for (Iterator iter = tasks.iterator(); iter.hasNext();) {
+            Entry e = (Entry) iter.next();
+            for (Iterator fs = e.filesets.keySet().iterator(); fs.hasNext();) {
+                if (FILE_UTILS.isLeadingPath((File) fs.next(), dir)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * watches a directory unless it is already watched
+     */
+    private void watch(File dir) {
+        dir = dir.getAbsoluteFile();
+        if (watched.contains(dir) || !dir.isDirectory()) {
+            return;
+        }
+        try {
+            WatchKey key = dir.toPath().register(service, new WatchEvent.Kind[] {
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE
+            });
+            keys.put(key, dir);
+            watched.add(dir);
+        } catch (IOException e) {
+            log("Can't watch " + dir + ": " + e, Project.MSG_WARN);
+        }
+    }
+
+    /**
+     * watches a directory and all its subdirectories
+     *
+     * @param files collects the files found, may be null
+     */
+    private void watchTree(File dir, Set files) {
+        watch(dir);
+        File[] children = dir.listFiles();
+        for (int i = 0; children != null && i < children.length; i++) {
+            if (children[i].isDirectory()) {
+                watchTree(children[i], files);
+            } else if (files != null) {
+                files.add(children[i].getAbsoluteFile());
+            }
+        }
+    }
+
+    /**
+     * A nested task and what has been known about its files when it
+     * ran last.
+     */
+    private class Entry {
+        private final Task task;
+        private boolean watchable;
+        /**
+         * input to its timestamp
+         */
+        private final Map inputs = new HashMap();
+        /**
+         * base directory to FileSet
+         */
+        private final Map filesets = new HashMap();
+        private final Set outputs = new HashSet();
+
+        private Entry(Task task) {
+            this.task = task;
+        }
+
+        /**
+         * configures the task, records its files and executes it
+         */
+        private void run() {
+            try {
+                Object real = task;
+                if (task instanceof UnknownElement) {
+                    UnknownElement ue = (UnknownElement) task;
+                    ue.maybeConfigure();
+                    real = ue.getRealThing();
+                }
+                watchable = real instanceof Watchable;
+                if (watchable) {
+                    collect((Watchable) real);
+                }
+                task.perform();
+            } catch (BuildException e) {
+                if (failOnError) {
+                    throw e;
+                }
+                log(task.getTaskName() + " failed: " + e.getMessage(),
+                    Project.MSG_ERR);
+            }
+        }
+
+        private void collect(Watchable w) {
+            Collection in = new ArrayList();
+            Collection sets = new ArrayList();
+            Collection out = new ArrayList();
+            w.addWatchedFiles(in, sets, out);
+            inputs.clear();
+            filesets.clear();
+            outputs.clear();
+            for (Iterator iter = out.iterator(); iter.hasNext();) {
+                outputs.add(((File) iter.next()).getAbsoluteFile());
+            }
+            for (Iterator iter = sets.iterator(); iter.hasNext();) {
+                FileSet fs = (FileSet) iter.next();
+                File dir = fs.getDir(getProject()).getAbsoluteFile();
+                filesets.put(dir, fs);
+                watchTree(dir, null);
+            }
+            for (Iterator iter = in.iterator(); iter.hasNext();) {
+                File f = ((File) iter.next()).getAbsoluteFile();
+                inputs.put(f, new Long(f.lastModified()));
+                watch(f.getParentFile());
+            }
+        }
+
+        /**
+         * whether one of the files is an input that has been
+         * modified or deleted or a new file matching one of the
+         * filesets
+         */
+        private boolean isAffectedBy(Collection files) {
+            for (Iterator iter = files.iterator(); iter.hasNext();) {
+                File f = (File) iter.next();
+                Long known = (Long) inputs.get(f);
+                if (known != null) {
+                    if (known.longValue() != f.lastModified()) {
+                        log(f + " has changed", Project.MSG_VERBOSE);
+                        return true;
+                    }
+                } else if (f.isFile() && isIncluded(f)) {
+                    log(f + " is new", Project.MSG_VERBOSE);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean isIncluded(File f) {
+            for (Iterator iter = filesets.entrySet().iterator(); iter.hasNext();) {
+                Map.Entry e = (Map.Entry) iter.next();
+                File dir = (File) e.getKey();
+                if (FILE_UTILS.isLeadingPath(dir, f)
+                    && matches((FileSet) e.getValue(),
+                               FILE_UTILS.removeLeadingPath(dir, f))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * matches a relative path against the patterns of a
+         * fileset, selectors are ignored
+         */
+        private boolean matches(FileSet fs, String path) {
+            boolean cs = fs.isCaseSensitive();
+            String[] includes = fs.mergeIncludes(getProject());
+            if (includes == null || includes.length == 0) {
+                includes = new String[] {"**"};
+            }
+            boolean included = false;
+            for (int i = 0; !included && i < includes.length; i++) {
+                included = SelectorUtils.matchPath(normalize(includes[i]),
+                                                   path, cs);
+            }
+            if (!included) {
+                return false;
+            }
+            List excludes = new ArrayList();
+            String[] ex = fs.mergeExcludes(getProject());
+            for (int i = 0; ex != null && i < ex.length; i++) {
+                excludes.add(ex[i]);
+            }
+            if (fs.getDefaultexcludes()) {
+                String[] d = DirectoryScanner.getDefaultExcludes();
+                for (int i = 0; i < d.length; i++) {
+                    excludes.add(d[i]);
+                }
+            }
+            for (Iterator iter = excludes.iterator(); iter.hasNext();) {
+                if (SelectorUtils.matchPath(normalize((String) iter.next()),
+                                            path, cs)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * normalizes a pattern the way DirectoryScanner does
+     */
+    private static String normalize(String pattern) {
+        String p = pattern.replace('/', File.separatorChar)
+            .replace('\\', File.separatorChar);
+        return p.endsWith(File.separator) ? p + "**" : p;
+    }
+}
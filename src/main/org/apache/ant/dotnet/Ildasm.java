@@ -17,6 +17,9 @@
  */
 package org.apache.ant.dotnet;
 
+import org.apache.ant.dotnet.util.PlanMode;
+import org.apache.ant.dotnet.util.RebuildReasons;
+import org.apache.ant.dotnet.util.UnchangedOutputs;
 import org.apache.tools.ant.types.EnumeratedAttribute;
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Task;
@@ -24,6 +27,7 @@ import org.apache.tools.ant.Project;
 import org.apache.tools.ant.util.FileUtils;
 
 import java.io.File;
+import java.util.Collection;
 
 /**
  * Task to take a .NET or Mono -generated managed executable and turn it
@@ -57,7 +61,7 @@ import java.io.File;
  * attribute is <i>always</i> deleted after an unsuccessful build.
  * @ant.task category="dotnet"
  */
-public class Ildasm extends Task {
+public class Ildasm extends Task implements Watchable {
 
     private static final FileUtils FILE_UTILS = FileUtils.getFileUtils();
     
@@ -75,6 +79,12 @@ public class Ildasm extends Task {
      */
     private boolean progressBar = false;
 
+    /**
+     * timeout in milliseconds
+     * @since .NET Antlib 1.2
+     */
+    private Long timeout;
+
     /**
      * what is our encoding
      */
@@ -236,6 +246,19 @@ public class Ildasm extends Task {
         this.metadata = metadata;
     }
 
+    /**
+     * Kills ildasm - and all processes it has started - if it runs
+     * longer than the given number of milliseconds.
+     *
+     * <p>Defaults to the value of the ant.dotnet.timeout property,
+     * no timeout at all if the property isn't set either.</p>
+     * @param timeout
+     * @since .NET Antlib 1.2
+     */
+    public void setTimeout(Long timeout) {
+        this.timeout = timeout;
+    }
+
     /**
      * show a graphical progress bar in a window during the process; off by default
      * @param progressBar
@@ -327,13 +350,17 @@ public class Ildasm extends Task {
         if (!destFile.exists()) {
             log("Destination file does not exist: a build is required",
                     Project.MSG_VERBOSE);
+            RebuildReasons.record(this, RebuildReasons.MISSING, null,
+                                  destFile);
             return true;
         }
         long sourceTime = sourceFile.lastModified();
-        long destTime = destFile.lastModified();
+        long destTime = UnchangedOutputs.lastModified(getProject(), destFile);
         if (sourceTime > (destTime + FILE_UTILS.getFileTimestampGranularity())) {
             log("Source file is newer than the dest file: a rebuild is required",
                     Project.MSG_VERBOSE);
+            RebuildReasons.record(this, RebuildReasons.GRANULARITY,
+                                  sourceFile, destFile);
             return true;
         } else {
             log("The .il file is up to date", Project.MSG_VERBOSE);
@@ -341,17 +368,45 @@ public class Ildasm extends Task {
         }
 
     }
+    /**
+     * Adds the source file to the inputs and the destination file to
+     * the outputs.
+     * @since .NET Antlib 1.2
+     */
+    public void addWatchedFiles(Collection inputs, Collection filesets,
+                                Collection outputs) {
+        if (sourceFile != null) {
+            inputs.add(sourceFile);
+        }
+        if (destFile != null) {
+            outputs.add(destFile);
+        }
+    }
+
     /**
      * do the work
      * @throws BuildException
      */
     public void execute() throws BuildException {
         validate();
+        if (ArtifactGraph.isUpToDate(this)) {
+            return;
+        }
         if (!isDisassemblyNeeded()) {
+            PlanMode.recordUpToDate(this, "ildasm", destFile);
+            ArtifactGraph.record(this);
+            return;
+        }
+        if (!PlanMode.shouldRun(this, "ildasm", destFile,
+                                PlanMode.getReason(destFile,
+                                                   destFile.lastModified(),
+                                                   1, 1), null)) {
             return;
         }
         NetCommand command = new NetCommand(this, "ildasm", executable);
         command.setFailOnError(true);
+        command.setOutputFile(destFile);
+        command.setTimeout(timeout);
         //fill in args
         command.addArgument("/text");
         command.addArgument("/out=" + destFile.toString());
@@ -409,6 +464,7 @@ public class Ildasm extends Task {
             //then rethrow the exception
             throw e;
         }
+        ArtifactGraph.record(this);
 
     }
 
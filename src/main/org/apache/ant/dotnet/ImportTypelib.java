@@ -18,6 +18,9 @@
 
 package org.apache.ant.dotnet;
 
+import org.apache.ant.dotnet.util.PlanMode;
+import org.apache.ant.dotnet.util.RebuildReasons;
+import org.apache.ant.dotnet.util.UnchangedOutputs;
 import org.apache.tools.ant.Task;
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Project;
@@ -77,6 +80,12 @@ public class ImportTypelib extends Task {
      */
     private String extraOptions = null;
 
+    /**
+     * timeout in milliseconds
+     * @since .NET Antlib 1.2
+     */
+    private Long timeout;
+
     /**
      * This method names the output file.
      *
@@ -121,6 +130,19 @@ public class ImportTypelib extends Task {
         this.useSysArray = useSysArray;
     }
 
+    /**
+     * Kills tlbimp - and all processes it has started - if it runs
+     * longer than the given number of milliseconds.
+     *
+     * <p>Defaults to the value of the ant.dotnet.timeout property,
+     * no timeout at all if the property isn't set either.</p>
+     * @param timeout
+     * @since .NET Antlib 1.2
+     */
+    public void setTimeout(Long timeout) {
+        this.timeout = timeout;
+    }
+
     /**
      * set any extra options that are not yet supported by this task.
      * @param extraOptions
@@ -164,13 +186,17 @@ public class ImportTypelib extends Task {
         if (!destFile.exists()) {
             log("Destination file does not exist: a build is required",
                     Project.MSG_VERBOSE);
+            RebuildReasons.record(this, RebuildReasons.MISSING, null,
+                                  destFile);
             return true;
         }
         long sourceTime = srcFile.lastModified();
-        long destTime = destFile.lastModified();
+        long destTime = UnchangedOutputs.lastModified(getProject(), destFile);
         if (sourceTime > (destTime + FILE_UTILS.getFileTimestampGranularity())) {
             log("Source file is newer than the dest file: a rebuild is required",
                     Project.MSG_VERBOSE);
+            RebuildReasons.record(this, RebuildReasons.GRANULARITY,
+                                  srcFile, destFile);
             return true;
         } else {
             log("The output file is up to date", Project.MSG_VERBOSE);
@@ -191,11 +217,20 @@ public class ImportTypelib extends Task {
             + " in namespace " + namespace, Project.MSG_VERBOSE);
         //rebuild unless the dest file is newer than the source file
         if (!isExecuteNeeded()) {
+            PlanMode.recordUpToDate(this, "ImportTypelib", destFile);
+            return;
+        }
+        if (!PlanMode.shouldRun(this, "ImportTypelib", destFile,
+                                PlanMode.getReason(destFile,
+                                                   destFile.lastModified(),
+                                                   1, 1), null)) {
             return;
         }
 
         NetCommand command = new NetCommand(this, "ImportTypelib", "tlbimp");
         command.setFailOnError(true);
+        command.setOutputFile(destFile);
+        command.setTimeout(timeout);
         command.addArgument(srcFile.toString());
         //fill in args
         command.addArgument("/nologo");
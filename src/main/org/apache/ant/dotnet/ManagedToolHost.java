@@ -0,0 +1,511 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.apache.ant.dotnet;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.ant.dotnet.metadata.ApiFingerprint;
+import org.apache.ant.dotnet.util.StateFiles;
+import org.apache.ant.dotnet.util.Threads;
+import org.apache.ant.dotnet.util.Toolchain;
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.taskdefs.Execute;
+import org.apache.tools.ant.taskdefs.LogOutputStream;
+import org.apache.tools.ant.taskdefs.PumpStreamHandler;
+import org.apache.tools.ant.taskdefs.StreamPumper;
+import org.apache.tools.ant.taskdefs.condition.Os;
+import org.apache.tools.ant.util.FileUtils;
+
+/**
+ * Resident processes that run managed tools inside their own runtime
+ * so they don't pay for the startup of a new one each time.
+ *
+ * <p>The host is compiled from ToolHost.cs - which is part of this
+ * library - with the C# compiler found on the PATH when it is needed
+ * for the first time and kept in the state directory.  Each project
+ * and VM has a pool of up to one host process per processor, a host
+ * is started when a tool is run while all others are busy and all
+ * are stopped when the build finishes.  A tool run while the pool is
+ * exhausted is started as a process of its own.</p>
+ *
+ * <p>The host reads requests from its standard input, one per line
+ * made of tab separated fields, backslashes, tabs and line feeds
+ * escaped with a backslash: "run", the assembly, the working
+ * directory and the arguments.  It answers with lines of the form
+ * "type text", where type is R (ready), O (a line of standard
+ * output), E (a line of standard error), X (the exit code) or F (the
+ * tool couldn't be run, the reason escaped like the requests).
+ * Hosted tools read no standard input.</p>
+ *
+ * <p>A tool that terminates the process - via Environment.Exit for
+ * example - takes the host with it.  Its exit code is the one of the
+ * host and it is never hosted again during the same build.</p>
+ *
+ * @since .NET Antlib 1.2
+ */
+class ManagedToolHost implements BuildListener {
+
+    /**
+     * Name of the property that enables the host.
+     */
+    static final String PROPERTY = "ant.dotnet.toolhost";
+
+    private static final String SOURCE = "ToolHost.cs";
+
+    private static final String REFERENCE_PREFIX = "ant.dotnet.toolhost.";
+
+    private static final FileUtils FILE_UTILS = FileUtils.getFileUtils();
+
+    private final Project project;
+    private final String vm;
+    private final int maxHosts;
+
+    /**
+     * assemblies that can't be hosted
+     */
+    private final Set unsafe = new HashSet();
+
+    /**
+     * the host couldn't be built or started, don't try again
+     */
+    private boolean broken = false;
+
+    /**
+     * hosts waiting for a request
+     */
+    private final LinkedList idle = new LinkedList();
+
+    /**
+     * all running hosts
+     */
+    private final List hosts = new ArrayList();
+
+    /**
+     * hosts being started
+     */
+    private int starting = 0;
+
+    /**
+     * guards the compilation of the host
+     */
+    private final Object buildLock = new Object();
+
+    private ManagedToolHost(Project project, String vm) {
+        this.project = project;
+        this.vm = vm;
+        this.maxHosts = Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Whether the project enables the host.
+     */
+    static boolean isEnabled(Project p) {
+        return Project.toBoolean(p.getProperty(PROPERTY));
+    }
+
+    /**
+     * The host for the given VM, {@link DotNetExecTask#MS_VM} for a
+     * host that is run directly.
+     */
+    static ManagedToolHost getInstance(Project p, String vm) {
+        synchronized (p) {
+            String key = REFERENCE_PREFIX + vm;
+            ManagedToolHost h = (ManagedToolHost) p.getReference(key);
+            if (h == null) {
+                h = new ManagedToolHost(p, vm);
+                p.addReference(key, h);
+                p.addBuildListener(h);
+            }
+            return h;
+        }
+    }
+
+    /**
+     * Whether the given assembly may be run by the host.
+     */
+    synchronized boolean canRun(File assembly) {
+        return !broken && !unsafe.contains(assembly);
+    }
+
+    /**
+     * Runs a tool.
+     *
+     * @param owner the task to log the tool's output to
+     * @param assembly the tool
+     * @param dir the working directory
+     * @param args the tool's arguments
+     * @return the exit code or null if the tool couldn't be run and
+     * should be started as a process of its own
+     */
+    Integer run(Task owner, File assembly, File dir, String[] args) {
+        Host host = acquire(owner, assembly);
+        if (host == null) {
+            return null;
+        }
+        StringBuffer sb = new StringBuffer("run\t");
+        sb.append(escape(assembly.getAbsolutePath())).append('\t');
+        sb.append(escape(dir.getAbsolutePath()));
+        for (int i = 0; i < args.length; i++) {
+            sb.append('\t').append(escape(args[i]));
+        }
+        try {
+            host.requests.write(sb.append('\n').toString());
+            host.requests.flush();
+            String line;
+            while ((line = host.responses.readLine()) != null) {
+                String text = line.length() > 2 ? line.substring(2) : "";
+                if (line.startsWith("O")) {
+                    owner.log(text, Project.MSG_INFO);
+                } else if (line.startsWith("E")) {
+                    owner.log(text, Project.MSG_WARN);
+                } else if (line.startsWith("X")) {
+                    Integer exit = new Integer(text.trim());
+                    release(host);
+                    return exit;
+                } else if (line.startsWith("F")) {
+                    owner.log("Can't host " + assembly + ": "
+                              + unescape(text), Project.MSG_VERBOSE);
+                    markUnsafe(assembly);
+                    release(host);
+                    return null;
+                }
+            }
+        } catch (IOException e) {
+            owner.log("Lost the tool host: " + e, Project.MSG_VERBOSE);
+        } catch (NumberFormatException e) {
+            owner.log("Invalid response of the tool host: " + e,
+                      Project.MSG_VERBOSE);
+        }
+        // the tool has ended the host's process
+        markUnsafe(assembly);
+        synchronized (this) {
+            hosts.remove(host);
+        }
+        return new Integer(host.stop());
+    }
+
+    /**
+     * Takes an idle host or starts a new one if the pool isn't
+     * exhausted.
+     *
+     * @return null if the tool has to be run as a process of its
+     * own
+     */
+    private Host acquire(Task owner, File assembly) {
+        synchronized (this) {
+            if (!canRun(assembly)) {
+                return null;
+            }
+            if (!idle.isEmpty()) {
+                return (Host) idle.removeFirst();
+            }
+            if (hosts.size() + starting >= maxHosts) {
+                owner.log("All tool hosts are busy", Project.MSG_VERBOSE);
+                return null;
+            }
+            starting++;
+        }
+        Host host = null;
+        try {
+            File exe;
+            synchronized (buildLock) {
+                exe = broken ? null : getHostExecutable(owner);
+            }
+            if (exe != null) {
+                host = new Host();
+                if (!host.start(owner, exe)) {
+                    host = null;
+                }
+            }
+        } finally {
+            synchronized (this) {
+                starting--;
+                if (host == null) {
+                    broken = true;
+                } else {
+                    hosts.add(host);
+                }
+            }
+        }
+        return host;
+    }
+
+    /**
+     * returns a host to the pool
+     */
+    private synchronized void release(Host host) {
+        if (hosts.contains(host)) {
+            idle.addFirst(host);
+        }
+    }
+
+    private synchronized void markUnsafe(File assembly) {
+        unsafe.add(assembly);
+    }
+
+    /**
+     * Stops all hosts.
+     */
+    private void stop() {
+        List running;
+        synchronized (this) {
+            running = new ArrayList(hosts);
+            hosts.clear();
+            idle.clear();
+        }
+        for (Iterator iter = running.iterator(); iter.hasNext();) {
+            ((Host) iter.next()).stop();
+        }
+    }
+
+    /**
+     * One host process.
+     */
+    private class Host {
+        private Process process;
+        private Writer requests;
+        private BufferedReader responses;
+
+        /**
+         * starts the host and waits for it to be ready
+         */
+        boolean start(Task owner, File host) {
+            String[] cmd = DotNetExecTask.MS_VM.equals(vm)
+                ? new String[] {host.getAbsolutePath()}
+                : new String[] {vm, host.getAbsolutePath()};
+            try {
+                process = Runtime.getRuntime().exec(cmd);
+                requests = new OutputStreamWriter(process.getOutputStream(),
+                                                  "UTF-8");
+                responses = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), "UTF-8"));
+                // the host itself doesn't write to standard error, but
+                // the runtime might
+                Thread t = Threads.newThread(project,
+                    new StreamPumper(process.getErrorStream(),
+                                     new LogOutputStream(owner,
+                                                         Project.MSG_VERBOSE)),
+                    "toolhost-err");
+                if (!t.isDaemon()) {
+                    t.setDaemon(true);
+                }
+                t.start();
+                String ready = responses.readLine();
+                if (ready == null || !ready.startsWith("R")) {
+                    throw new IOException("the host didn't start");
+                }
+                owner.log("Started tool host " + host, Project.MSG_VERBOSE);
+                return true;
+            } catch (IOException e) {
+                owner.log("Failed to start the tool host: " + e,
+                          Project.MSG_WARN);
+                stop();
+                return false;
+            }
+        }
+
+        /**
+         * Stops the host.
+         *
+         * @return the host's exit code, -1 if it wasn't running
+         */
+        int stop() {
+            if (process == null) {
+                return -1;
+            }
+            FILE_UTILS.close(requests);
+            int exit = -1;
+            try {
+                exit = process.waitFor();
+            } catch (InterruptedException e) {
+                process.destroy();
+            }
+            FILE_UTILS.close(responses);
+            process = null;
+            requests = null;
+            responses = null;
+            return exit;
+        }
+    }
+
+    /**
+     * compiles ToolHost.cs unless a build of the same source exists
+     */
+    private File getHostExecutable(Task owner) {
+        byte[] source;
+        try {
+            source = readSource();
+        } catch (IOException e) {
+            owner.log("Can't read " + SOURCE + ": " + e, Project.MSG_WARN);
+            return null;
+        }
+        File dir = StateFiles.getStateFile(project, "toolhost" + File.separator
+                                           + digest(source));
+        File exe = new File(dir, "ToolHost.exe");
+        if (exe.isFile()) {
+            return exe;
+        }
+        Toolchain toolchain = Toolchain.getInstance(project);
+        File compiler = toolchain.find(Os.isFamily("windows") ? "csc" : "mcs");
+        if (compiler == null) {
+            compiler = toolchain.find("csc");
+        }
+        if (compiler == null) {
+            owner.log("No C# compiler on the PATH, can't build the tool host",
+                      Project.MSG_VERBOSE);
+            return null;
+        }
+        dir.mkdirs();
+        File src = new File(dir, SOURCE);
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(src);
+            out.write(source);
+            out.close();
+            out = null;
+            Execute e = new Execute(new PumpStreamHandler(
+                new LogOutputStream(owner, Project.MSG_VERBOSE),
+                new LogOutputStream(owner, Project.MSG_VERBOSE)));
+            e.setAntRun(project);
+            e.setWorkingDirectory(dir);
+            e.setCommandline(new String[] {
+                compiler.getAbsolutePath(), "-nologo", "-target:exe",
+                "-out:" + exe.getAbsolutePath(), src.getAbsolutePath()
+            });
+            if (Execute.isFailure(e.execute()) || !exe.isFile()) {
+                owner.log("Failed to compile the tool host", Project.MSG_WARN);
+                return null;
+            }
+            return exe;
+        } catch (IOException e) {
+            owner.log("Failed to compile the tool host: " + e,
+                      Project.MSG_WARN);
+            return null;
+        } finally {
+            FILE_UTILS.close(out);
+        }
+    }
+
+    private static byte[] readSource() throws IOException {
+        InputStream in = ManagedToolHost.class.getResourceAsStream(SOURCE);
+        if (in == null) {
+            throw new IOException("not found");
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            FILE_UTILS.close(in);
+        }
+    }
+
+    private static String digest(byte[] b) {
+        try {
+            return ApiFingerprint.hex(MessageDigest.getInstance("SHA-1")
+                                      .digest(b));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.toString());
+        }
+    }
+
+    private static String escape(String s) {
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '\\':
+                sb.append("\\\\");
+                break;
+            case '\t':
+                sb.append("\\t");
+                break;
+            case '\n':
+                sb.append("\\n");
+                break;
+            case '\r':
+                sb.append("\\r");
+                break;
+            default:
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String unescape(String s) {
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                char n = s.charAt(++i);
+                sb.append(n == 't' ? '\t' : n == 'n' ? '\n'
+                          : n == 'r' ? '\r' : n);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    public void buildFinished(BuildEvent event) {
+        stop();
+    }
+
+    public void buildStarted(BuildEvent event) {
+    }
+
+    public void targetStarted(BuildEvent event) {
+    }
+
+    public void targetFinished(BuildEvent event) {
+    }
+
+    public void taskStarted(BuildEvent event) {
+    }
+
+    public void taskFinished(BuildEvent event) {
+    }
+
+    public void messageLogged(BuildEvent event) {
+    }
+}
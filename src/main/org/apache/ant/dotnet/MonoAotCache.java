@@ -0,0 +1,261 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.apache.ant.dotnet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.ant.dotnet.metadata.ApiFingerprint;
+import org.apache.ant.dotnet.metadata.AssemblyIndex;
+import org.apache.ant.dotnet.util.StateFiles;
+import org.apache.ant.dotnet.util.Toolchain;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.taskdefs.Execute;
+import org.apache.tools.ant.taskdefs.LogOutputStream;
+import org.apache.tools.ant.taskdefs.PumpStreamHandler;
+import org.apache.tools.ant.util.FileUtils;
+
+/**
+ * Keeps images of managed tools that have been compiled ahead of
+ * time by Mono.
+ *
+ * <p>The images of a tool and the assemblies it references from its
+ * own directory live in a directory of their own inside the state
+ * directory, named after the Mono version and a digest of the
+ * assemblies.  Mono is pointed to that directory using its
+ * --aot-path option, the tool itself is never copied.</p>
+ *
+ * @since .NET Antlib 1.2
+ */
+class MonoAotCache {
+
+    /**
+     * Name of the property that enables the cache.
+     */
+    static final String PROPERTY = "ant.dotnet.mono.aot";
+
+    private static final String DIR_NAME = "mono-aot";
+
+    /**
+     * created inside a cache directory once all images are there
+     */
+    private static final String COMPLETE = "complete";
+
+    /**
+     * created instead of COMPLETE if Mono failed to compile an assembly
+     */
+    private static final String FAILED = "failed";
+
+    private static final FileUtils FILE_UTILS = FileUtils.getFileUtils();
+
+    /**
+     * "path;lastModified;length" to the digest of the file, shared by
+     * all tasks of the JVM
+     */
+    private static final Map DIGESTS =
+        Collections.synchronizedMap(new HashMap());
+
+    private final Task owner;
+    private final String vm;
+
+    /**
+     * time spent compiling for the current command, 0 if the images
+     * already existed
+     */
+    private long compileMillis = 0;
+
+    /**
+     * @param owner the task running the tool
+     * @param vm the Mono executable
+     */
+    MonoAotCache(Task owner, String vm) {
+        this.owner = owner;
+        this.vm = vm;
+    }
+
+    /**
+     * Whether the project enables the cache.
+     */
+    static boolean isEnabled(Project p) {
+        return Project.toBoolean(p.getProperty(PROPERTY));
+    }
+
+    /**
+     * How long compiling the images of the last tool took.
+     *
+     * @return the time in milliseconds, 0 if they have been found in
+     * the cache
+     */
+    long getCompileMillis() {
+        return compileMillis;
+    }
+
+    /**
+     * Finds or creates the images for a tool.
+     *
+     * @param assembly the tool
+     * @return the directory holding the images or null if there are
+     * none
+     */
+    File getImageDirectory(File assembly) {
+        compileMillis = 0;
+        Toolchain.Tool mono =
+            Toolchain.getInstance(owner.getProject()).getTool(owner, vm);
+        if (mono.getVersion() == null || mono.getVersion().length() == 0) {
+            owner.log("Can't determine the version of " + vm
+                      + ", not using AOT images", Project.MSG_VERBOSE);
+            return null;
+        }
+        File toolDir = assembly.getAbsoluteFile().getParentFile();
+        Collection assemblies =
+            new AssemblyIndex(owner.getProject(),
+                              new String[] {toolDir.getAbsolutePath()})
+            .getClosure(Collections.singleton(assembly), null);
+        String digest;
+        try {
+            digest = digest(assemblies);
+        } catch (IOException e) {
+            owner.log("Can't read " + assembly + ": " + e,
+                      Project.MSG_VERBOSE);
+            return null;
+        }
+        File dir = StateFiles.getStateFile(owner.getProject(), DIR_NAME
+                                           + File.separator + mono.getVersion()
+                                           + File.separator + digest);
+        if (new File(dir, COMPLETE).isFile()) {
+            return dir;
+        }
+        if (new File(dir, FAILED).isFile()) {
+            return null;
+        }
+        return compile(assemblies, dir) ? dir : null;
+    }
+
+    /**
+     * compiles all assemblies into a temporary directory and moves
+     * it into place if all went well
+     */
+    private boolean compile(Collection assemblies, File dir) {
+        long start = System.currentTimeMillis();
+        dir.getParentFile().mkdirs();
+        File tmp = FILE_UTILS.createTempFile("aot", "", dir.getParentFile(),
+                                             false, false);
+        tmp.mkdirs();
+        boolean success = true;
+        for (Iterator iter = assemblies.iterator(); success && iter.hasNext();) {
+            File a = (File) iter.next();
+            File image = new File(tmp, a.getName() + ".so");
+            Execute exe = new Execute(new PumpStreamHandler(
+                new LogOutputStream(owner, Project.MSG_VERBOSE),
+                new LogOutputStream(owner, Project.MSG_VERBOSE)));
+            exe.setAntRun(owner.getProject());
+            exe.setWorkingDirectory(a.getParentFile());
+            exe.setCommandline(new String[] {
+                vm, "--aot=outfile=" + image.getAbsolutePath(),
+                a.getAbsolutePath()
+            });
+            try {
+                success = !Execute.isFailure(exe.execute()) && image.isFile();
+            } catch (IOException e) {
+                owner.log("Failed to run " + vm + ": " + e, Project.MSG_VERBOSE);
+                success = false;
+            }
+            if (!success) {
+                owner.log("Mono failed to compile " + a
+                          + " ahead of time, running it without AOT images",
+                          Project.MSG_WARN);
+            }
+        }
+        try {
+            FILE_UTILS.createNewFile(new File(tmp, success ? COMPLETE : FAILED));
+        } catch (IOException e) {
+            success = false;
+        }
+        // another build may have been faster
+        if (!tmp.renameTo(dir)) {
+            deleteTree(tmp);
+        }
+        compileMillis = System.currentTimeMillis() - start;
+        if (success) {
+            owner.log("Compiled " + assemblies.size() + " assembl"
+                      + (assemblies.size() == 1 ? "y" : "ies")
+                      + " ahead of time in " + compileMillis + " ms");
+        }
+        return success && new File(dir, COMPLETE).isFile();
+    }
+
+    private static void deleteTree(File dir) {
+        File[] files = dir.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            files[i].delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * a digest of the digests of all assemblies
+     */
+    private static String digest(Collection assemblies) throws IOException {
+        StringBuffer sb = new StringBuffer();
+        for (Iterator iter = assemblies.iterator(); iter.hasNext();) {
+            sb.append(digest((File) iter.next()));
+        }
+        return ApiFingerprint.hex(newDigest().digest(sb.toString()
+                                                     .getBytes("UTF-8")));
+    }
+
+    private static String digest(File f) throws IOException {
+        String key = f.getAbsolutePath() + ";" + f.lastModified() + ";"
+            + f.length();
+        String digest = (String) DIGESTS.get(key);
+        if (digest == null) {
+            MessageDigest md = newDigest();
+            InputStream in = new FileInputStream(f);
+            try {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    md.update(buffer, 0, read);
+                }
+            } finally {
+                FILE_UTILS.close(in);
+            }
+            digest = ApiFingerprint.hex(md.digest());
+            DIGESTS.put(key, digest);
+        }
+        return digest;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.toString());
+        }
+    }
+}
@@ -18,13 +18,17 @@
 
 package org.apache.ant.dotnet;
 
+import org.apache.ant.dotnet.metadata.AssemblyName;
+import org.apache.ant.dotnet.metadata.MetadataCache;
 import org.apache.ant.dotnet.util.CollectionUtils;
 import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
 import org.apache.tools.ant.Task;
 import org.apache.tools.ant.types.Environment;
 import org.apache.tools.ant.types.RedirectorElement;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 
@@ -291,6 +295,7 @@ public class NUnitTask extends Task {
         Iterator iter = testAssemblies.iterator();
         while (iter.hasNext()) {
             NamedElement a = (NamedElement) iter.next();
+            logAssemblyIdentity(a.getName());
             exec.createArg().setValue(a.getName());
         }
         if (configFile != null) {
@@ -346,6 +351,32 @@ public class NUnitTask extends Task {
         exec.execute();
     }
 
+    /**
+     * Logs the identity of a test assembly and warns if it exists but
+     * isn't a .NET assembly at all.
+     *
+     * <p>NUnit project files and assemblies NUnit locates on its own
+     * are silently ignored.</p>
+     */
+    private void logAssemblyIdentity(String name) {
+        String lower = name.toLowerCase();
+        if (!lower.endsWith(".dll") && !lower.endsWith(".exe")) {
+            return;
+        }
+        File f = getProject().resolveFile(name);
+        if (!f.isFile()) {
+            return;
+        }
+        try {
+            AssemblyName identity = MetadataCache.getAssemblyName(f);
+            log("Test assembly " + f + " is " + identity,
+                Project.MSG_VERBOSE);
+        } catch (IOException e) {
+            log(f + " doesn't look like a .NET assembly: " + e.getMessage(),
+                Project.MSG_WARN);
+        }
+    }
+
     public static class NamedElement {
         private String name;
         public String getName() {return name;}
@@ -34,8 +34,19 @@ import java.io.PrintWriter;
 import java.io.BufferedOutputStream;
 import java.util.ArrayList;
 import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.List;
 
+import org.apache.ant.dotnet.util.BoundedStreamHandler;
+import org.apache.ant.dotnet.util.FileTimestamps;
+import org.apache.ant.dotnet.util.PathList;
+import org.apache.ant.dotnet.util.PlanMode;
+import org.apache.ant.dotnet.util.ProcessGovernor;
+import org.apache.ant.dotnet.util.ProcessTreeWatchdog;
+import org.apache.ant.dotnet.util.PumpingLogStreamHandler;
+import org.apache.ant.dotnet.util.SupervisedExecute;
+import org.apache.ant.dotnet.util.TaskHistory;
+import org.apache.ant.dotnet.util.UnchangedOutputs;
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Project;
 import org.apache.tools.ant.Task;
@@ -122,6 +133,49 @@ public class NetCommand {
      */
     private List argsOnCommandLine = new ArrayList();
 
+    /**
+     * the file created by the command; may be null
+     * @since .NET Antlib 1.2
+     */
+    private File outputFile;
+
+    /**
+     * handles the output of the command; a LogStreamHandler if null
+     * @since .NET Antlib 1.2
+     */
+    private ExecuteStreamHandler streamHandler;
+
+    /**
+     * timeout in milliseconds; the ant.dotnet.timeout property if null
+     * @since .NET Antlib 1.2
+     */
+    private Long timeout;
+
+    /**
+     * kills the command if the timeout is exceeded; may be null
+     * @since .NET Antlib 1.2
+     */
+    private ProcessTreeWatchdog watchdog;
+
+    /**
+     * files passed to the command without turning them into
+     * arguments first; may be null
+     * @since .NET Antlib 1.2
+     */
+    private PathList files;
+
+    /**
+     * index into the command line the files are inserted at
+     * @since .NET Antlib 1.2
+     */
+    private int filesPosition;
+
+    /**
+     * the process slots of the running command; may be null
+     * @since .NET Antlib 1.2
+     */
+    private ProcessGovernor.Ticket ticket;
+
     /**
      *  constructor
      *
@@ -245,6 +299,28 @@ public class NetCommand {
         }
     }
 
+    /**
+     * Adds files to the command line without creating an argument for
+     * each of them, they are written to the response file one by one
+     * if a response file is used.
+     *
+     * <p>The files may be added to a response file, the list must not
+     * be modified after it has been added.</p>
+     *
+     * @param fileList the files
+     * @since .NET Antlib 1.2
+     */
+    public void addFiles(PathList fileList) {
+        if (files == null) {
+            files = fileList;
+            filesPosition = commandLine.size();
+        } else {
+            for (int i = 0; i < fileList.size(); i++) {
+                addArgument(fileList.getPath(i));
+            }
+        }
+    }
+
     /**
      *  concatenate two strings together and add them as a single argument,
      *  but only if argument2 is non-null and non-zero length
@@ -292,6 +368,52 @@ public class NetCommand {
         this.automaticResponseFileThreshold = automaticResponseFileThreshold;
     }
 
+    /**
+     * Handles the output of the command instead of logging it
+     * line by line.
+     *
+     * @param streamHandler the handler, must not be shared with
+     * other commands
+     * @since .NET Antlib 1.2
+     */
+    public void setStreamHandler(ExecuteStreamHandler streamHandler) {
+        this.streamHandler = streamHandler;
+    }
+
+    /**
+     * Kills the command - and all processes it has started - if it
+     * runs longer than the given time.
+     *
+     * @param timeout the timeout in milliseconds, null to use the
+     * value of the ant.dotnet.timeout property
+     * @since .NET Antlib 1.2
+     */
+    public void setTimeout(Long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * The title of the command.
+     *
+     * @since .NET Antlib 1.2
+     */
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * The file created by the command.
+     *
+     * <p>Only used to identify the command in plan mode and in the
+     * history of durations.</p>
+     *
+     * @param outputFile the file, may be null
+     * @since .NET Antlib 1.2
+     */
+    public void setOutputFile(File outputFile) {
+        this.outputFile = outputFile;
+    }
+
     /**
      *  set up the command sequence..
      */
@@ -308,9 +430,23 @@ public class NetCommand {
             dir = directory;
         }
 
-        ExecuteStreamHandler handler = new LogStreamHandler(owner,
+        ExecuteStreamHandler handler = streamHandler;
+        if (handler == null) {
+            handler = BoundedStreamHandler.create(owner);
+        }
+        if (handler == null) {
+            handler = PumpingLogStreamHandler.create(owner);
+        }
+        if (handler == null) {
+            handler = new LogStreamHandler(owner,
                 Project.MSG_INFO, Project.MSG_WARN);
-        executable = new Execute(handler, null);
+        }
+        Long t = timeout != null
+            ? timeout : ProcessTreeWatchdog.getDefaultTimeout(owner);
+        long millis = t == null ? 0 : Math.max(t.longValue(), 0);
+        watchdog = millis == 0 && ticket == null ? null
+            : new ProcessTreeWatchdog(owner, millis, ticket);
+        executable = new SupervisedExecute(handler, watchdog);
         executable.setAntRun(owner.getProject());
         executable.setWorkingDirectory(dir);
     }
@@ -324,30 +460,74 @@ public class NetCommand {
      */
     public void runCommand()
              throws BuildException {
-        prepareExecutor();
+        if (!PlanMode.shouldRun(owner, title, outputFile,
+                                "no up to date check", null)) {
+            return;
+        }
+        ticket = ProcessGovernor.acquire(owner,
+                                         TaskHistory.getKey(owner, title,
+                                                            outputFile),
+                                         program);
         int err = -1;
+        UnchangedOutputs previousOutput = null;
         // assume the worst
         try {
+            prepareExecutor();
+            previousOutput = UnchangedOutputs.moveAside(owner, outputFile);
             if (traceCommandLine) {
                 owner.log("In directory " + executable.getWorkingDirectory());
-                owner.log(commandLine.describeCommand());
+                owner.log(Commandline.describeCommand(
+                    getCommandline(commandLine.getCommandline())));
             } else {
                 //in verbose mode we always log stuff
                 logVerbose("In directory " + executable.getWorkingDirectory());
                 logVerbose(commandLine.describeCommand());
+                if (files != null) {
+                    // the files themselves have been logged by the task
+                    logVerbose("and " + files.size() + " file"
+                               + (files.size() == 1 ? "" : "s"));
+                }
             }
             setExecutableCommandLine();
+            long start = System.currentTimeMillis();
             err = executable.execute();
-            if (Execute.isFailure(err)) {
+            if (executable.killedProcess()) {
+                TaskHistory.getInstance(owner.getProject())
+                    .recordTimeout(owner,
+                                   TaskHistory.getKey(owner, title, outputFile),
+                                   watchdog.getTimeout(),
+                                   watchdog.getKilledDescendants());
+                String msg = title + " has been killed after "
+                    + watchdog.getTimeout() + " ms";
                 if (failOnError) {
-                    throw new BuildException(title + " returned: " + err, owner.getLocation());
-                } else {
-                    owner.log(title + "  Result: " + err, Project.MSG_ERR);
+                    throw new BuildException(msg, owner.getLocation());
+                }
+                ArtifactGraph.commandFailed(owner);
+                owner.log(msg, Project.MSG_ERR);
+            } else if (!Execute.isFailure(err)) {
+                TaskHistory.getInstance(owner.getProject())
+                    .record(owner, TaskHistory.getKey(owner, title, outputFile),
+                            System.currentTimeMillis() - start);
+                if (previousOutput != null) {
+                    previousOutput.complete();
+                    previousOutput = null;
                 }
+            } else if (failOnError) {
+                throw new BuildException(title + " returned: " + err, owner.getLocation());
+            } else {
+                ArtifactGraph.commandFailed(owner);
+                owner.log(title + "  Result: " + err, Project.MSG_ERR);
             }
         } catch (IOException e) {
             throw new BuildException(title + " failed: " + e, e, owner.getLocation());
         } finally {
+            if (ticket != null) {
+                ticket.release();
+                ticket = null;
+            }
+            if (previousOutput != null) {
+                previousOutput.restore();
+            }
             if (temporaryCommandFile != null) {
                 temporaryCommandFile.delete();
             }
@@ -360,14 +540,15 @@ public class NetCommand {
     private void setExecutableCommandLine() {
 
         String[] commands = commandLine.getCommandline();
+        int length = commands.length + (files == null ? 0 : files.size());
         //always trigger file mode if commands are big enough
         if (automaticResponseFileThreshold > 0
-            && commands.length > automaticResponseFileThreshold) {
+            && length > automaticResponseFileThreshold) {
             useResponseFile = true;
         }
-        if (!useResponseFile || commands.length <= 1) {
+        if (!useResponseFile || length <= 1) {
             //the simple action is to send the command line in as is
-            executable.setCommandline(commands);
+            executable.setCommandline(getCommandline(commands));
         } else {
             //but for big operations, we save all the params to a temp file
             //and set @tmpfile as the command -then we remember to delete the tempfile
@@ -382,6 +563,9 @@ public class NetCommand {
                 PrintWriter out = new PrintWriter(new BufferedOutputStream(fos));
                 //start at 1 because element 0 is the executable name
                 for (int i = 1; i < commands.length; ++i) {
+                    if (files != null && i == filesPosition) {
+                        writeFiles(out);
+                    }
                     if (argsOnCommandLine.contains(commands[i])) {
                         continue;
                     }
@@ -394,6 +578,9 @@ public class NetCommand {
                         out.println(commands[i]);
                     }
                 }
+                if (files != null && filesPosition >= commands.length) {
+                    writeFiles(out);
+                }
                 out.flush();
                 out.close();
             } catch (IOException ex) {
@@ -414,6 +601,53 @@ public class NetCommand {
     }
 
 
+    /**
+     * Inserts the files into the command line.
+     */
+    private String[] getCommandline(String[] commands) {
+        if (files == null) {
+            return commands;
+        }
+        int position = Math.min(filesPosition, commands.length);
+        String[] result = new String[commands.length + files.size()];
+        System.arraycopy(commands, 0, result, 0, position);
+        for (int i = 0; i < files.size(); i++) {
+            result[position + i] = files.getPath(i);
+        }
+        System.arraycopy(commands, position, result,
+                         position + files.size(), commands.length - position);
+        return result;
+    }
+
+    /**
+     * Writes the files to the response file, quoted like all other
+     * arguments, without creating a String for each of them.
+     */
+    private void writeFiles(PrintWriter out) {
+        StringBuffer sb = new StringBuffer();
+        char[] buffer = new char[256];
+        for (int i = 0; i < files.size(); i++) {
+            sb.setLength(0);
+            files.appendPath(i, sb);
+            boolean space = false;
+            boolean quote = false;
+            for (int j = 0; j < sb.length(); j++) {
+                space |= sb.charAt(j) == ' ';
+                quote |= sb.charAt(j) == '"';
+            }
+            if (space) {
+                char q = quote ? '\'' : '"';
+                sb.insert(0, q).append(q);
+            }
+            if (buffer.length < sb.length()) {
+                buffer = new char[sb.length()];
+            }
+            sb.getChars(0, sb.length(), buffer, 0);
+            out.write(buffer, 0, sb.length());
+            out.println();
+        }
+    }
+
     /**
      * scan through one fileset for files to include
      * @param scanner
@@ -428,18 +662,25 @@ public class NetCommand {
         String[] dependencies = scanner.getIncludedFiles();
         File base = scanner.getBasedir();
         //add to the list
+        List added = new ArrayList();
         for (int i = 0; i < dependencies.length; i++) {
             File targetFile = new File(base, dependencies[i]);
             if (filesToBuild.get(targetFile) == null) {
                 filesToBuild.put(targetFile, targetFile);
-                if (targetFile.lastModified() > outputTimestamp) {
-                    filesOutOfDate++;
-                    owner.log(targetFile.toString() + " is out of date",
-                              Project.MSG_VERBOSE);
-                } else {
-                    owner.log(targetFile.toString(),
-                              Project.MSG_VERBOSE);
-                }
+                added.add(targetFile);
+            }
+        }
+        FileTimestamps timestamps = new FileTimestamps(owner.getProject());
+        timestamps.readAll(added);
+        for (Iterator iter = added.iterator(); iter.hasNext();) {
+            File targetFile = (File) iter.next();
+            if (timestamps.lastModified(targetFile) > outputTimestamp) {
+                filesOutOfDate++;
+                owner.log(targetFile.toString() + " is out of date",
+                          Project.MSG_VERBOSE);
+            } else {
+                owner.log(targetFile.toString(),
+                          Project.MSG_VERBOSE);
             }
         }
         return filesOutOfDate;
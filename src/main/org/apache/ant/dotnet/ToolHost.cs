@@ -0,0 +1,193 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+using System;
+using System.IO;
+using System.Text;
+
+/**
+ * Runs the entry points of managed tools on behalf of the .NET
+ * Antlib, each of them in an AppDomain of its own.
+ *
+ * Compiled and started by ManagedToolHost.java, see there for the
+ * protocol.
+ */
+public class ToolHost {
+
+    public static int Main(string[] args) {
+        TextReader input = new StreamReader(Console.OpenStandardInput(),
+                                            new UTF8Encoding(false));
+        FramedWriter control =
+            new FramedWriter(Console.OpenStandardOutput(), null);
+        control.WriteFrame("R", "1");
+        string line;
+        while ((line = input.ReadLine()) != null) {
+            string[] fields = Split(line);
+            if (fields.Length < 3 || fields[0] != "run") {
+                control.WriteFrame("F", "invalid request");
+                continue;
+            }
+            string[] toolArgs = new string[fields.Length - 3];
+            Array.Copy(fields, 3, toolArgs, 0, toolArgs.Length);
+            try {
+                control.WriteFrame("X", Run(fields[1], fields[2], toolArgs)
+                                   .ToString());
+            } catch (Exception e) {
+                control.WriteFrame("F", Escape(e.GetType().Name + ": "
+                                               + e.Message));
+            }
+        }
+        return 0;
+    }
+
+    private static int Run(string assembly, string dir, string[] args) {
+        AppDomainSetup setup = new AppDomainSetup();
+        setup.ApplicationBase = Path.GetDirectoryName(assembly);
+        if (File.Exists(assembly + ".config")) {
+            setup.ConfigurationFile = assembly + ".config";
+        }
+        AppDomain domain =
+            AppDomain.CreateDomain(Path.GetFileName(assembly), null, setup);
+        string oldDir = Environment.CurrentDirectory;
+        Environment.CurrentDirectory = dir;
+        try {
+            Runner r = (Runner) domain.CreateInstanceFromAndUnwrap(
+                typeof(Runner).Assembly.Location, typeof(Runner).FullName);
+            return r.Run(assembly, args);
+        } finally {
+            Environment.CurrentDirectory = oldDir;
+            AppDomain.Unload(domain);
+        }
+    }
+
+    /**
+     * Splits a request into its tab separated fields, undoing the
+     * escaping of backslashes, tabs and line feeds.
+     */
+    private static string[] Split(string line) {
+        System.Collections.ArrayList fields = new System.Collections.ArrayList();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < line.Length; i++) {
+            char c = line[i];
+            if (c == '\t') {
+                fields.Add(sb.ToString());
+                sb.Length = 0;
+            } else if (c == '\\' && i + 1 < line.Length) {
+                char n = line[++i];
+                sb.Append(n == 't' ? '\t' : n == 'n' ? '\n' : n == 'r' ? '\r' : n);
+            } else {
+                sb.Append(c);
+            }
+        }
+        fields.Add(sb.ToString());
+        return (string[]) fields.ToArray(typeof(string));
+    }
+
+    /**
+     * Escapes backslashes, tabs and line breaks the way Split
+     * expects.
+     */
+    private static string Escape(string s) {
+        StringBuilder sb = new StringBuilder();
+        foreach (char c in s) {
+            switch (c) {
+            case '\\':
+                sb.Append("\\\\");
+                break;
+            case '\t':
+                sb.Append("\\t");
+                break;
+            case '\n':
+                sb.Append("\\n");
+                break;
+            case '\r':
+                sb.Append("\\r");
+                break;
+            default:
+                sb.Append(c);
+                break;
+            }
+        }
+        return sb.ToString();
+    }
+
+    /**
+     * Lives inside the tool's AppDomain.
+     */
+    public class Runner : MarshalByRefObject {
+        public int Run(string assembly, string[] args) {
+            Stream stdout = Console.OpenStandardOutput();
+            FramedWriter o = new FramedWriter(stdout, "O");
+            FramedWriter e = new FramedWriter(stdout, "E");
+            Console.SetOut(o);
+            Console.SetError(e);
+            // standard input carries the requests, a tool run as a
+            // process of its own doesn't get any input either
+            Console.SetIn(TextReader.Null);
+            try {
+                return AppDomain.CurrentDomain.ExecuteAssembly(assembly, args);
+            } finally {
+                o.Flush();
+                e.Flush();
+            }
+        }
+    }
+
+    /**
+     * Writes each line as a frame of its own.
+     */
+    public class FramedWriter : TextWriter {
+        private readonly Stream stream;
+        private readonly string type;
+        private readonly StringBuilder line = new StringBuilder();
+
+        public FramedWriter(Stream stream, string type) {
+            this.stream = stream;
+            this.type = type;
+        }
+
+        public override Encoding Encoding {
+            get { return Encoding.UTF8; }
+        }
+
+        public override void Write(char c) {
+            if (c == '\n') {
+                WriteFrame(type, line.ToString());
+                line.Length = 0;
+            } else if (c != '\r') {
+                line.Append(c);
+            }
+        }
+
+        public override void Flush() {
+            if (line.Length > 0) {
+                WriteFrame(type, line.ToString());
+                line.Length = 0;
+            }
+        }
+
+        public void WriteFrame(string frameType, string text) {
+            byte[] b = new UTF8Encoding(false).GetBytes(frameType + " " + text
+                                                        + "\n");
+            lock (stream) {
+                stream.Write(b, 0, b.Length);
+                stream.Flush();
+            }
+        }
+    }
+}
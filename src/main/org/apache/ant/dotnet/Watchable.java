@@ -0,0 +1,41 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.apache.ant.dotnet;
+
+import java.util.Collection;
+
+/**
+ * A task that tells {@link DotnetWatch dotnetwatch} which files it
+ * reads and writes.
+ *
+ * @since .NET Antlib 1.2
+ */
+public interface Watchable {
+
+    /**
+     * Collects the files the task would read and write if it was
+     * executed now.
+     *
+     * @param inputs the existing files the task reads, File instances
+     * @param filesets FileSet instances the task scans, new files
+     * matching them are inputs as well
+     * @param outputs the files the task creates, File instances
+     */
+    void addWatchedFiles(Collection inputs, Collection filesets,
+                         Collection outputs);
+}
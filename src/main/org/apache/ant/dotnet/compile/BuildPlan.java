@@ -0,0 +1,126 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.apache.ant.dotnet.compile;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.ant.dotnet.util.PathList;
+
+/**
+ * The result of the planning phase of {@link DotnetCompile}: all
+ * inputs of a compilation and the ones that are newer than the
+ * output.
+ *
+ * <p>Every input has been looked at exactly once while the plan was
+ * created, a plan never touches the file system itself.</p>
+ *
+ * @since .NET Antlib 1.2
+ */
+public final class BuildPlan {
+
+    private final File outputFile;
+    private final long outputTimestamp;
+    private final List sources;
+    private final List references;
+    private final List staleInputs;
+    private final int inputCount;
+
+    /**
+     * @param outputFile the file to create, may be null
+     * @param outputTimestamp timestamp of the output, 0 if it doesn't
+     * exist
+     * @param sources the files to compile
+     * @param references the assemblies to pass as /reference:
+     * @param staleInputs all inputs newer than the output
+     * @param inputCount the number of all inputs
+     */
+    BuildPlan(File outputFile, long outputTimestamp, Collection sources,
+              Collection references, Collection staleInputs,
+              int inputCount) {
+        this.outputFile = outputFile;
+        this.outputTimestamp = outputTimestamp;
+        // don't copy huge lists of sources, the task doesn't touch
+        // them after creating the plan
+        this.sources = sources instanceof PathList ? (List) sources
+            : Collections.unmodifiableList(new ArrayList(sources));
+        this.references =
+            Collections.unmodifiableList(new ArrayList(references));
+        this.staleInputs =
+            Collections.unmodifiableList(new ArrayList(staleInputs));
+        this.inputCount = inputCount;
+    }
+
+    /**
+     * The file to create, may be null.
+     */
+    public File getOutputFile() {
+        return outputFile;
+    }
+
+    /**
+     * Timestamp of the output when the plan has been created, 0 if it
+     * didn't exist.
+     */
+    public long getOutputTimestamp() {
+        return outputTimestamp;
+    }
+
+    /**
+     * The source files, instances of File.
+     *
+     * <p>A {@link PathList} if the task has collected the sources
+     * itself, it must not be modified.</p>
+     */
+    public List getSources() {
+        return sources;
+    }
+
+    /**
+     * The managed assemblies from nested &lt;reference&gt; filesets
+     * and the probe path, instances of File.
+     */
+    public List getReferences() {
+        return references;
+    }
+
+    /**
+     * Sources, references, resources and other input files that are
+     * newer than the output, instances of File.
+     */
+    public List getStaleInputs() {
+        return staleInputs;
+    }
+
+    /**
+     * The number of all inputs that have been looked at.
+     */
+    public int getInputCount() {
+        return inputCount;
+    }
+
+    /**
+     * Whether the compiler needs to run.
+     */
+    public boolean isOutOfDate() {
+        return staleInputs.size() > 0;
+    }
+}
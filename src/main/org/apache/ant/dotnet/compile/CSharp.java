@@ -205,7 +205,10 @@ public class CSharp extends DotnetCompile {
      *@return    The OutputFile Parameter to CSC
      */
     protected String getFileAlignParameter() {
-        if (fileAlign != 0 && !MONO_CS_COMPILER.equals(getExecutable())) {
+        // ask the compiler, fall back to known facts if it can't be run
+        if (fileAlign != 0
+            && getTool().supports("filealign",
+                                  !MONO_CS_COMPILER.equals(getExecutable()))) {
             return "/filealign:" + fileAlign;
         } else {
             return null;
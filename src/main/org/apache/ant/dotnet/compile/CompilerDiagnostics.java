@@ -0,0 +1,125 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.apache.ant.dotnet.compile;
+
+import java.io.File;
+import java.util.Vector;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.types.EnumeratedAttribute;
+
+/**
+ * Used by {@link DotnetCompile} to collect the errors and warnings
+ * of the compiler.
+ *
+ * <p>Diagnostics can be written to a file as a JSON array or a SARIF
+ * log and limits can be placed on the number of diagnostics of a
+ * given code.</p>
+ *
+ * @since .NET Antlib 1.2
+ */
+public class CompilerDiagnostics {
+
+    private File file;
+    private String format = Format.JSON;
+    private Vector limits = new Vector();
+
+    /**
+     * The file to write the diagnostics to, optional.
+     */
+    public void setFile(File file) {
+        this.file = file;
+    }
+
+    /**
+     * The format of the file, defaults to json.
+     */
+    public void setFormat(Format format) {
+        this.format = format.getValue();
+    }
+
+    /**
+     * Adds a limit.
+     */
+    public void addLimit(Limit limit) {
+        limits.addElement(limit);
+    }
+
+    /**
+     * Creates the report of a single execution of the task, the
+     * caller must close it.
+     */
+    DiagnosticReport createReport(Task owner) {
+        for (int i = 0; i < limits.size(); i++) {
+            Limit l = (Limit) limits.elementAt(i);
+            if (l.getMax() < 0) {
+                throw new BuildException("max is required for limit",
+                                         owner.getLocation());
+            }
+        }
+        return new DiagnosticReport(owner, file, format, limits);
+    }
+
+    /**
+     * The maximum number of diagnostics of a code, or of all warnings
+     * if no code has been given.
+     */
+    public static class Limit {
+        private String code;
+        private int max = -1;
+
+        /**
+         * The code like CS0618, all warnings if not set.
+         */
+        public void setCode(String code) {
+            this.code = code;
+        }
+
+        public String getCode() {
+            return code;
+        }
+
+        /**
+         * The maximum number of diagnostics.
+         */
+        public void setMax(int max) {
+            this.max = max;
+        }
+
+        public int getMax() {
+            return max;
+        }
+    }
+
+    /**
+     * Formats of the diagnostics file.
+     * valid formats are json|sarif
+     */
+    public static class Format extends EnumeratedAttribute {
+        public static final String JSON = "json";
+        public static final String SARIF = "sarif";
+
+        public String[] getValues() {
+            return new String[] {
+                JSON,
+                SARIF
+            };
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.apache.ant.dotnet.compile;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A single error or warning reported by a compiler.
+ *
+ * <p>Microsoft's and Mono's compilers all use the same format:</p>
+ *
+ * <pre>
+ * file(line,column): error CS0103: message
+ * file(line): warning BC42024: message
+ * file(line,column,endline,endcolumn): warning FS0064: message
+ * CSC : error CS2001: message
+ * error CS5001: message
+ * </pre>
+ *
+ * @since .NET Antlib 1.2
+ */
+public final class Diagnostic {
+
+    /**
+     * severity of errors
+     */
+    public static final String ERROR = "error";
+
+    /**
+     * severity of warnings
+     */
+    public static final String WARNING = "warning";
+
+    /**
+     * severity of informational messages
+     */
+    public static final String INFO = "info";
+
+    private static final Pattern WITH_LOCATION =
+        Pattern.compile("^\\s*(.+?)\\((\\d+)(?:,(\\d+))?(?:,\\d+,\\d+)?\\)"
+                        + "\\s*:\\s*(?:fatal\\s+)?(error|warning|info)"
+                        + "\\s+([A-Za-z]+\\d+)\\s*:\\s*(.*)$");
+
+    private static final Pattern WITHOUT_LOCATION =
+        Pattern.compile("^\\s*(?:[^:\\s]+\\s*:\\s*)?(?:fatal\\s+)?"
+                        + "(error|warning|info)\\s+([A-Za-z]+\\d+)"
+                        + "\\s*:\\s*(.*)$");
+
+    private final String file;
+    private final int line;
+    private final int column;
+    private final String code;
+    private final String severity;
+    private final String message;
+
+    Diagnostic(String file, int line, int column, String code,
+               String severity, String message) {
+        this.file = file;
+        this.line = line;
+        this.column = column;
+        this.code = code;
+        this.severity = severity;
+        this.message = message;
+    }
+
+    /**
+     * Parses a line of compiler output.
+     *
+     * @return the diagnostic or null if the line isn't one
+     */
+    public static Diagnostic parse(String line) {
+        // cheap test first, most lines of output are no diagnostics
+        if (line.indexOf("error") < 0 && line.indexOf("warning") < 0
+            && line.indexOf("info") < 0) {
+            return null;
+        }
+        Matcher m = WITH_LOCATION.matcher(line);
+        if (m.matches()) {
+            return new Diagnostic(m.group(1).trim(),
+                                  Integer.parseInt(m.group(2)),
+                                  m.group(3) == null ? 0
+                                  : Integer.parseInt(m.group(3)),
+                                  m.group(5), m.group(4), m.group(6));
+        }
+        m = WITHOUT_LOCATION.matcher(line);
+        if (m.matches()) {
+            return new Diagnostic(null, 0, 0, m.group(2), m.group(1),
+                                  m.group(3));
+        }
+        return null;
+    }
+
+    /**
+     * The file as reported by the compiler, null if the diagnostic
+     * isn't related to a source file.
+     */
+    public String getFile() {
+        return file;
+    }
+
+    /**
+     * The line, 0 if unknown.
+     */
+    public int getLine() {
+        return line;
+    }
+
+    /**
+     * The column, 0 if unknown.
+     */
+    public int getColumn() {
+        return column;
+    }
+
+    /**
+     * The compiler specific code like CS0618.
+     */
+    public String getCode() {
+        return code;
+    }
+
+    /**
+     * One of {@link #ERROR}, {@link #WARNING} or {@link #INFO}.
+     */
+    public String getSeverity() {
+        return severity;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+}
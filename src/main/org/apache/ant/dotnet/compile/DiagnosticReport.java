@@ -0,0 +1,267 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.apache.ant.dotnet.compile;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.ant.dotnet.util.JsonUtils;
+import org.apache.ant.dotnet.util.PumpingLogStreamHandler;
+import org.apache.ant.dotnet.util.Threads;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.taskdefs.ExecuteStreamHandler;
+import org.apache.tools.ant.taskdefs.LogOutputStream;
+import org.apache.tools.ant.taskdefs.PumpStreamHandler;
+import org.apache.tools.ant.util.FileUtils;
+
+/**
+ * Collects the diagnostics of a single execution of a compiler task.
+ *
+ * <p>The output of the compiler is parsed line by line while it
+ * arrives and still logged as usual.  Diagnostics are written to
+ * the file immediately and only counted in memory.</p>
+ *
+ * @since .NET Antlib 1.2
+ */
+public class DiagnosticReport {
+
+    private final Task owner;
+    private final File file;
+    private final boolean sarif;
+    private final List limits;
+    private Writer out;
+    private boolean first = true;
+
+    /**
+     * code to int[] {count}
+     */
+    private final Map counts = new HashMap();
+    private int errors = 0;
+    private int warnings = 0;
+
+    /**
+     * @param owner the compiling task
+     * @param file the file to write to, may be null
+     * @param format one of the values of {@link CompilerDiagnostics.Format}
+     * @param limits the {@link CompilerDiagnostics.Limit}s to check
+     */
+    DiagnosticReport(Task owner, File file, String format, List limits) {
+        this.owner = owner;
+        this.file = file;
+        this.sarif = CompilerDiagnostics.Format.SARIF.equals(format);
+        this.limits = limits;
+        if (file != null) {
+            try {
+                File parent = file.getParentFile();
+                if (parent != null && !parent.isDirectory()) {
+                    parent.mkdirs();
+                }
+                out = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(file), "UTF-8"));
+                if (sarif) {
+                    out.write("{\"version\":\"2.1.0\",\"$schema\":"
+                              + "\"https://json.schemastore.org/sarif-2.1.0.json\","
+                              + "\"runs\":[{\"tool\":{\"driver\":{\"name\":"
+                              + JsonUtils.quote(owner.getTaskName())
+                              + "}},\"results\":[");
+                } else {
+                    out.write("[");
+                }
+            } catch (IOException e) {
+                FileUtils.close(out);
+                throw new BuildException("Failed to create " + file, e,
+                                         owner.getLocation());
+            }
+        }
+    }
+
+    /**
+     * A stream handler that logs the output of the compiler and
+     * feeds its diagnostics to this report.
+     */
+    public ExecuteStreamHandler createStreamHandler() {
+        if (Threads.isVirtual(owner.getProject())) {
+            return new PumpingLogStreamHandler(owner,
+                new DiagnosticOutputStream(Project.MSG_INFO),
+                new DiagnosticOutputStream(Project.MSG_WARN));
+        }
+        return new PumpStreamHandler(
+            new DiagnosticOutputStream(Project.MSG_INFO),
+            new DiagnosticOutputStream(Project.MSG_WARN));
+    }
+
+    /**
+     * Counts a diagnostic and writes it to the file.
+     */
+    public synchronized void add(Diagnostic d) {
+        int[] count = (int[]) counts.get(d.getCode());
+        if (count == null) {
+            count = new int[1];
+            counts.put(d.getCode(), count);
+        }
+        count[0]++;
+        if (Diagnostic.ERROR.equals(d.getSeverity())) {
+            errors++;
+        } else if (Diagnostic.WARNING.equals(d.getSeverity())) {
+            warnings++;
+        }
+        if (out == null) {
+            return;
+        }
+        try {
+            out.write(first ? "\n" : ",\n");
+            out.write(sarif ? toSarif(d) : toJson(d));
+            first = false;
+        } catch (IOException e) {
+            throw new BuildException("Failed to write " + file, e,
+                                     owner.getLocation());
+        }
+    }
+
+    /**
+     * Whether any diagnostic with one of the given codes has been
+     * seen.
+     *
+     * @param codes the codes to look for
+     */
+    public synchronized boolean containsAny(Set codes) {
+        for (Iterator iter = codes.iterator(); iter.hasNext();) {
+            if (counts.containsKey(iter.next())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Completes and closes the file.
+     */
+    public synchronized void close() {
+        owner.log(errors + " error(s), " + warnings + " warning(s)",
+                  Project.MSG_VERBOSE);
+        if (out == null) {
+            return;
+        }
+        try {
+            out.write(sarif ? "\n]}]}\n" : "\n]\n");
+            out.close();
+        } catch (IOException e) {
+            throw new BuildException("Failed to write " + file, e,
+                                     owner.getLocation());
+        } finally {
+            FileUtils.close(out);
+            out = null;
+        }
+    }
+
+    /**
+     * Fails if any limit has been exceeded.
+     */
+    public synchronized void checkLimits() {
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < limits.size(); i++) {
+            CompilerDiagnostics.Limit l =
+                (CompilerDiagnostics.Limit) limits.get(i);
+            int count;
+            if (l.getCode() == null) {
+                count = warnings;
+            } else {
+                int[] c = (int[]) counts.get(l.getCode());
+                count = c == null ? 0 : c[0];
+            }
+            if (count > l.getMax()) {
+                if (sb.length() > 0) {
+                    sb.append(", ");
+                }
+                sb.append(count).append(' ')
+                    .append(l.getCode() == null ? "warnings" : l.getCode())
+                    .append(" exceed the limit of ").append(l.getMax());
+            }
+        }
+        if (sb.length() > 0) {
+            throw new BuildException(sb.toString(), owner.getLocation());
+        }
+    }
+
+    private String toJson(Diagnostic d) {
+        StringBuffer sb = new StringBuffer("{");
+        sb.append("\"file\":").append(JsonUtils.quote(d.getFile()));
+        sb.append(",\"line\":").append(d.getLine());
+        sb.append(",\"column\":").append(d.getColumn());
+        sb.append(",\"code\":").append(JsonUtils.quote(d.getCode()));
+        sb.append(",\"severity\":").append(JsonUtils.quote(d.getSeverity()));
+        sb.append(",\"message\":").append(JsonUtils.quote(d.getMessage()));
+        sb.append('}');
+        return sb.toString();
+    }
+
+    private String toSarif(Diagnostic d) {
+        String level = Diagnostic.INFO.equals(d.getSeverity())
+            ? "note" : d.getSeverity();
+        StringBuffer sb = new StringBuffer("{");
+        sb.append("\"ruleId\":").append(JsonUtils.quote(d.getCode()));
+        sb.append(",\"level\":").append(JsonUtils.quote(level));
+        sb.append(",\"message\":{\"text\":")
+            .append(JsonUtils.quote(d.getMessage())).append('}');
+        if (d.getFile() != null) {
+            // the compiler runs in the project's base directory
+            File f = owner.getProject().resolveFile(d.getFile());
+            sb.append(",\"locations\":[{\"physicalLocation\":{")
+                .append("\"artifactLocation\":{\"uri\":")
+                .append(JsonUtils.quote(f.toURI())).append('}');
+            if (d.getLine() > 0) {
+                sb.append(",\"region\":{\"startLine\":").append(d.getLine());
+                if (d.getColumn() > 0) {
+                    sb.append(",\"startColumn\":").append(d.getColumn());
+                }
+                sb.append('}');
+            }
+            sb.append("}}]");
+        }
+        sb.append('}');
+        return sb.toString();
+    }
+
+    /**
+     * Logs each line and parses it.
+     */
+    private class DiagnosticOutputStream extends LogOutputStream {
+        DiagnosticOutputStream(int level) {
+            super(owner, level);
+        }
+
+        protected void processLine(String line, int level) {
+            super.processLine(line, level);
+            Diagnostic d = Diagnostic.parse(line);
+            if (d != null) {
+                add(d);
+            }
+        }
+    }
+}
@@ -19,6 +19,13 @@
 package org.apache.ant.dotnet.compile;
 
 import org.apache.ant.dotnet.NetCommand;
+import org.apache.ant.dotnet.Watchable;
+import org.apache.ant.dotnet.metadata.MetadataReader;
+import org.apache.ant.dotnet.util.FileTimestamps;
+import org.apache.ant.dotnet.util.PathList;
+import org.apache.ant.dotnet.util.PlanMode;
+import org.apache.ant.dotnet.util.RebuildReasons;
+import org.apache.ant.dotnet.util.UnchangedOutputs;
 
 import org.apache.tools.ant.taskdefs.MatchingTask;
 import org.apache.tools.ant.taskdefs.condition.Os;
@@ -27,15 +34,18 @@ import org.apache.tools.ant.Project;
 import org.apache.tools.ant.DirectoryScanner;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
 import java.util.Vector;
 import java.util.Hashtable;
-import java.util.Enumeration;
+import java.util.Iterator;
 
 /**
  * refactoring of some stuff so that different things (like ILASM)
  * can use shared code.
  */
-public class DotnetBaseMatchingTask extends MatchingTask {
+public class DotnetBaseMatchingTask extends MatchingTask
+    implements Watchable {
     /**
      *  output file. If not supplied this is derived from the source file
      */
@@ -50,6 +60,12 @@ public class DotnetBaseMatchingTask extends MatchingTask {
      */
     protected File srcDir;
 
+    /**
+     * timeout of the command in milliseconds
+     * @since .NET Antlib 1.2
+     */
+    protected Long timeout;
+
     /**
      * Are we running on Windows?
      *
@@ -82,6 +98,19 @@ public class DotnetBaseMatchingTask extends MatchingTask {
         outputFile = file;
     }
 
+    /**
+     * Kills the command - and all processes it has started - if it runs
+     * longer than the given number of milliseconds.
+     *
+     * <p>Defaults to the value of the ant.dotnet.timeout property,
+     * no timeout at all if the property isn't set either.</p>
+     * @param timeout
+     * @since .NET Antlib 1.2
+     */
+    public void setTimeout(Long timeout) {
+        this.timeout = timeout;
+    }
+
     /**
      * add a new source directory to the compile
      * @param src
@@ -105,7 +134,66 @@ public class DotnetBaseMatchingTask extends MatchingTask {
      * @return number of files out of date
      */
     protected int buildFileList(NetCommand command, Hashtable filesToBuild, long outputTimestamp) {
+        PathList files = new PathList();
+        int filesOutOfDate = buildFileList(command, files, outputTimestamp);
+        for (int i = 0; i < files.size(); i++) {
+            Object f = files.get(i);
+            filesToBuild.put(f, f);
+        }
+        return filesOutOfDate;
+    }
+
+    /**
+     * create the list of files
+     * @param filesToBuild list to add files to
+     * @param outputTimestamp timestamp to compare against
+     * @return number of files out of date
+     * @since .NET Antlib 1.2
+     */
+    protected int buildFileList(NetCommand command, PathList filesToBuild,
+                                long outputTimestamp) {
+        collectSourceFiles(filesToBuild);
         int filesOutOfDate = 0;
+        long[] timestamps =
+            new FileTimestamps(getProject()).lastModified(filesToBuild);
+        for (int i = 0; i < timestamps.length; i++) {
+            if (timestamps[i] > outputTimestamp) {
+                filesOutOfDate++;
+                log(filesToBuild.getPath(i) + " is out of date",
+                    Project.MSG_VERBOSE);
+                if (outputTimestamp > 0) {
+                    RebuildReasons.record(this, RebuildReasons.MTIME,
+                                          filesToBuild.get(i), getDestFile());
+                }
+            } else {
+                log(filesToBuild.getPath(i), Project.MSG_VERBOSE);
+            }
+        }
+        return filesOutOfDate;
+    }
+
+    /**
+     * collect the source files without looking at their timestamps
+     * @param filesToBuild table to add files to
+     * @since .NET Antlib 1.2
+     */
+    protected void collectSourceFiles(Hashtable filesToBuild) {
+        PathList files = new PathList();
+        collectSourceFiles(files);
+        for (int i = 0; i < files.size(); i++) {
+            Object f = files.get(i);
+            if (filesToBuild.get(f) == null) {
+                filesToBuild.put(f, f);
+            }
+        }
+    }
+
+    /**
+     * collect the source files without looking at their timestamps
+     * @param filesToBuild list to add files to
+     * @since .NET Antlib 1.2
+     */
+    protected void collectSourceFiles(PathList filesToBuild) {
         boolean scanImplicitFileset
             = getSrcDir() != null || filesets.size() == 0;
         if (scanImplicitFileset) {
@@ -118,20 +206,64 @@ public class DotnetBaseMatchingTask extends MatchingTask {
             log("working from source directory " + getSrcDir(),
                     Project.MSG_VERBOSE);
             //get dependencies list.
-            DirectoryScanner scanner = getDirectoryScanner(getSrcDir());
-            filesOutOfDate = command.scanOneFileset(scanner,
-                    filesToBuild, outputTimestamp);
+            collectFiles(getDirectoryScanner(getSrcDir()), filesToBuild);
         }
         //get any included source directories
         for (int i = 0; i < filesets.size(); i++) {
             FileSet fs = (FileSet) filesets.elementAt(i);
-            filesOutOfDate += command.scanOneFileset(
-                    fs.getDirectoryScanner(getProject()),
-                    filesToBuild,
-                    outputTimestamp);
+            collectFiles(fs.getDirectoryScanner(getProject()), filesToBuild);
+        }
+    }
+
+    /**
+     * Adds the source files and the filesets holding them to the
+     * inputs, the destination file to the outputs.
+     * @since .NET Antlib 1.2
+     */
+    public void addWatchedFiles(Collection inputs, Collection filesets,
+                                Collection outputs) {
+        boolean scanImplicitFileset
+            = getSrcDir() != null || this.filesets.size() == 0;
+        PathList sources = new PathList();
+        collectSourceFiles(sources);
+        inputs.addAll(sources);
+        if (scanImplicitFileset) {
+            filesets.add(getImplicitFileSet());
+        }
+        filesets.addAll(this.filesets);
+        if (getDestFile() != null) {
+            outputs.add(getDestFile());
+        }
+    }
+
+    /**
+     * add the files included by a scanner to a table, the files
+     * are keys and values at the same time
+     * @param scanner the scanner to read
+     * @param files table to add files to
+     * @since .NET Antlib 1.2
+     */
+    protected static void collectFiles(DirectoryScanner scanner,
+                                       Hashtable files) {
+        String[] included = scanner.getIncludedFiles();
+        File base = scanner.getBasedir();
+        for (int i = 0; i < included.length; i++) {
+            File f = new File(base, included[i]);
+            if (files.get(f) == null) {
+                files.put(f, f);
+            }
         }
+    }
 
-        return filesOutOfDate;
+    /**
+     * add the files included by a scanner to a list
+     * @param scanner the scanner to read
+     * @param files list to add files to
+     * @since .NET Antlib 1.2
+     */
+    protected static void collectFiles(DirectoryScanner scanner,
+                                       PathList files) {
+        files.addAll(scanner);
     }
 
     /**
@@ -140,12 +272,26 @@ public class DotnetBaseMatchingTask extends MatchingTask {
      * @param command the command to append to
      */
     protected void addFilesToCommand(Hashtable filesToBuild, NetCommand command) {
+        addFilesToCommand(filesToBuild.values(), command);
+    }
+
+    /**
+     * add the list of files to a command
+     * @param filesToBuild collection of files
+     * @param command the command to append to
+     * @since .NET Antlib 1.2
+     */
+    protected void addFilesToCommand(Collection filesToBuild, NetCommand command) {
         int count = filesToBuild.size();
         log("compiling " + count + " file" + ((count == 1) ? "" : "s"),
                 Project.MSG_VERBOSE);
-        Enumeration files = filesToBuild.elements();
-        while (files.hasMoreElements()) {
-            File file = (File) files.nextElement();
+        if (filesToBuild instanceof PathList) {
+            command.addFiles((PathList) filesToBuild);
+            return;
+        }
+        Iterator files = filesToBuild.iterator();
+        while (files.hasNext()) {
+            File file = (File) files.next();
             command.addArgument(file.toString());
         }
     }
@@ -157,29 +303,61 @@ public class DotnetBaseMatchingTask extends MatchingTask {
     protected long getOutputFileTimestamp() {
         long outputTimestamp;
         if (getDestFile() != null && getDestFile().exists()) {
-            outputTimestamp = getDestFile().lastModified();
+            outputTimestamp =
+                UnchangedOutputs.lastModified(getProject(), getDestFile());
         } else {
             outputTimestamp = 0;
         }
         return outputTimestamp;
     }
 
+    /**
+     * test for an existing file carrying a CLI header.
+     * @return true if the PE header says the file is managed or the
+     * file cannot be read at all.
+     * @since .NET Antlib 1.2
+     */
+    protected static boolean isManagedPeFile(File file) {
+        if (!file.isFile()) {
+            return true;
+        }
+        try {
+            return MetadataReader.isManagedBinary(file);
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
     /**
      * finish off the command by adding all dependent files, execute
      * @param command
      */
     protected void addFilesAndExecute(NetCommand command, boolean ignoreTimestamps) {
         long outputTimestamp = getOutputFileTimestamp();
-        Hashtable filesToBuild = new Hashtable();
+        PathList filesToBuild = new PathList();
         int filesOutOfDate = buildFileList(command, filesToBuild, outputTimestamp);
 
         //now run the command of exe + settings + files
-        if (filesOutOfDate > 0) {
+        if (ignoreTimestamps || filesOutOfDate > 0) {
+            if (outputTimestamp == 0) {
+                RebuildReasons.record(this, RebuildReasons.MISSING, null,
+                                      getDestFile());
+            } else if (filesOutOfDate == 0) {
+                RebuildReasons.record(this, RebuildReasons.FORCED, null,
+                                      getDestFile());
+            }
             //add the files to the command
             addFilesToCommand(filesToBuild, command);
-            command.runCommand();
+            String reason = ignoreTimestamps ? "timestamps are ignored"
+                : PlanMode.getReason(getDestFile(), outputTimestamp,
+                                     filesOutOfDate, filesToBuild.size());
+            if (PlanMode.shouldRun(this, command.getTitle(), getDestFile(),
+                                   reason, null)) {
+                command.runCommand();
+            }
         } else {
             log("output file is up to date", Project.MSG_VERBOSE);
+            PlanMode.recordUpToDate(this, command.getTitle(), getDestFile());
         }
     }
 
@@ -30,11 +30,33 @@ package org.apache.ant.dotnet.compile;
 // imports
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Vector;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
-
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.ant.dotnet.ArtifactGraph;
 import org.apache.ant.dotnet.NetCommand;
+import org.apache.ant.dotnet.metadata.AssemblyIndex;
+import org.apache.ant.dotnet.util.FileTimestamps;
+import org.apache.ant.dotnet.util.PathList;
+import org.apache.ant.dotnet.util.PlanMode;
+import org.apache.ant.dotnet.util.RebuildReasons;
+import org.apache.ant.dotnet.util.TaskHistory;
+import org.apache.ant.dotnet.util.Threads;
+import org.apache.ant.dotnet.util.Toolchain;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Project;
@@ -92,6 +114,11 @@ public abstract class DotnetCompile
      */
     private File win32res;
 
+    /**
+     *  file holding the key pair used to sign the assembly
+     */
+    private File keyfile;
+
     /**
      *  flag to control action on execution trouble
      */
@@ -176,6 +203,116 @@ public abstract class DotnetCompile
     private boolean useResponseFile = false;
     private static final int AUTOMATIC_RESPONSE_FILE_THRESHOLD = 64;
 
+    /**
+     * how to decide whether modified references require a rebuild
+     */
+    private String referenceCheck = ReferenceCheck.TIMESTAMP;
+
+    /**
+     * API fingerprints of the last build, only used in api mode
+     */
+    private ReferenceFingerprints referenceFingerprints;
+
+    /**
+     * directories to resolve assembly references in
+     */
+    private Path probePath;
+
+    /**
+     * names of assemblies to resolve using the probe path
+     */
+    private String referenceNames;
+
+    /**
+     * whether to record or prune unused references
+     */
+    private String referenceUsageMode = ReferenceUsageMode.IGNORE;
+
+    /**
+     * usage of references by the last build, null unless
+     * referenceUsageMode is record or prune
+     */
+    private ReferenceUsage referenceUsage;
+
+    /**
+     * whether to compile code and resources into separate modules
+     */
+    private boolean splitResources = false;
+
+    /**
+     * the part of a split compilation currently running
+     */
+    private int phase = PHASE_ALL;
+
+    /**
+     * the assembly a split compilation creates
+     */
+    private File splitAssembly;
+
+    /**
+     * the modules added by the link step of a split or partitioned
+     * compilation
+     */
+    private List linkedModules;
+
+    /**
+     * whether the link step embeds or links the nested resources
+     */
+    private boolean linkResources;
+
+    /**
+     * user defined partitions of the sources
+     */
+    private Vector partitions = new Vector();
+
+    /**
+     * whether sources not matched by any partition are grouped by
+     * their top level directory
+     */
+    private boolean partitionByDirectory = false;
+
+    /**
+     * maximum number of partitions to compile in parallel
+     */
+    private int partitionThreads = 0;
+
+    /**
+     * the sources of the partition currently planned
+     */
+    private Collection partitionSources;
+
+    /**
+     * the modules a split or partitioned compilation would create,
+     * only used in plan mode
+     */
+    private final Set plannedModules =
+        Collections.synchronizedSet(new HashSet());
+
+    /**
+     * how to collect the compiler's diagnostics
+     */
+    private CompilerDiagnostics diagnostics;
+
+    /**
+     * the diagnostics of the current execution
+     */
+    private DiagnosticReport diagnosticReport;
+
+    /**
+     * whether to ask the compiler for deterministic output
+     */
+    private boolean deterministic = false;
+
+    /**
+     * whether to ask the compiler to use its compilation server
+     */
+    private boolean useServer = false;
+
+    private static final int PHASE_ALL = 0;
+    private static final int PHASE_RESOURCES = 1;
+    private static final int PHASE_CODE = 2;
+    private static final int PHASE_LINK = 3;
+
     /**
      *  constructor inits everything and set up the search pattern
      */
@@ -220,18 +357,47 @@ public abstract class DotnetCompile
      *@return    The References Parameter to CSC
      */
     protected String getReferencesParameter() {
+        String refs = references;
+        if (notEmpty(refs) && referenceUsage != null) {
+            refs = pruneReferences(refs);
+        }
         //bail on no references
-        if (notEmpty(references)) {
+        if (notEmpty(refs)) {
             if (isWindows) {
-                return '\"' + REFERENCE_OPTION + references + '\"';
+                return '\"' + REFERENCE_OPTION + refs + '\"';
             } else {
-                return REFERENCE_OPTION + references;
+                return REFERENCE_OPTION + refs;
             }
         } else {
             return null;
         }
     }
 
+    /**
+     * Removes the entries the last build didn't use from a list of
+     * references.
+     * @param refs semicolon or comma separated list of references
+     * @return the remaining references, separated by the compiler's
+     * delimiter
+     */
+    private String pruneReferences(String refs) {
+        String[] entries = refs.split("[;,]");
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < entries.length; i++) {
+            String entry = entries[i].trim();
+            if (entry.length() == 0
+                || referenceUsage.isPruned(entry,
+                                           ReferenceUsage.getSimpleName(entry))) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append(getReferenceDelimiter());
+            }
+            sb.append(entry);
+        }
+        return sb.toString();
+    }
+
     /**
      * Path of references to include.
      * Wildcards should work.
@@ -254,6 +420,41 @@ public abstract class DotnetCompile
         referenceFilesets.add(reference);
     }
 
+    /**
+     * Directories holding assemblies.  When set, the references of
+     * all nested &lt;reference&gt; filesets and referenceNames are
+     * followed transitively and every assembly found in these
+     * directories is passed to the compiler as well.
+     *
+     * @param path directories to search, in order
+     * @since .NET Antlib 1.2
+     */
+    public void setProbePath(Path path) {
+        createProbePath().append(path);
+    }
+
+    /**
+     * Creates the nested probepath element.
+     * @since .NET Antlib 1.2
+     */
+    public Path createProbePath() {
+        if (probePath == null) {
+            probePath = new Path(getProject());
+        }
+        return probePath.createPath();
+    }
+
+    /**
+     * Semicolon separated list of simple assembly names that are
+     * located using the probe path.
+     *
+     * @param names assembly names like "System.Xml;MyCompany.Util"
+     * @since .NET Antlib 1.2
+     */
+    public void setReferenceNames(String names) {
+        referenceNames = names;
+    }
+
 
 
     /**
@@ -570,7 +771,7 @@ public abstract class DotnetCompile
      *@return    The Win32Icon Parameter to CSC
      */
     protected String getWin32IconParameter() {
-        if (win32icon != null) {
+        if (win32icon != null && isAssemblyPhase()) {
             return "/win32icon:" + win32icon.toString();
         } else {
             return null;
@@ -603,7 +804,7 @@ public abstract class DotnetCompile
      *@return    The Win32Res Parameter to CSC
      */
     protected String getWin32ResParameter() {
-        if (win32res != null) {
+        if (win32res != null && isAssemblyPhase()) {
             return "/win32res:" + win32res.toString();
         } else {
             return null;
@@ -611,6 +812,33 @@ public abstract class DotnetCompile
     }
 
 
+    /**
+     * Sets the file holding the key pair used to give the assembly a
+     * strong name.
+     *
+     *@param  keyfile  path to the .snk file
+     * @since .NET Antlib 1.2
+     */
+    public void setKeyfile(File keyfile) {
+        this.keyfile = keyfile;
+    }
+
+
+    /**
+     *  get the argument or null for no argument needed
+     *
+     *@return    The Keyfile Parameter to the compiler
+     * @since .NET Antlib 1.2
+     */
+    protected String getKeyfileParameter() {
+        if (keyfile != null && isAssemblyPhase()) {
+            return "/keyfile:" + keyfile.toString();
+        } else {
+            return null;
+        }
+    }
+
+
     /**
      * If true, require all compiler output to be in UTF8 format.
      *
@@ -753,6 +981,62 @@ public abstract class DotnetCompile
         this.executable = executable;
     }
 
+    /**
+     * The compiler as located and probed by the {@link Toolchain}.
+     *
+     * @since .NET Antlib 1.2
+     */
+    protected Toolchain.Tool getTool() {
+        return Toolchain.getInstance(getProject()).getTool(this,
+                                                           getExecutable());
+    }
+
+    /**
+     * Whether the compiler shall create identical output for
+     * identical input.
+     *
+     * <p>Only used if the compiler supports it.</p>
+     *
+     * @param b whether to create deterministic output
+     * @since .NET Antlib 1.2
+     */
+    public void setDeterministic(boolean b) {
+        deterministic = b;
+    }
+
+    /**
+     * Whether the compiler shall use a shared compilation server
+     * that stays alive between invocations.
+     *
+     * <p>Only used if the compiler supports it.</p>
+     *
+     * @param b whether to use the compilation server
+     * @since .NET Antlib 1.2
+     */
+    public void setUseServer(boolean b) {
+        useServer = b;
+    }
+
+    /**
+     * The switch of the compiler if it is enabled and supported.
+     *
+     * @param name the switch without prefix
+     * @param enabled whether the user has enabled the switch
+     * @return the switch or null
+     * @since .NET Antlib 1.2
+     */
+    protected String getToolSwitchParameter(String name, boolean enabled) {
+        if (!enabled) {
+            return null;
+        }
+        String s = getTool().getSwitch(name);
+        if (s == null && !PlanMode.isEnabled(getProject())) {
+            log(getExecutable() + " doesn't support " + name + ", ignoring it",
+                Project.MSG_VERBOSE);
+        }
+        return s;
+    }
+
     /**
      *  test for a string containing something useful
      *
@@ -805,6 +1089,53 @@ public abstract class DotnetCompile
         this.useResponseFile = useResponseFile;
     }
 
+    /**
+     * How to decide whether references in nested &lt;reference&gt;
+     * filesets that are newer than the output require a rebuild.
+     *
+     * <p>"timestamp" (the default) rebuilds whenever a reference is
+     * newer than the output, "api" only rebuilds if the public
+     * surface of such a reference has changed since the last
+     * build.</p>
+     *
+     * @param check the check to perform
+     * @since .NET Antlib 1.2
+     */
+    public void setReferenceCheck(ReferenceCheck check) {
+        referenceCheck = check.getValue();
+    }
+
+    /**
+     * Whether to analyze which references the output actually uses.
+     *
+     * <p>"ignore" (the default) doesn't look at the output, "record"
+     * remembers the references the output of a successful build
+     * binds to and "prune" also leaves out references that have not
+     * been used by the last successful build.  If a compilation
+     * without pruned references fails, it is repeated with all of
+     * them.</p>
+     *
+     * @param mode what to do
+     * @since .NET Antlib 1.2
+     */
+    public void setReferenceUsage(ReferenceUsageMode mode) {
+        referenceUsageMode = mode.getValue();
+    }
+
+    /**
+     * Collects the errors and warnings of the compiler, writes them
+     * to a file and fails the build if there are too many of them.
+     *
+     * @since .NET Antlib 1.2
+     */
+    public void addDiagnostics(CompilerDiagnostics d) {
+        if (diagnostics != null) {
+            throw new BuildException("only one diagnostics element is"
+                                     + " allowed", getLocation());
+        }
+        diagnostics = d;
+    }
+
     /**
      *  do the work by building the command line and then calling it
      *
@@ -813,20 +1144,810 @@ public abstract class DotnetCompile
     public void execute()
              throws BuildException {
         validate();
-        NetCommand command = createNetCommand();
-        //set up response file options
-        command.setAutomaticResponseFileThreshold(AUTOMATIC_RESPONSE_FILE_THRESHOLD);
-        command.setUseResponseFile(useResponseFile);
-        //fill in args
-        fillInSharedParameters(command);
-        addResources(command);
-        addCompilerSpecificOptions(command);
-        int referencesOutOfDate
-            = addReferenceFilesets(command, getOutputFileTimestamp());
-        //if the refs are out of date, force a build.
-        boolean forceBuild = referencesOutOfDate > 0;
-        addFilesAndExecute(command, forceBuild);
+        if (ArtifactGraph.isUpToDate(this)) {
+            return;
+        }
+        if (diagnostics != null) {
+            diagnosticReport = diagnostics.createReport(this);
+        }
+        boolean success = false;
+        try {
+            compileAll();
+            success = true;
+        } finally {
+            if (diagnosticReport != null) {
+                DiagnosticReport report = diagnosticReport;
+                diagnosticReport = null;
+                report.close();
+                if (success) {
+                    report.checkLimits();
+                }
+            }
+        }
+        ArtifactGraph.record(this);
+    }
+
+    /**
+     * compiles the sources in the way configured
+     */
+    private void compileAll() {
+        if (isPartitionedCompilation()) {
+            compilePartitioned();
+            return;
+        }
+        if (isSplitCompilation()) {
+            compileSplit();
+            return;
+        }
+        long outputTimestamp = getOutputFileTimestamp();
+        boolean ownReport = false;
+        if (!ReferenceUsageMode.IGNORE.equals(referenceUsageMode)
+            && getDestFile() != null) {
+            boolean prune = ReferenceUsageMode.PRUNE.equals(referenceUsageMode);
+            referenceUsage = new ReferenceUsage(this, getDestFile(), prune);
+            if (prune && diagnosticReport == null) {
+                // the diagnostics tell whether a failure is caused by
+                // a pruned reference
+                diagnosticReport = new DiagnosticReport(this, null, null,
+                                                        Collections.EMPTY_LIST);
+                ownReport = true;
+            }
+        }
+        try {
+            BuildException failure = compile();
+            if (failure != null
+                && referenceUsage.isMissingReference(diagnosticReport)) {
+                log("Compilation without the pruned references failed, "
+                    + "retrying with all references", Project.MSG_WARN);
+                referenceUsage.restorePruned();
+                failure = compile();
+            }
+            if (failure != null) {
+                // not caused by pruning, fail the way the user wants
+                if (getFailOnError()) {
+                    throw failure;
+                }
+                ArtifactGraph.commandFailed(this);
+                log(failure.getMessage(), Project.MSG_ERR);
+            } else if (referenceUsage != null
+                && getOutputFileTimestamp() > outputTimestamp) {
+                referenceUsage.logPruned();
+                referenceUsage.record(getDestFile());
+            }
+        } finally {
+            referenceUsage = null;
+            if (ownReport) {
+                diagnosticReport.close();
+                diagnosticReport = null;
+            }
+        }
+    }
+
+    /**
+     * plans the compilation, builds the command line and runs the
+     * compiler if the output is out of date
+     *
+     * @return the failure of a compilation that has been made to
+     * fail in order to restore pruned references, null if it hasn't
+     * failed
+     */
+    private BuildException compile() {
+        Compilation c = prepareCompilation();
+        c.run();
+        c.finish();
+        return c.forcedFailure;
+    }
+
+    /**
+     * plans the compilation and builds the command line
+     */
+    private Compilation prepareCompilation() {
+        BuildPlan plan;
+        try {
+            plan = createBuildPlan();
+        } catch (BuildException e) {
+            clearScannedResources();
+            referenceFingerprints = null;
+            throw e;
+        }
+        try {
+            NetCommand command = createNetCommand();
+            command.setOutputFile(getDestFile());
+            if (diagnosticReport != null) {
+                command.setStreamHandler(diagnosticReport.createStreamHandler());
+            }
+            //set up response file options
+            command.setAutomaticResponseFileThreshold(AUTOMATIC_RESPONSE_FILE_THRESHOLD);
+            command.setUseResponseFile(useResponseFile);
+            //fill in args
+            fillInSharedParameters(command);
+            if (hasResources()) {
+                addResources(command);
+            }
+            if (hasSources()) {
+                addCompilerSpecificOptions(command);
+            }
+            addReferences(command, plan);
+            boolean forceFailure =
+                referenceUsage != null && referenceUsage.hasPruned();
+            if (forceFailure) {
+                // a failure needs to be seen in order to restore the
+                // pruned references, compileAll honors failOnError
+                command.setFailOnError(true);
+            }
+            if (plan.isOutOfDate()) {
+                addFilesToCommand(plan.getSources(), command);
+            }
+            Compilation c = new Compilation(plan, command, referenceFingerprints);
+            c.failureForced = forceFailure;
+            Enumeration e = resources.elements();
+            while (e.hasMoreElements()) {
+                DotnetResource resource = (DotnetResource) e.nextElement();
+                c.linkedCount += resource.getLinkedCount();
+                c.linkedBytes += resource.getLinkedBytes();
+            }
+            c.deployments = getDeployments();
+            return c;
+        } finally {
+            clearScannedResources();
+            referenceFingerprints = null;
+        }
+    }
+
+    /**
+     * The linked files of all resources and where they have to be
+     * placed next to the assembly.
+     *
+     * @return list of File[] as returned by {@link
+     * DotnetResource#getDeployments DotnetResource.getDeployments}
+     */
+    private List getDeployments() {
+        List result = new ArrayList();
+        if (getDestFile() == null) {
+            return result;
+        }
+        File dir = getDestFile().getAbsoluteFile().getParentFile();
+        Map sources = new HashMap();
+        Enumeration e = resources.elements();
+        while (e.hasMoreElements()) {
+            List deployments =
+                ((DotnetResource) e.nextElement()).getDeployments(dir);
+            for (Iterator iter = deployments.iterator(); iter.hasNext();) {
+                File[] deployment = (File[]) iter.next();
+                File other = (File) sources.put(deployment[1], deployment[0]);
+                if (other != null && !other.equals(deployment[0])) {
+                    throw new BuildException("Linked resources " + other
+                                             + " and " + deployment[0]
+                                             + " have the same name",
+                                             getLocation());
+                }
+                if (other == null) {
+                    result.add(deployment);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds references, resources, icon, win32 resource and key file
+     * to the inputs of the base class.
+     * @since .NET Antlib 1.2
+     */
+    public void addWatchedFiles(Collection inputs, Collection filesets,
+                                Collection outputs) {
+        super.addWatchedFiles(inputs, filesets, outputs);
+        inputs.addAll(collectReferences());
+        filesets.addAll(referenceFilesets);
+        if (referenceFiles != null) {
+            String[] files = referenceFiles.list();
+            for (int i = 0; i < files.length; i++) {
+                inputs.add(new File(files[i]));
+            }
+        }
+        if (notEmpty(references)) {
+            String[] entries = references.split("[;,]");
+            for (int i = 0; i < entries.length; i++) {
+                File f = getProject().resolveFile(entries[i].trim());
+                if (entries[i].trim().length() > 0 && f.isFile()) {
+                    inputs.add(f);
+                }
+            }
+        }
+        Enumeration e = resources.elements();
+        while (e.hasMoreElements()) {
+            ((DotnetResource) e.nextElement())
+                .addWatchedFiles(getProject(), inputs, filesets, outputs,
+                                 getDestFile() == null ? null
+                                 : getDestFile().getAbsoluteFile()
+                                 .getParentFile());
+        }
+        File[] others = new File[] {win32icon, win32res, keyfile};
+        for (int i = 0; i < others.length; i++) {
+            if (others[i] != null) {
+                inputs.add(others[i]);
+            }
+        }
+    }
+
+    /**
+     * Collects all inputs of the compilation and decides whether the
+     * output is out of date.  Each input file's timestamp is read
+     * exactly once.
+     *
+     * @return the plan to execute
+     * @since .NET Antlib 1.2
+     */
+    protected BuildPlan createBuildPlan() {
+        long outputTimestamp = getOutputFileTimestamp();
+        Collection stale = new ArrayList();
+        FileTimestamps timestamps = new FileTimestamps(getProject());
+
+        boolean code = hasSources();
+        PathList sources = new PathList();
+        if (partitionSources != null) {
+            sources.addAll(partitionSources);
+        } else if (code) {
+            collectSourceFiles(sources);
+        }
+        addStaleInputs(timestamps, sources, outputTimestamp, stale);
+
+        Collection references = new ArrayList();
+        if (phase != PHASE_RESOURCES) {
+            references = collectReferences();
+        }
+        if (code) {
+            Collection staleReferences = new ArrayList();
+            addStaleInputs(timestamps, references, outputTimestamp,
+                           staleReferences);
+            if (isApiReferenceCheck()) {
+                referenceFingerprints = new ReferenceFingerprints(this, getDestFile());
+                if (staleReferences.size() > 0 && outputTimestamp > 0) {
+                    staleReferences = getApiChanges(staleReferences);
+                }
+            }
+            stale.addAll(staleReferences);
+        }
+
+        Collection otherInputs = new ArrayList();
+        if (hasResources()) {
+            Enumeration e = resources.elements();
+            while (e.hasMoreElements()) {
+                DotnetResource resource = (DotnetResource) e.nextElement();
+                otherInputs.addAll(Arrays.asList(resource.getScannedFiles(this)));
+            }
+            // linked files must be found next to the assembly
+            for (Iterator iter = getDeployments().iterator(); iter.hasNext();) {
+                File[] deployment = (File[]) iter.next();
+                if (DotnetResource.needsDeployment(deployment)
+                    && !stale.contains(deployment[0])) {
+                    stale.add(deployment[0]);
+                }
+            }
+        }
+        if (isAssemblyPhase()) {
+            if (win32icon != null) {
+                otherInputs.add(win32icon);
+            }
+            if (win32res != null) {
+                otherInputs.add(win32res);
+            }
+            if (keyfile != null) {
+                otherInputs.add(keyfile);
+            }
+        }
+        if (phase == PHASE_LINK) {
+            otherInputs.addAll(linkedModules);
+        }
+        addStaleInputs(timestamps, otherInputs, outputTimestamp, stale);
+        if (phase == PHASE_LINK) {
+            // in plan mode the modules have not been updated
+            for (Iterator iter = linkedModules.iterator(); iter.hasNext();) {
+                Object module = iter.next();
+                if (plannedModules.contains(module) && !stale.contains(module)) {
+                    stale.add(module);
+                }
+            }
+        }
+
+        return new BuildPlan(getDestFile(), outputTimestamp, sources,
+                             references, stale, sources.size()
+                             + references.size() + otherInputs.size());
+    }
+
+    /**
+     * Whether the current compilation creates the assembly rather
+     * than one of the modules of a split compilation.
+     */
+    private boolean isAssemblyPhase() {
+        return phase == PHASE_ALL || phase == PHASE_LINK;
+    }
+
+    /**
+     * Whether the current compilation compiles source files.
+     */
+    private boolean hasSources() {
+        return phase == PHASE_ALL || phase == PHASE_CODE;
+    }
+
+    /**
+     * Whether the current compilation embeds or links the nested
+     * resources.
+     */
+    private boolean hasResources() {
+        return phase == PHASE_ALL || phase == PHASE_RESOURCES
+            || (phase == PHASE_LINK && linkResources);
+    }
+
+    /**
+     * Compile code and resources into separate modules that are
+     * linked into the assembly so a change to the code doesn't
+     * embed the resources again and vice versa.
+     *
+     * <p>Only used for libraries with a destFile and nested
+     * resources.</p>
+     *
+     * @param b whether to split the compilation
+     * @since .NET Antlib 1.2
+     */
+    public void setSplitResources(boolean b) {
+        splitResources = b;
+    }
+
+    /**
+     * Adds a partition of the sources.  Partitions are compiled into
+     * modules of their own, in parallel, and linked into the
+     * assembly.
+     *
+     * @param partition the sources of the partition
+     * @since .NET Antlib 1.2
+     */
+    public void addPartition(SourcePartition partition) {
+        partitions.add(partition);
+    }
+
+    /**
+     * Whether sources not matched by any nested partition are
+     * partitioned by the directory directly below srcdir or the dir
+     * of the nested src element that contains them.
+     *
+     * @param b whether to partition by directory
+     * @since .NET Antlib 1.2
+     */
+    public void setPartitionByDirectory(boolean b) {
+        partitionByDirectory = b;
+    }
+
+    /**
+     * Maximum number of partitions to compile in parallel, defaults
+     * to the number of available processors.
+     *
+     * @param threads number of compiler processes
+     * @since .NET Antlib 1.2
+     */
+    public void setPartitionThreads(int threads) {
+        partitionThreads = threads;
+    }
+
+    /**
+     * Whether code and resources are compiled separately.
+     */
+    private boolean isSplitCompilation() {
+        if (!splitResources) {
+            return false;
+        }
+        if (getDestFile() == null || !"library".equals(targetType)
+            || resources.size() == 0) {
+            log("not splitting the compilation, this needs destFile, "
+                + "targetType library and nested resources",
+                Project.MSG_VERBOSE);
+            return false;
+        }
+        if (!ReferenceUsageMode.IGNORE.equals(referenceUsageMode)) {
+            log("referenceusage is ignored by split compilations",
+                Project.MSG_VERBOSE);
+        }
+        return true;
+    }
+
+    /**
+     * Compiles the resources and the code into modules of their own
+     * and links them into the assembly, each step only runs if its
+     * own inputs have changed.
+     */
+    private void compileSplit() {
+        File assembly = getDestFile();
+        splitAssembly = assembly;
+        File codeModule = getCodeModule();
+        File resourceModule = getResourceModule();
+        String assemblyTargetType = targetType;
+        String modules = additionalModules;
+        try {
+            targetType = "module";
+            phase = PHASE_RESOURCES;
+            outputFile = resourceModule;
+            log("compiling resource module " + resourceModule,
+                Project.MSG_VERBOSE);
+            compile();
+
+            phase = PHASE_CODE;
+            outputFile = codeModule;
+            log("compiling code module " + codeModule, Project.MSG_VERBOSE);
+            compile();
+
+            List parts = new ArrayList();
+            parts.add(codeModule);
+            parts.add(resourceModule);
+            link(assembly, assemblyTargetType, parts, false);
+        } finally {
+            phase = PHASE_ALL;
+            splitAssembly = null;
+            targetType = assemblyTargetType;
+            outputFile = assembly;
+            additionalModules = modules;
+            linkedModules = null;
+            plannedModules.clear();
+        }
+    }
+
+    /**
+     * Compiles the assembly out of modules, the caller restores the
+     * modified fields.
+     * @param assembly the assembly to create
+     * @param assemblyTargetType the target type of the assembly
+     * @param modules the modules to add
+     * @param withResources whether to embed or link the nested
+     * resources
+     */
+    private void link(File assembly, String assemblyTargetType, List modules,
+                      boolean withResources) {
+        targetType = assemblyTargetType;
+        phase = PHASE_LINK;
+        outputFile = assembly;
+        linkedModules = modules;
+        linkResources = withResources;
+        StringBuffer sb = new StringBuffer();
+        if (notEmpty(additionalModules)) {
+            sb.append(additionalModules);
+        }
+        for (Iterator iter = modules.iterator(); iter.hasNext();) {
+            if (sb.length() > 0) {
+                sb.append(getReferenceDelimiter());
+            }
+            sb.append(iter.next());
+        }
+        additionalModules = sb.toString();
+        compile();
+    }
+
+    /**
+     * Whether the sources are compiled as several modules.
+     */
+    private boolean isPartitionedCompilation() {
+        if (partitions.size() == 0 && !partitionByDirectory) {
+            return false;
+        }
+        if (getDestFile() == null || !"library".equals(targetType)) {
+            log("not partitioning the compilation, this needs destFile "
+                + "and targetType library", Project.MSG_VERBOSE);
+            return false;
+        }
+        if (!ReferenceUsageMode.IGNORE.equals(referenceUsageMode)) {
+            log("referenceusage is ignored by partitioned compilations",
+                Project.MSG_VERBOSE);
+        }
+        return true;
+    }
+
+    /**
+     * Compiles each partition of the sources into a module of its
+     * own, running up to partitionThreads compilers in parallel, and
+     * links the modules into the assembly.
+     */
+    private void compilePartitioned() {
+        File assembly = getDestFile();
+        String assemblyTargetType = targetType;
+        String modules = additionalModules;
+        Map groups = partitionSources();
+        List parts = new ArrayList();
+        final LinkedList pending = new LinkedList();
+        try {
+            targetType = "module";
+            phase = PHASE_CODE;
+            for (Iterator iter = groups.entrySet().iterator(); iter.hasNext();) {
+                Map.Entry e = (Map.Entry) iter.next();
+                File module = getPartitionModule(assembly, (String) e.getKey());
+                parts.add(module);
+                outputFile = module;
+                partitionSources = (Collection) e.getValue();
+                log("partition " + e.getKey() + " has "
+                    + partitionSources.size() + " source files",
+                    Project.MSG_VERBOSE);
+                pending.add(prepareCompilation());
+            }
+            partitionSources = null;
+            sortLongestFirst(pending);
+            runInParallel(pending);
+            link(assembly, assemblyTargetType, parts, true);
+        } finally {
+            phase = PHASE_ALL;
+            targetType = assemblyTargetType;
+            outputFile = assembly;
+            additionalModules = modules;
+            partitionSources = null;
+            linkedModules = null;
+            plannedModules.clear();
+        }
+    }
+
+    /**
+     * Sorts compilations so the ones expected to take longest start
+     * first and don't extend the build by starting last.
+     */
+    private void sortLongestFirst(List compilations) {
+        final Map estimates = new HashMap();
+        for (Iterator iter = compilations.iterator(); iter.hasNext();) {
+            Compilation c = (Compilation) iter.next();
+            estimates.put(c, new Long(c.getEstimate()));
+        }
+        Collections.sort(compilations, new Comparator() {
+                public int compare(Object o1, Object o2) {
+                    long l1 = ((Long) estimates.get(o1)).longValue();
+                    long l2 = ((Long) estimates.get(o2)).longValue();
+                    return l1 > l2 ? -1 : (l1 == l2 ? 0 : 1);
+                }
+            });
+    }
+
+    /**
+     * Runs the given compilations using up to partitionThreads
+     * threads, the first failure is rethrown.
+     */
+    private void runInParallel(final LinkedList pending) {
+        if (pending.isEmpty()) {
+            // all sources have been excluded, only link the resources
+            return;
+        }
+        final List done = new ArrayList();
+        final BuildException[] failure = new BuildException[1];
+        Runnable worker = new Runnable() {
+                public void run() {
+                    while (true) {
+                        Compilation c;
+                        synchronized (pending) {
+                            if (pending.isEmpty() || failure[0] != null) {
+                                return;
+                            }
+                            c = (Compilation) pending.removeFirst();
+                        }
+                        try {
+                            c.run();
+                            synchronized (pending) {
+                                done.add(c);
+                            }
+                        } catch (BuildException e) {
+                            fail(e);
+                        } catch (RuntimeException e) {
+                            fail(new BuildException(e, getLocation()));
+                        }
+                    }
+                }
+
+                private void fail(BuildException e) {
+                    synchronized (pending) {
+                        if (failure[0] == null) {
+                            failure[0] = e;
+                        }
+                    }
+                }
+            };
+        int threads = partitionThreads > 0
+            ? partitionThreads : Runtime.getRuntime().availableProcessors();
+        Thread[] workers = new Thread[Math.min(threads, pending.size()) - 1];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = Threads.newThread(getProject(), worker,
+                                           getTaskName() + "-" + i);
+            workers[i].start();
+        }
+        worker.run();
+        for (int i = 0; i < workers.length; i++) {
+            try {
+                workers[i].join();
+            } catch (InterruptedException e) {
+                throw new BuildException("interrupted while waiting for "
+                                         + "the compiler", e, getLocation());
+            }
+        }
+        for (Iterator iter = done.iterator(); iter.hasNext();) {
+            ((Compilation) iter.next()).finish();
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+
+    /**
+     * Groups the sources by the nested partitions and - if enabled -
+     * by their top level directory.
+     * @return partition name to Collection of Files, sorted by name
+     */
+    private Map partitionSources() {
+        Hashtable all = new Hashtable();
+        collectSourceFiles(all);
+        Map groups = new TreeMap();
+        for (int i = 0; i < partitions.size(); i++) {
+            SourcePartition p = (SourcePartition) partitions.elementAt(i);
+            if (p.getName() == null) {
+                throw new BuildException("partitions need a name",
+                                         getLocation());
+            }
+            Hashtable files = new Hashtable();
+            collectFiles(p.getDirectoryScanner(getProject()), files);
+            Collection group = new ArrayList();
+            for (Iterator iter = files.values().iterator(); iter.hasNext();) {
+                Object f = iter.next();
+                if (all.remove(f) != null) {
+                    group.add(f);
+                }
+            }
+            addToGroup(groups, p.getName(), group);
+        }
+        File[] bases = getSourceBaseDirectories();
+        for (Iterator iter = all.values().iterator(); iter.hasNext();) {
+            File f = (File) iter.next();
+            String name = partitionByDirectory
+                ? getTopLevelDirectory(f, bases) : null;
+            Collection group = new ArrayList();
+            group.add(f);
+            addToGroup(groups, name == null ? "default" : name, group);
+        }
+        return groups;
+    }
+
+    private static void addToGroup(Map groups, String name, Collection files) {
+        if (files.size() == 0) {
+            return;
+        }
+        Collection group = (Collection) groups.get(name);
+        if (group == null) {
+            groups.put(name, files);
+        } else {
+            group.addAll(files);
+        }
+    }
 
+    /**
+     * the directories the sources are collected from
+     */
+    private File[] getSourceBaseDirectories() {
+        List l = new ArrayList();
+        if (getSrcDir() != null) {
+            l.add(getSrcDir());
+        }
+        for (int i = 0; i < filesets.size(); i++) {
+            l.add(((FileSet) filesets.elementAt(i)).getDir(getProject()));
+        }
+        return (File[]) l.toArray(new File[l.size()]);
+    }
+
+    /**
+     * the name of the directory directly below one of the base
+     * directories that contains the file, null if the file lives
+     * directly inside a base directory
+     */
+    private static String getTopLevelDirectory(File f, File[] bases) {
+        String path = f.getAbsolutePath();
+        for (int i = 0; i < bases.length; i++) {
+            String base = bases[i].getAbsolutePath() + File.separator;
+            if (path.startsWith(base)) {
+                String rest = path.substring(base.length());
+                int sep = rest.indexOf(File.separatorChar);
+                return sep < 0 ? null : rest.substring(0, sep);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * the module a partition is compiled to
+     */
+    private static File getPartitionModule(File assembly, String partition) {
+        String name = assembly.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            name = name.substring(0, dot);
+        }
+        StringBuffer sb = new StringBuffer(name).append('.');
+        for (int i = 0; i < partition.length(); i++) {
+            char c = partition.charAt(i);
+            sb.append(Character.isLetterOrDigit(c) || c == '-' || c == '_'
+                      ? c : '_');
+        }
+        return new File(assembly.getParentFile(),
+                        sb.append(".netmodule").toString());
+    }
+
+    /**
+     * the module holding the code of a split compilation
+     */
+    private File getCodeModule() {
+        return getModule(".code.netmodule");
+    }
+
+    /**
+     * the module holding the resources of a split compilation
+     */
+    private File getResourceModule() {
+        return getModule(".resources.netmodule");
+    }
+
+    private File getModule(String suffix) {
+        String name = splitAssembly.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            name = name.substring(0, dot);
+        }
+        return new File(splitAssembly.getParentFile(), name + suffix);
+    }
+
+    /**
+     * Records why a compilation is out of date.
+     */
+    private void recordRebuildReasons(BuildPlan plan) {
+        if (!RebuildReasons.isEnabled(getProject())) {
+            return;
+        }
+        File output = plan.getOutputFile();
+        if (plan.getOutputTimestamp() == 0) {
+            RebuildReasons.record(this, RebuildReasons.MISSING, null, output);
+            return;
+        }
+        Set references = new HashSet(plan.getReferences());
+        String referenceComparison = isApiReferenceCheck()
+            ? RebuildReasons.HASH : RebuildReasons.REFERENCE;
+        for (Iterator iter = plan.getStaleInputs().iterator(); iter.hasNext();) {
+            Object input = iter.next();
+            RebuildReasons.record(this, references.contains(input)
+                                  ? referenceComparison : RebuildReasons.MTIME,
+                                  input, output);
+        }
+    }
+
+    /**
+     * Adds the files newer than the output to a collection, only
+     * those are logged as a compilation may have many thousands of
+     * inputs.
+     */
+    private void addStaleInputs(FileTimestamps timestamps, Collection files,
+                                long outputTimestamp, Collection stale) {
+        if (files instanceof PathList) {
+            PathList paths = (PathList) files;
+            long[] modified = timestamps.lastModified(paths);
+            for (int i = 0; i < modified.length; i++) {
+                if (modified[i] > outputTimestamp) {
+                    stale.add(paths.get(i));
+                    log(paths.getPath(i) + " is out of date",
+                        Project.MSG_VERBOSE);
+                }
+            }
+            return;
+        }
+        timestamps.readAll(files);
+        Iterator iter = files.iterator();
+        while (iter.hasNext()) {
+            File file = (File) iter.next();
+            if (timestamps.lastModified(file) > outputTimestamp) {
+                stale.add(file);
+                log(file.toString() + " is out of date", Project.MSG_VERBOSE);
+            }
+        }
+    }
+
+    private void clearScannedResources() {
+        Enumeration e = resources.elements();
+        while (e.hasMoreElements()) {
+            ((DotnetResource) e.nextElement()).clearScannedFiles();
+        }
     }
 
     /**
@@ -854,7 +1975,11 @@ public abstract class DotnetCompile
         command.addArgument(getAdditionalModulesParameter());
         command.addArgument(getDebugParameter());
         command.addArgument(getDefinitionsParameter());
+        command.addArgument(getToolSwitchParameter("deterministic",
+                                                   deterministic));
+        command.addArgument(getToolSwitchParameter("shared", useServer));
         command.addArguments(getExtraOptionsParameters());
+        command.addArgument(getKeyfileParameter());
         command.addArgument(getMainClassParameter());
         command.addArgument(getOptimizeParameter());
         command.addArgument(getDestFileParameter());
@@ -887,40 +2012,112 @@ public abstract class DotnetCompile
 
 
     /**
-     * run through the list of reference files and add them to the command
-     * @param outputTimestamp timestamp to compare against
-     * @return number of files out of date
+     * add the references of the build plan to the command
+     * @param command the command to append to
+     * @param plan the plan to execute
      */
+    protected void addReferences(NetCommand command, BuildPlan plan) {
+        Iterator iter = plan.getReferences().iterator();
+        while (iter.hasNext()) {
+            File file = (File) iter.next();
+            if (isWindows) command.addArgument('"'+REFERENCE_OPTION+file.toString()+'"');
+            else command.addArgument(REFERENCE_OPTION+file.toString());
+        }
+    }
 
-    protected int addReferenceFilesets(NetCommand command, long outputTimestamp) {
-        int filesOutOfDate = 0;
+    /**
+     * Collects the managed assemblies of the nested reference
+     * filesets and the probe path, without the pruned ones.
+     * @return collection of File instances
+     */
+    private Collection collectReferences() {
         Hashtable filesToBuild = new Hashtable();
         for (int i = 0; i < referenceFilesets.size(); i++) {
             FileSet fs = (FileSet) referenceFilesets.elementAt(i);
-            filesOutOfDate += command.scanOneFileset(
-                    fs.getDirectoryScanner(getProject()),
-                    filesToBuild,
-                    outputTimestamp);
+            collectFiles(fs.getDirectoryScanner(getProject()), filesToBuild);
         }
-        //bail out early if there were no files
-        if (filesToBuild.size() == 0) {
-            return 0;
+        if (probePath != null) {
+            addReferenceClosure(filesToBuild);
         }
-        //now scan the hashtable and add the files
+        Collection result = new ArrayList();
         Enumeration files = filesToBuild.elements();
         while (files.hasMoreElements()) {
             File file = (File) files.nextElement();
-            if (isFileManagedBinary(file)) {
-                if (isWindows) command.addArgument('"'+REFERENCE_OPTION+file.toString()+'"');
-                else command.addArgument(REFERENCE_OPTION+file.toString());
-            } else {
+            if (!isFileManagedBinary(file)) {
                 log("ignoring " + file + " as it is not a managed executable",
                         Project.MSG_VERBOSE);
+            } else if (referenceUsage == null || !referenceUsage.isPruned(file)) {
+                result.add(file);
             }
+        }
+        return result;
+    }
 
+    /**
+     * Adds the assemblies named by referenceNames and all assemblies
+     * the references depend upon that can be found on the probe path.
+     * @param filesToBuild the references found so far
+     */
+    private void addReferenceClosure(Hashtable filesToBuild) {
+        AssemblyIndex index = new AssemblyIndex(getProject(), probePath.list());
+        Collection roots = new ArrayList(filesToBuild.values());
+        if (notEmpty(referenceNames)) {
+            String[] names = referenceNames.split(";");
+            for (int i = 0; i < names.length; i++) {
+                String name = names[i].trim();
+                if (name.length() == 0) {
+                    continue;
+                }
+                File f = index.resolve(name);
+                if (f == null) {
+                    throw new BuildException("Assembly " + name
+                                             + " not found on the probe path",
+                                             getLocation());
+                }
+                roots.add(f);
+            }
+        }
+        Collection unresolved = new ArrayList();
+        Collection closure = index.getClosure(roots, unresolved);
+        for (Iterator iter = closure.iterator(); iter.hasNext();) {
+            File f = (File) iter.next();
+            if (filesToBuild.get(f) == null) {
+                filesToBuild.put(f, f);
+            }
+        }
+        log("resolved " + closure.size() + " references using the probe path",
+            Project.MSG_VERBOSE);
+        for (Iterator iter = unresolved.iterator(); iter.hasNext();) {
+            log("not on the probe path: " + iter.next(), Project.MSG_VERBOSE);
         }
+    }
+
+    /**
+     * Whether the reference check is based on API fingerprints.
+     */
+    private boolean isApiReferenceCheck() {
+        return ReferenceCheck.API.equals(referenceCheck)
+            && getDestFile() != null;
+    }
 
-        return filesOutOfDate;
+    /**
+     * Filters the references newer than the output down to those
+     * whose public surface has changed since the last build.
+     */
+    private Collection getApiChanges(Collection staleReferences) {
+        Collection changed = new ArrayList();
+        Iterator iter = staleReferences.iterator();
+        while (iter.hasNext()) {
+            File file = (File) iter.next();
+            if (referenceFingerprints.hasApiChanged(file)) {
+                changed.add(file);
+            }
+        }
+        if (changed.size() == 0) {
+            log("references have changed but their APIs have not",
+                Project.MSG_VERBOSE);
+        }
+        return changed;
     }
 
     /**
@@ -929,6 +2126,7 @@ public abstract class DotnetCompile
      */
     protected NetCommand createNetCommand() {
         NetCommand command = new NetCommand(this, getTaskName(), getExecutable());
+        command.setTimeout(timeout);
         return command;
     }
 
@@ -950,13 +2148,14 @@ public abstract class DotnetCompile
     /**
      * test for a file being managed or not
      * @return true if we think this is a managed executable, and thus OK
-     * for linking
-     * @todo look at the PE header of the exe and see if it is managed or not.
+     * for linking. Existing files must have a CLI header in their PE
+     * header.
      */
     protected static boolean isFileManagedBinary(File file) {
         String filename = file.toString().toLowerCase();
-        return filename.endsWith(".exe") || filename.endsWith(".dll")
-                || filename.endsWith(".netmodule");
+        return (filename.endsWith(".exe") || filename.endsWith(".dll")
+                || filename.endsWith(".netmodule"))
+            && isManagedPeFile(file);
     }
 
     /**
@@ -974,6 +2173,161 @@ public abstract class DotnetCompile
         }
     }
 
+    /**
+     * A planned compilation with its command line.
+     */
+    private class Compilation {
+        private final BuildPlan plan;
+        private final NetCommand command;
+        private final ReferenceFingerprints fingerprints;
+        private int linkedCount = 0;
+        private long linkedBytes = 0;
+        private List deployments = Collections.EMPTY_LIST;
+        /**
+         * whether the command fails even if failOnError is false
+         */
+        private boolean failureForced = false;
+        private BuildException forcedFailure;
+
+        Compilation(BuildPlan plan, NetCommand command,
+                    ReferenceFingerprints fingerprints) {
+            this.plan = plan;
+            this.command = command;
+            this.fingerprints = fingerprints;
+        }
+
+        /**
+         * how long the compiler is expected to run, 0 if the output
+         * is up to date and Long.MAX_VALUE if it has never run
+         * before
+         */
+        long getEstimate() {
+            if (!plan.isOutOfDate()) {
+                return 0;
+            }
+            long estimate = TaskHistory.getInstance(getProject())
+                .getEstimate(TaskHistory.getKey(DotnetCompile.this,
+                                                getTaskName(),
+                                                plan.getOutputFile()));
+            return estimate < 0 ? Long.MAX_VALUE : estimate;
+        }
+
+        /**
+         * runs the compiler if the output is out of date
+         */
+        void run() {
+            File output = plan.getOutputFile();
+            if (!plan.isOutOfDate()) {
+                log((output == null ? "output file" : output.toString())
+                    + " is up to date", Project.MSG_VERBOSE);
+                PlanMode.recordUpToDate(DotnetCompile.this, getTaskName(),
+                                        output);
+                return;
+            }
+            recordRebuildReasons(plan);
+            String reason = PlanMode.getReason(output,
+                                               plan.getOutputTimestamp(),
+                                               plan.getStaleInputs().size(),
+                                               plan.getInputCount());
+            if (!PlanMode.shouldRun(DotnetCompile.this, getTaskName(), output,
+                                    reason, plan.getStaleInputs())) {
+                if (output != null) {
+                    plannedModules.add(output);
+                }
+                return;
+            }
+            long start = System.currentTimeMillis();
+            try {
+                command.runCommand();
+            } catch (BuildException e) {
+                if (!failureForced) {
+                    throw e;
+                }
+                forcedFailure = e;
+                return;
+            }
+            logLinkedResources(System.currentTimeMillis() - start);
+            for (Iterator iter = deployments.iterator(); iter.hasNext();) {
+                DotnetResource.deploy(DotnetCompile.this,
+                                      (File[]) iter.next());
+            }
+        }
+
+        /**
+         * updates the state of the reference check
+         */
+        void finish() {
+            if (fingerprints != null) {
+                if (plan.getOutputFile().lastModified()
+                    > plan.getOutputTimestamp()) {
+                    fingerprints.record(plan.getReferences());
+                } else {
+                    fingerprints.save();
+                }
+            }
+        }
+
+        /**
+         * Reports the resources linked because of their size
+         * together with the size of the output and the time the
+         * compiler took.
+         */
+        private void logLinkedResources(long duration) {
+            if (linkedCount == 0) {
+                return;
+            }
+            StringBuffer sb = new StringBuffer("Linked ");
+            sb.append(linkedCount).append(" resource")
+                .append(linkedCount == 1 ? "" : "s");
+            sb.append(" (").append(linkedBytes)
+                .append(" bytes) instead of embedding ");
+            sb.append(linkedCount == 1 ? "it" : "them");
+            File output = plan.getOutputFile();
+            if (output != null) {
+                sb.append(", ").append(output.getName()).append(" has ");
+                sb.append(output.length()).append(" bytes");
+            }
+            sb.append(", compilation took ").append(duration).append(" ms");
+            log(sb.toString());
+        }
+    }
+
+    /**
+     * What to do with the usage of references.
+     * valid modes are ignore|record|prune
+     * @since .NET Antlib 1.2
+     */
+    public static class ReferenceUsageMode extends EnumeratedAttribute {
+        public static final String IGNORE = "ignore";
+        public static final String RECORD = "record";
+        public static final String PRUNE = "prune";
+
+        public String[] getValues() {
+            return new String[] {
+                IGNORE,
+                RECORD,
+                PRUNE
+            };
+        }
+    }
+
+    /**
+     * Ways to check references for changes.
+     * valid checks are timestamp|api
+     * @since .NET Antlib 1.2
+     */
+    public static class ReferenceCheck extends EnumeratedAttribute {
+        public static final String TIMESTAMP = "timestamp";
+        public static final String API = "api";
+
+        public String[] getValues() {
+            return new String[] {
+                TIMESTAMP,
+                API
+            };
+        }
+    }
+
 
 }
 
@@ -18,13 +18,22 @@
 package org.apache.ant.dotnet.compile;
 
 import org.apache.ant.dotnet.NetCommand;
+import org.apache.ant.dotnet.util.PlanMode;
 import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Task;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import org.apache.tools.ant.types.FileSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import org.apache.tools.ant.*;
+import org.apache.tools.ant.util.FileUtils;
 
 /**
  * Used by {@link DotnetCompile} to name resources.
@@ -33,6 +42,8 @@ import org.apache.tools.ant.*;
  */
 public class DotnetResource {
 
+    private static final FileUtils FILE_UTILS = FileUtils.getFileUtils();
+
     /**
      * name of resource
      */
@@ -63,6 +74,54 @@ public class DotnetResource {
      */
     private String namespace = null;
 
+    /**
+     * files and resource names found by the planning phase of the
+     * current compilation, null outside of a compilation
+     */
+    private List scannedEntries = null;
+
+    /**
+     * .resx files that need to be converted, File[] {source, target}
+     */
+    private List conversions = new ArrayList();
+
+    /**
+     * where to place .resources files generated from .resx files,
+     * null means next to the .resx file
+     */
+    private File resgenDir = null;
+
+    private String resgenExecutable = "resgen";
+
+    private int resgenThreads = 0;
+
+    private int resgenBatchSize = ResourceGenerator.DEFAULT_BATCH_SIZE;
+
+    /**
+     * files bigger than this are linked rather than embedded, a
+     * negative value disables the check
+     */
+    private long linkThreshold = -1;
+
+    /**
+     * content addressed directory for linked resources, null if
+     * linked resources are used in place
+     */
+    private File packDir = null;
+
+    /**
+     * number and total size of the files the current compilation
+     * links because of the threshold
+     */
+    private int linkedCount = 0;
+    private long linkedBytes = 0;
+
+    /**
+     * files the current compilation links because of the threshold
+     * or from the resource pack
+     */
+    private final List linkedFiles = new ArrayList();
+
     public boolean isEmbed() {
         return embed;
     }
@@ -124,6 +183,91 @@ public class DotnetResource {
         return namespace;
     }
 
+    /**
+     * Directory to place the .resources files generated from .resx
+     * files in.  Defaults to the directory of the .resx file.
+     *
+     * @param dir the directory
+     * @since .NET Antlib 1.2
+     */
+    public void setResgenDir(File dir) {
+        resgenDir = dir;
+    }
+
+    /**
+     * The resgen executable, defaults to "resgen".
+     *
+     * @param executable name or full path of resgen
+     * @since .NET Antlib 1.2
+     */
+    public void setResgenExecutable(String executable) {
+        resgenExecutable = executable;
+    }
+
+    /**
+     * Maximum number of resgen processes to run in parallel, defaults
+     * to the number of available processors.
+     *
+     * @param threads number of processes
+     * @since .NET Antlib 1.2
+     */
+    public void setResgenThreads(int threads) {
+        resgenThreads = threads;
+    }
+
+    /**
+     * Maximum number of .resx files converted by a single resgen
+     * process.
+     *
+     * @param size number of files
+     * @since .NET Antlib 1.2
+     */
+    public void setResgenBatchSize(int size) {
+        resgenBatchSize = size;
+    }
+
+    /**
+     * Files bigger than the given number of bytes are linked rather
+     * than embedded, even if embed is true.
+     *
+     * @param threshold size in bytes
+     * @since .NET Antlib 1.2
+     */
+    public void setLinkThreshold(long threshold) {
+        linkThreshold = threshold;
+    }
+
+    /**
+     * Directory of a content addressed resource pack.  If set, linked
+     * resources are copied to the pack and linked from there.
+     *
+     * @param dir the directory
+     * @since .NET Antlib 1.2
+     */
+    public void setPackDir(File dir) {
+        packDir = dir;
+    }
+
+    /**
+     * Number of files the current compilation links rather than
+     * embeds because they are bigger than the link threshold.
+     *
+     * @since .NET Antlib 1.2
+     */
+    public int getLinkedCount() {
+        return linkedCount;
+    }
+
+    /**
+     * Total size of the files the current compilation links rather
+     * than embeds because they are bigger than the link threshold.
+     *
+     * @since .NET Antlib 1.2
+     */
+    public long getLinkedBytes() {
+        return linkedBytes;
+    }
+
     /**
      * Sets filesets root namespace.
      * 
@@ -158,7 +302,192 @@ public class DotnetResource {
      * build the C# style parameter (which has no public/private option)
      */
     public void getParameters(Project p, NetCommand command, boolean csharpStyle) {
+        List entries = scannedEntries != null ? scannedEntries : scan(p);
+        for (Iterator iter = entries.iterator(); iter.hasNext();) {
+            String[] entry = (String[]) iter.next();
+            command.addArgument(getParameter(entry[0], entry[1],
+                                             entry[2] == null && isEmbed(),
+                                             csharpStyle));
+        }
+    }
+
+    /**
+     * The files of this resource.
+     *
+     * <p>.resx files are replaced by the .resources files generated
+     * from them, stale .resources files are generated.</p>
+     *
+     * <p>The result is kept until {@link #clearScannedFiles
+     * clearScannedFiles} is called so that the command line built
+     * later uses the same files without scanning the filesets
+     * again.</p>
+     *
+     * @param owner the compiling task
+     * @since .NET Antlib 1.2
+     */
+    public File[] getScannedFiles(Task owner) {
+        scannedEntries = scan(owner.getProject());
+        if (conversions.size() > 0) {
+            new ResourceGenerator(owner, resgenExecutable, resgenThreads,
+                                  resgenBatchSize).generate(conversions);
+        }
+        if (linkThreshold >= 0 || packDir != null) {
+            applyLinking(owner);
+        }
+        Map planned = new HashMap();
+        if (PlanMode.isEnabled(owner.getProject())) {
+            // stale .resources files have not been generated, their
+            // .resx files stand in for them
+            for (Iterator iter = conversions.iterator(); iter.hasNext();) {
+                File[] c = (File[]) iter.next();
+                if (c[1].lastModified() < c[0].lastModified()) {
+                    planned.put(c[1].toString(), c[0]);
+                }
+            }
+        }
+        File[] result = new File[scannedEntries.size()];
+        for (int i = 0; i < result.length; i++) {
+            String file = ((String[]) scannedEntries.get(i))[0];
+            result[i] = planned.containsKey(file)
+                ? (File) planned.get(file) : new File(file);
+        }
+        return result;
+    }
+
+    /**
+     * Forgets the files found by {@link #getScannedFiles
+     * getScannedFiles}.
+     *
+     * @since .NET Antlib 1.2
+     */
+    public void clearScannedFiles() {
+        scannedEntries = null;
+        conversions.clear();
+        linkedCount = 0;
+        linkedBytes = 0;
+        linkedFiles.clear();
+    }
+
+    /**
+     * The files linked by the current compilation because of their
+     * size or from the resource pack.
+     *
+     * <p>The compiler only records the name of a linked file, the
+     * runtime looks for it next to the assembly.</p>
+     *
+     * @param dir the directory of the assembly
+     * @return list of File[] {linked file, file next to the assembly,
+     * the pack directory if the linked file is part of the pack}
+     * @since .NET Antlib 1.2
+     */
+    public List getDeployments(File dir) {
+        List result = new ArrayList();
+        for (Iterator iter = linkedFiles.iterator(); iter.hasNext();) {
+            File f = (File) iter.next();
+            result.add(new File[] {f, new File(dir, f.getName()), packDir});
+        }
+        return result;
+    }
+
+    /**
+     * Whether the file next to the assembly is missing or older than
+     * the linked file.
+     *
+     * @param deployment one of the entries of {@link #getDeployments
+     * getDeployments}
+     * @since .NET Antlib 1.2
+     */
+    public static boolean needsDeployment(File[] deployment) {
+        File source = deployment[0];
+        File target = deployment[1];
+        return !source.getAbsoluteFile().equals(target.getAbsoluteFile())
+            && (target.length() != source.length()
+                || target.lastModified() < source.lastModified());
+    }
+
+    /**
+     * Places a linked file next to the assembly unless it is there
+     * already.  Files of the resource pack never change and are hard
+     * linked if the file system supports it, all others are copied.
+     *
+     * @param owner the compiling task
+     * @param deployment one of the entries of {@link #getDeployments
+     * getDeployments}
+     * @since .NET Antlib 1.2
+     */
+    public static void deploy(Task owner, File[] deployment) {
+        if (!needsDeployment(deployment)) {
+            return;
+        }
+        File source = deployment[0];
+        File target = deployment[1];
+        target.delete();
+        if (deployment[2] != null) {
+            try {
+                Files.createLink(target.toPath(), source.toPath());
+                owner.log("Linked " + target + " to " + source,
+                          Project.MSG_VERBOSE);
+                return;
+            } catch (IOException e) {
+                owner.log("Can't link " + target + " to " + source + ": " + e
+                          + ", copying it", Project.MSG_VERBOSE);
+            } catch (UnsupportedOperationException e) {
+                owner.log("Can't link " + target + " to " + source + ": " + e
+                          + ", copying it", Project.MSG_VERBOSE);
+            }
+        }
+        owner.log("Copying " + source + " to " + target, Project.MSG_VERBOSE);
+        try {
+            FILE_UTILS.copyFile(source, target, null, true, true);
+        } catch (IOException e) {
+            throw new BuildException("Failed to copy " + source + " to "
+                                     + target, e, owner.getLocation());
+        }
+    }
+
+    /**
+     * decides which files to link because of their size and moves
+     * linked files to the resource pack
+     */
+    private void applyLinking(Task owner) {
+        ResourcePack pack = packDir == null ? null
+            : new ResourcePack(owner, packDir);
+        for (Iterator iter = scannedEntries.iterator(); iter.hasNext();) {
+            String[] entry = (String[]) iter.next();
+            File f = new File(entry[0]);
+            long length = f.length();
+            if (isEmbed() && linkThreshold >= 0 && length > linkThreshold) {
+                entry[2] = "link";
+                linkedCount++;
+                linkedBytes += length;
+                owner.log("linking " + f + " (" + length
+                          + " bytes) instead of embedding it",
+                          Project.MSG_VERBOSE);
+            }
+            boolean linked = entry[2] != null;
+            if (pack != null && (linked || !isEmbed()) && f.isFile()) {
+                // the file keeps its name, so does the resource
+                entry[0] = pack.add(f).toString();
+                linked = true;
+            }
+            if (linked) {
+                linkedFiles.add(new File(entry[0]));
+            }
+        }
+        if (pack != null) {
+            pack.save();
+        }
+    }
+
+    /**
+     * the files and resource names of this resource
+     * @return list of String[] {file name, resource name or null,
+     * non-null if the file is linked because of its size}
+     */
+    private List scan(Project p) {
         checkParameters();
+        conversions.clear();
+        List entries = new ArrayList();
         if (hasFilesets()) {
             for (Iterator listIter = fileSets.iterator(); listIter.hasNext();) {
                 FileSet fs = (FileSet) listIter.next();
@@ -168,19 +497,117 @@ public class DotnetResource {
                 String[] files = ds.getIncludedFiles();
                 for (int i = 0; i < files.length; i++) {
                     String file = files[i];
-                    command.addArgument(getParameter(baseDirectory + File.separatorChar + file,
+                    String fileName = isResx(file)
+                        ? mapResx(new File(baseDirectory, file), file).toString()
+                        : baseDirectory + File.separatorChar + file;
+                    entries.add(new String[] {fileName,
                             (namespace == null ? null : namespace
-                                    + file.replace(File.separatorChar, '.')), csharpStyle));
+                                    + toResourcesName(file).replace(File.separatorChar, '.')),
+                            null});
                 }
             }
         } else {
-            command.addArgument(getParameter(getFile().toString(), getName(), csharpStyle));
+            String fileName = isResx(getFile().getName())
+                ? mapResx(getFile(), getFile().getName()).toString()
+                : getFile().toString();
+            entries.add(new String[] {fileName, getName(), null});
+        }
+        return entries;
+    }
+
+    /**
+     * registers the conversion of a .resx file
+     * @param source the .resx file
+     * @param relativeName path relative to the fileset's base
+     * directory or file name
+     * @return the .resources file to pass to the compiler
+     */
+    private File mapResx(File source, String relativeName) {
+        File target = getResourcesFile(source, relativeName);
+        conversions.add(new File[] {source, target});
+        return target;
+    }
+
+    /**
+     * the .resources file generated from a .resx file
+     */
+    private File getResourcesFile(File source, String relativeName) {
+        return resgenDir == null
+            ? new File(source.getParentFile(), toResourcesName(source.getName()))
+            : new File(resgenDir, toResourcesName(relativeName));
+    }
+
+    /**
+     * Adds the files of this resource to the inputs - .resx files
+     * rather than the .resources files generated from them, which
+     * are outputs.
+     *
+     * @param p the project
+     * @param inputs the existing files read
+     * @param filesets the filesets scanned
+     * @param outputs the files generated
+     * @param dir the directory of the assembly linked files are
+     * placed in, may be null
+     * @since .NET Antlib 1.2
+     */
+    public void addWatchedFiles(Project p, Collection inputs,
+                                Collection filesets, Collection outputs,
+                                File dir) {
+        if (getFile() != null) {
+            addWatchedFile(getFile(), getFile().getName(), inputs, outputs,
+                           dir);
         }
+        for (Iterator iter = fileSets.iterator(); iter.hasNext();) {
+            FileSet fs = (FileSet) iter.next();
+            File base = fs.getDir(p);
+            String[] files = fs.getDirectoryScanner(p).getIncludedFiles();
+            for (int i = 0; i < files.length; i++) {
+                addWatchedFile(new File(base, files[i]), files[i], inputs,
+                               outputs, dir);
+            }
+            filesets.add(fs);
+        }
+    }
+
+    private void addWatchedFile(File f, String relativeName,
+                                Collection inputs, Collection outputs,
+                                File dir) {
+        inputs.add(f);
+        File used = f;
+        if (isResx(relativeName)) {
+            used = getResourcesFile(f, relativeName);
+            outputs.add(used);
+        }
+        if (dir != null && isLinked(used)) {
+            outputs.add(new File(dir, used.getName()));
+        }
+    }
+
+    /**
+     * whether the file is linked because of its size or from the
+     * resource pack
+     */
+    private boolean isLinked(File f) {
+        return isEmbed() ? linkThreshold >= 0 && f.length() > linkThreshold
+            : packDir != null;
+    }
+
+    private static boolean isResx(String name) {
+        return name.toLowerCase().endsWith(".resx");
+    }
+
+    /**
+     * replaces the .resx extension with .resources
+     */
+    private static String toResourcesName(String name) {
+        return isResx(name)
+            ? name.substring(0, name.length() - 5) + ".resources" : name;
     }
 
-    private String getParameter(String fileName, String name, boolean csharpStyle) {
+    private String getParameter(String fileName, String name, boolean embed,
+                                boolean csharpStyle) {
         StringBuffer buffer = new StringBuffer();
-        buffer.append(isEmbed() ? "/resource" : "/linkresource");
+        buffer.append(embed ? "/resource" : "/linkresource");
         buffer.append(':');
         buffer.append(fileName);
         if (name != null) {
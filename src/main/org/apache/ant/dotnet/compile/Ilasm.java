@@ -25,8 +25,11 @@ package org.apache.ant.dotnet.compile;
 
 
 import java.io.File;
+import java.util.Collection;
+import java.util.Hashtable;
 import java.util.Vector;
 
+import org.apache.ant.dotnet.ArtifactGraph;
 import org.apache.ant.dotnet.NetCommand;
 
 import org.apache.tools.ant.BuildException;
@@ -459,10 +462,13 @@ public class Ilasm
      */
     public void execute()
              throws BuildException {
+        if (ArtifactGraph.isUpToDate(this)) {
+            return;
+        }
         NetCommand command = buildIlasmCommand();
 
         addFilesAndExecute(command, false);
-
+        ArtifactGraph.record(this);
     }
     // end execute
 
@@ -474,6 +480,8 @@ public class Ilasm
     private NetCommand buildIlasmCommand() {
         NetCommand command = new NetCommand(this, exe_title, exe_name);
         command.setFailOnError(getFailOnError());
+        command.setOutputFile(getDestFile());
+        command.setTimeout(timeout);
         //fill in args
         command.addArgument(getDebugParameter());
         command.addArgument(getTargetTypeParameter());
@@ -500,16 +508,40 @@ public class Ilasm
         referenceFilesets.add(reference);
     }
 
+    /**
+     * Adds references, resource file and key file to the inputs of
+     * the base class.
+     * @since .NET Antlib 1.2
+     */
+    public void addWatchedFiles(Collection inputs, Collection filesets,
+                                Collection outputs) {
+        super.addWatchedFiles(inputs, filesets, outputs);
+        Hashtable references = new Hashtable();
+        for (int i = 0; i < referenceFilesets.size(); i++) {
+            FileSet fs = (FileSet) referenceFilesets.elementAt(i);
+            collectFiles(fs.getDirectoryScanner(getProject()), references);
+        }
+        inputs.addAll(references.values());
+        filesets.addAll(referenceFilesets);
+        if (resourceFile != null) {
+            inputs.add(resourceFile);
+        }
+        if (keyfile != null) {
+            inputs.add(keyfile);
+        }
+    }
+
     /**
      * test for a file being managed or not
      * @return true if we think this is a managed executable, and thus OK
-     * for linking
-     * @todo look at the PE header of the exe and see if it is managed or not.
+     * for linking. Existing files must have a CLI header in their PE
+     * header.
      */
     protected static boolean isFileManagedBinary(File file) {
         String filename = file.toString().toLowerCase();
-        return filename.endsWith(".exe") || filename.endsWith(".dll")
-                || filename.endsWith(".netmodule");
+        return (filename.endsWith(".exe") || filename.endsWith(".dll")
+                || filename.endsWith(".netmodule"))
+            && isManagedPeFile(file);
     }
 
 
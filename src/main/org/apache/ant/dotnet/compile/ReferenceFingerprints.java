@@ -0,0 +1,139 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.apache.ant.dotnet.compile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Properties;
+
+import org.apache.ant.dotnet.metadata.ApiFingerprintCache;
+import org.apache.ant.dotnet.util.StateFiles;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+
+/**
+ * Remembers the API fingerprints of the references used by the last
+ * successful compilation of an output file.
+ *
+ * <p>Entries map the absolute path of a reference to its timestamp
+ * and fingerprint, separated by a semicolon.  The timestamp avoids
+ * reading references that haven't been touched since their
+ * fingerprint has been taken.</p>
+ *
+ * @since .NET Antlib 1.2
+ */
+public class ReferenceFingerprints {
+
+    private static final String SUFFIX = ".refapi";
+
+    private final Task owner;
+    private final File stateFile;
+    private final Properties recorded;
+    private final ApiFingerprintCache cache;
+    private boolean dirty = false;
+
+    /**
+     * @param owner the compiling task
+     * @param outputFile the file created by the compiler
+     */
+    public ReferenceFingerprints(Task owner, File outputFile) {
+        this.owner = owner;
+        Project p = owner.getProject();
+        stateFile = StateFiles.getStateFile(p, outputFile, SUFFIX);
+        recorded = StateFiles.load(p, stateFile);
+        cache = ApiFingerprintCache.getInstance(p);
+    }
+
+    /**
+     * Whether the public surface of the reference differs from the
+     * one seen by the last compilation.
+     */
+    public boolean hasApiChanged(File reference) {
+        String key = reference.getAbsolutePath();
+        String entry = recorded.getProperty(key);
+        if (entry == null) {
+            owner.log(reference + " has not been used by the last build",
+                      Project.MSG_VERBOSE);
+            return true;
+        }
+        int sep = entry.indexOf(';');
+        String timestamp = String.valueOf(reference.lastModified());
+        if (timestamp.equals(entry.substring(0, sep))) {
+            return false;
+        }
+        String fingerprint = getFingerprint(reference);
+        if (fingerprint == null
+            || !fingerprint.equals(entry.substring(sep + 1))) {
+            owner.log("The API of " + reference + " has changed",
+                      Project.MSG_VERBOSE);
+            return true;
+        }
+        owner.log("Only the implementation of " + reference
+                  + " has changed", Project.MSG_VERBOSE);
+        // remember the new timestamp so we don't need to read it again
+        recorded.setProperty(key, timestamp + ";" + fingerprint);
+        dirty = true;
+        return false;
+    }
+
+    /**
+     * Records the fingerprints of all references of a successful
+     * compilation and persists them.
+     *
+     * @param references collection of File instances
+     */
+    public void record(Collection references) {
+        recorded.clear();
+        Iterator iter = references.iterator();
+        while (iter.hasNext()) {
+            File reference = (File) iter.next();
+            String fingerprint = getFingerprint(reference);
+            if (fingerprint != null) {
+                recorded.setProperty(reference.getAbsolutePath(),
+                                     reference.lastModified() + ";"
+                                     + fingerprint);
+            }
+        }
+        dirty = true;
+        save();
+    }
+
+    /**
+     * Persists the state if it has been modified.
+     */
+    public void save() {
+        if (dirty) {
+            StateFiles.store(owner.getProject(), recorded, stateFile,
+                             "API fingerprints of references");
+            dirty = false;
+        }
+        cache.save();
+    }
+
+    private String getFingerprint(File reference) {
+        try {
+            return cache.getFingerprint(reference);
+        } catch (IOException e) {
+            owner.log("Failed to read " + reference + ": " + e.getMessage(),
+                      Project.MSG_VERBOSE);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.apache.ant.dotnet.compile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.ant.dotnet.metadata.AssemblyName;
+import org.apache.ant.dotnet.metadata.MetadataCache;
+import org.apache.ant.dotnet.util.StateFiles;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+
+/**
+ * Remembers which of the references passed to the compiler the
+ * output of the last successful compilation actually binds to.
+ *
+ * <p>A reference is considered used if its simple name appears in
+ * the AssemblyRef table of the output.  Compilers sometimes need
+ * references that don't end up there (assemblies defining base
+ * types of used types, for example), references that had to be
+ * restored after a failed compilation are marked as required and
+ * are never pruned again.  A failure is only blamed on the pruned
+ * references if the compiler reports a missing type or assembly, and
+ * the references are only recorded as required once the compilation
+ * with all references has succeeded.</p>
+ *
+ * <p>Entries map the reference as it has been passed to the compiler
+ * - the absolute path for files - to one of "used", "unused" or
+ * "required".</p>
+ *
+ * @since .NET Antlib 1.2
+ */
+public class ReferenceUsage {
+
+    private static final String SUFFIX = ".refusage";
+
+    private static final String USED = "used";
+    private static final String UNUSED = "unused";
+    private static final String REQUIRED = "required";
+
+    /**
+     * Diagnostics of the C#, VB.NET and F# compilers that report a
+     * type, namespace or assembly that can't be found.
+     */
+    private static final Set MISSING_REFERENCE_CODES = new HashSet(
+        Arrays.asList(new String[] {
+            "CS0012", "CS0234", "CS0246", "CS0400", "CS0518", "CS1069",
+            "BC30002", "BC30007", "BC30466", "BC30652",
+            "FS0039", "FS0074"
+        }));
+
+    private final Task owner;
+    private final File stateFile;
+    private final Properties recorded;
+    private final boolean prune;
+
+    /**
+     * reference to simple assembly name for all references seen by
+     * the current build
+     */
+    private final Map candidates = new LinkedHashMap();
+
+    /**
+     * references left out by the current build
+     */
+    private final List pruned = new ArrayList();
+
+    /**
+     * whether references have been marked as required by the
+     * current build
+     */
+    private boolean restored = false;
+
+    /**
+     * @param owner the compiling task
+     * @param outputFile the file created by the compiler
+     * @param prune whether references unused by the last build shall
+     * be left out
+     */
+    public ReferenceUsage(Task owner, File outputFile, boolean prune) {
+        this.owner = owner;
+        this.prune = prune;
+        stateFile = StateFiles.getStateFile(owner.getProject(), outputFile,
+                                            SUFFIX);
+        recorded = StateFiles.load(owner.getProject(), stateFile);
+    }
+
+    /**
+     * Registers a reference of the current build and tells whether
+     * it should be left out.
+     *
+     * @param reference the reference as passed to the compiler
+     * @param simpleName the simple name of the referenced assembly
+     * @return true if the reference has been pruned
+     */
+    public boolean isPruned(String reference, String simpleName) {
+        candidates.put(reference, simpleName);
+        if (prune && UNUSED.equals(recorded.getProperty(reference))) {
+            pruned.add(reference);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Registers a file reference of the current build and tells
+     * whether it should be left out.
+     *
+     * @return true if the reference has been pruned
+     */
+    public boolean isPruned(File reference) {
+        String simpleName = null;
+        try {
+            AssemblyName name = MetadataCache.getAssemblyName(reference);
+            if (name != null) {
+                simpleName = name.getName();
+            }
+        } catch (IOException e) {
+            owner.log("Failed to read " + reference + ": " + e.getMessage(),
+                      Project.MSG_VERBOSE);
+        }
+        if (simpleName == null) {
+            simpleName = getSimpleName(reference.getName());
+        }
+        return isPruned(reference.getAbsolutePath(), simpleName);
+    }
+
+    /**
+     * Whether the current build has left out any references.
+     */
+    public boolean hasPruned() {
+        return pruned.size() > 0;
+    }
+
+    /**
+     * Logs a warning listing the references left out by the current
+     * build.
+     */
+    public void logPruned() {
+        if (!hasPruned()) {
+            return;
+        }
+        StringBuffer sb = new StringBuffer("Pruned ");
+        sb.append(pruned.size());
+        sb.append(" reference(s) unused by the last build:");
+        for (Iterator iter = pruned.iterator(); iter.hasNext();) {
+            sb.append(' ').append(iter.next());
+        }
+        owner.log(sb.toString(), Project.MSG_WARN);
+    }
+
+    /**
+     * Whether a failed compilation may have been caused by the
+     * references left out by the current build.
+     *
+     * @param report the diagnostics of the failed compilation
+     */
+    public boolean isMissingReference(DiagnosticReport report) {
+        return hasPruned() && report != null
+            && report.containsAny(MISSING_REFERENCE_CODES);
+    }
+
+    /**
+     * Marks all references left out by the current build as required
+     * so they are passed to the compiler from now on.
+     *
+     * <p>This is persisted by {@link #record record} once the
+     * compilation with all references has succeeded.</p>
+     */
+    public void restorePruned() {
+        for (Iterator iter = pruned.iterator(); iter.hasNext();) {
+            recorded.setProperty((String) iter.next(), REQUIRED);
+        }
+        restored = true;
+        pruned.clear();
+    }
+
+    /**
+     * Records which references the output of a successful
+     * compilation binds to and persists the result.
+     */
+    public void record(File outputFile) {
+        Set used = new HashSet();
+        try {
+            AssemblyName[] refs =
+                MetadataCache.getReader(outputFile).getAssemblyReferences();
+            for (int i = 0; i < refs.length; i++) {
+                used.add(refs[i].getName().toLowerCase());
+            }
+        } catch (IOException e) {
+            owner.log("Can't read the references of " + outputFile + ": "
+                      + e.getMessage(), Project.MSG_VERBOSE);
+            if (restored) {
+                StateFiles.store(owner.getProject(), recorded, stateFile,
+                                 "usage of references");
+            }
+            return;
+        }
+        Properties result = new Properties();
+        int unused = 0;
+        for (Iterator iter = candidates.entrySet().iterator(); iter.hasNext();) {
+            Map.Entry e = (Map.Entry) iter.next();
+            String reference = (String) e.getKey();
+            String state;
+            if (REQUIRED.equals(recorded.getProperty(reference))) {
+                state = REQUIRED;
+            } else if (used.contains(((String) e.getValue()).toLowerCase())) {
+                state = USED;
+            } else {
+                state = UNUSED;
+                unused++;
+            }
+            result.setProperty(reference, state);
+        }
+        owner.log(outputFile + " doesn't use " + unused + " of "
+                  + candidates.size() + " references", Project.MSG_VERBOSE);
+        recorded.clear();
+        recorded.putAll(result);
+        StateFiles.store(owner.getProject(), recorded, stateFile,
+                         "usage of references");
+    }
+
+    /**
+     * The file name without directory and .dll/.exe extension.
+     */
+    static String getSimpleName(String reference) {
+        String name = new File(reference).getName();
+        String lower = name.toLowerCase();
+        if (lower.endsWith(".dll") || lower.endsWith(".exe")) {
+            name = name.substring(0, name.length() - 4);
+        }
+        return name;
+    }
+}
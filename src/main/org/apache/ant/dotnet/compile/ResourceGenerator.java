@@ -0,0 +1,193 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.apache.ant.dotnet.compile;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.ant.dotnet.NetCommand;
+import org.apache.ant.dotnet.util.PlanMode;
+import org.apache.ant.dotnet.util.Threads;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+
+/**
+ * Turns .resx files into .resources files using resgen.
+ *
+ * <p>Only files whose .resources file is missing or older than the
+ * .resx file are converted.  Conversions are grouped into batches
+ * that are handled by a single <code>resgen /compile</code> process
+ * each and several batches run in parallel.</p>
+ *
+ * @since .NET Antlib 1.2
+ */
+public class ResourceGenerator {
+
+    /**
+     * the default number of files converted by a single process
+     */
+    public static final int DEFAULT_BATCH_SIZE = 32;
+
+    private final Task owner;
+    private final String executable;
+    private final int threads;
+    private final int batchSize;
+
+    /**
+     * @param owner the task to log to
+     * @param executable the resgen executable
+     * @param threads maximum number of processes to run in parallel,
+     * values less than 1 mean one per available processor
+     * @param batchSize maximum number of files to convert per process
+     */
+    public ResourceGenerator(Task owner, String executable, int threads,
+                             int batchSize) {
+        this.owner = owner;
+        this.executable = executable;
+        this.threads = threads > 0
+            ? threads : Runtime.getRuntime().availableProcessors();
+        this.batchSize = batchSize > 0 ? batchSize : DEFAULT_BATCH_SIZE;
+    }
+
+    /**
+     * Converts the stale files.
+     *
+     * @param conversions list of File[] {source .resx, target
+     * .resources}
+     * @return the number of files that have been converted, in plan
+     * mode the number of files that would have been converted
+     * @throws BuildException if resgen fails
+     */
+    public int generate(List conversions) {
+        final LinkedList batches = new LinkedList();
+        List batch = new ArrayList();
+        int stale = 0;
+        for (Iterator iter = conversions.iterator(); iter.hasNext();) {
+            File[] c = (File[]) iter.next();
+            if (c[1].lastModified() >= c[0].lastModified()) {
+                continue;
+            }
+            stale++;
+            c[1].getParentFile().mkdirs();
+            batch.add(c);
+            if (batch.size() == batchSize) {
+                batches.add(batch);
+                batch = new ArrayList();
+            }
+        }
+        if (batch.size() > 0) {
+            batches.add(batch);
+        }
+        if (stale == 0) {
+            owner.log("all .resources files are up to date",
+                      Project.MSG_VERBOSE);
+            PlanMode.recordUpToDate(owner, "resgen", null);
+            return 0;
+        }
+        if (!PlanMode.shouldRun(owner, "resgen", null, stale + " of "
+                                + conversions.size() + " .resx files are"
+                                + " newer than their .resources files",
+                                getSources(batches))) {
+            return stale;
+        }
+        owner.log("Generating " + stale + " .resources file"
+                  + (stale == 1 ? "" : "s") + " in " + batches.size()
+                  + " batch" + (batches.size() == 1 ? "" : "es"));
+
+        final BuildException[] failure = new BuildException[1];
+        Runnable worker = new Runnable() {
+                public void run() {
+                    while (true) {
+                        List next;
+                        synchronized (batches) {
+                            if (batches.isEmpty() || failure[0] != null) {
+                                return;
+                            }
+                            next = (List) batches.removeFirst();
+                        }
+                        try {
+                            runBatch(next);
+                        } catch (BuildException e) {
+                            fail(e);
+                        } catch (RuntimeException e) {
+                            fail(new BuildException(e, owner.getLocation()));
+                        }
+                    }
+                }
+
+                private void fail(BuildException e) {
+                    synchronized (batches) {
+                        if (failure[0] == null) {
+                            failure[0] = e;
+                        }
+                    }
+                }
+            };
+        int count = Math.min(threads, batches.size());
+        Thread[] workers = new Thread[count - 1];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = Threads.newThread(owner.getProject(), worker,
+                                           "resgen-" + i);
+            workers[i].start();
+        }
+        // the current thread takes its share of the work
+        worker.run();
+        for (int i = 0; i < workers.length; i++) {
+            try {
+                workers[i].join();
+            } catch (InterruptedException e) {
+                throw new BuildException("interrupted while waiting for "
+                                         + "resgen", e, owner.getLocation());
+            }
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return stale;
+    }
+
+    /**
+     * The .resx files of all batches.
+     */
+    private static List getSources(List batches) {
+        List sources = new ArrayList();
+        for (Iterator iter = batches.iterator(); iter.hasNext();) {
+            for (Iterator b = ((List) iter.next()).iterator(); b.hasNext();) {
+                sources.add(((File[]) b.next())[0]);
+            }
+        }
+        return sources;
+    }
+
+    private void runBatch(List batch) {
+        NetCommand command = new NetCommand(owner, "resgen", executable);
+        command.setFailOnError(true);
+        // resgen doesn't support response files
+        command.setAutomaticResponseFileThreshold(0);
+        command.addArgument("/compile");
+        for (Iterator iter = batch.iterator(); iter.hasNext();) {
+            File[] c = (File[]) iter.next();
+            command.addArgument(c[0] + "," + c[1]);
+        }
+        command.runCommand();
+    }
+}
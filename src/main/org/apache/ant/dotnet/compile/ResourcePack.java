@@ -0,0 +1,138 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.apache.ant.dotnet.compile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+import org.apache.ant.dotnet.metadata.ApiFingerprint;
+import org.apache.ant.dotnet.util.StateFiles;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.util.FileUtils;
+
+/**
+ * A content addressed directory holding linked resources.
+ *
+ * <p>Each file is stored as <code>&lt;digest&gt;/&lt;name&gt;</code>
+ * below the pack directory, where digest is the SHA-1 hash of its
+ * content.  A file is only copied if the pack doesn't hold its
+ * content yet, so the pack is only touched when the resources change
+ * and not when code changes.</p>
+ *
+ * <p>Digests are remembered together with the timestamp and size of
+ * the file they have been calculated for, so big files are only read
+ * again after they have been modified.</p>
+ *
+ * @since .NET Antlib 1.2
+ */
+public class ResourcePack {
+
+    private static final String DIGEST_FILE = "resource-digests.properties";
+
+    private static final FileUtils FILE_UTILS = FileUtils.getFileUtils();
+
+    private final Task owner;
+    private final File packDir;
+    private final File digestFile;
+    private final Properties digests;
+    private boolean dirty = false;
+
+    /**
+     * @param owner the compiling task
+     * @param packDir the directory holding the pack
+     */
+    public ResourcePack(Task owner, File packDir) {
+        this.owner = owner;
+        this.packDir = packDir;
+        digestFile = StateFiles.getStateFile(owner.getProject(), DIGEST_FILE);
+        digests = StateFiles.load(owner.getProject(), digestFile);
+    }
+
+    /**
+     * Makes sure the pack holds the content of the given file.
+     *
+     * @return the file inside the pack
+     */
+    public File add(File file) {
+        String digest = getDigest(file);
+        File packed = new File(new File(packDir, digest), file.getName());
+        if (!packed.isFile() || packed.length() != file.length()) {
+            owner.log("Adding " + file + " to resource pack " + packDir,
+                      Project.MSG_VERBOSE);
+            try {
+                FILE_UTILS.copyFile(file, packed);
+            } catch (IOException e) {
+                throw new BuildException("Failed to copy " + file + " to "
+                                         + packed, e, owner.getLocation());
+            }
+        }
+        return packed;
+    }
+
+    /**
+     * Persists the digests if they have been modified.
+     */
+    public void save() {
+        if (dirty) {
+            StateFiles.store(owner.getProject(), digests, digestFile,
+                             "digests of linked resources");
+            dirty = false;
+        }
+    }
+
+    private String getDigest(File file) {
+        String key = file.getAbsolutePath();
+        String stamp = file.lastModified() + ";" + file.length() + ";";
+        String entry = digests.getProperty(key);
+        if (entry != null && entry.startsWith(stamp)) {
+            return entry.substring(stamp.length());
+        }
+        String digest = calculateDigest(file);
+        digests.setProperty(key, stamp + digest);
+        dirty = true;
+        return digest;
+    }
+
+    private String calculateDigest(File file) {
+        InputStream in = null;
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            in = new FileInputStream(file);
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                md.update(buffer, 0, read);
+            }
+            return ApiFingerprint.hex(md.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.toString());
+        } catch (IOException e) {
+            throw new BuildException("Failed to read " + file, e,
+                                     owner.getLocation());
+        } finally {
+            FileUtils.close(in);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.apache.ant.dotnet.compile;
+
+import org.apache.tools.ant.types.FileSet;
+
+/**
+ * Used by {@link DotnetCompile} to group source files that are
+ * compiled into a module of their own.
+ *
+ * <p>Only files that are part of the compilation's sources are
+ * used, the fileset selects which of them belong to the
+ * partition.</p>
+ *
+ * @since .NET Antlib 1.2
+ */
+public class SourcePartition extends FileSet {
+
+    private String name;
+
+    /**
+     * Name of the partition, used as part of the module's file name.
+     */
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+}
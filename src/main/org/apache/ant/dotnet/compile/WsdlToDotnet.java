@@ -18,11 +18,17 @@
 package org.apache.ant.dotnet.compile;
 
 import java.io.File;
+import java.util.Collection;
 import java.util.Vector;
 import java.util.Iterator;
 import java.net.MalformedURLException;
 
+import org.apache.ant.dotnet.ArtifactGraph;
 import org.apache.ant.dotnet.NetCommand;
+import org.apache.ant.dotnet.Watchable;
+import org.apache.ant.dotnet.util.PlanMode;
+import org.apache.ant.dotnet.util.RebuildReasons;
+import org.apache.ant.dotnet.util.UnchangedOutputs;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Project;
@@ -53,7 +59,7 @@ import org.apache.tools.ant.util.FileUtils;
  * @since       Ant 1.5
  */
 
-public class WsdlToDotnet extends Task  {
+public class WsdlToDotnet extends Task implements Watchable {
 
     /**
      * used for timestamp checking
@@ -122,6 +128,12 @@ public class WsdlToDotnet extends Task  {
      */
     private Compiler compiler = null;
 
+    /**
+     * timeout in milliseconds
+     * @since .NET Antlib 1.2
+     */
+    private Long timeout;
+
     /**
      * error message: dest file is a directory
      */
@@ -247,6 +259,19 @@ public class WsdlToDotnet extends Task  {
         wsdl.setMakeURL(b);
     }
 
+    /**
+     * Kills wsdl - and all processes it has started - if it runs
+     * longer than the given number of milliseconds.
+     *
+     * <p>Defaults to the value of the ant.dotnet.timeout property,
+     * no timeout at all if the property isn't set either.</p>
+     * @param timeout
+     * @since .NET Antlib 1.2
+     */
+    public void setTimeout(Long timeout) {
+        this.timeout = timeout;
+    }
+
     /**
      * identify the compiler
      * @since Ant 1.7
@@ -272,6 +297,43 @@ public class WsdlToDotnet extends Task  {
         wsdl.validate();
     }
 
+    /**
+     * Adds the WSDL and schema files to the inputs and the
+     * destination file to the outputs, URLs are not watched.
+     * @since .NET Antlib 1.2
+     */
+    public void addWatchedFiles(Collection inputs, Collection filesets,
+                                Collection outputs) {
+        if (wsdl.getFile() != null) {
+            inputs.add(wsdl.getFile());
+        }
+        for (Iterator it = schemas.iterator(); it.hasNext();) {
+            File f = ((Schema) it.next()).getFile();
+            if (f != null) {
+                inputs.add(f);
+            }
+        }
+        if (destFile != null) {
+            outputs.add(destFile);
+        }
+    }
+
+    /**
+     * whether the WSDL and all schemas are files, only then the
+     * artifact graph can tell whether they have changed
+     */
+    private boolean hasOnlyFiles() {
+        if (wsdl.getFile() == null) {
+            return false;
+        }
+        for (Iterator it = schemas.iterator(); it.hasNext();) {
+            if (((Schema) it.next()).getFile() == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      *  do the work by building the command line and then calling it
      *
@@ -287,10 +349,16 @@ public class WsdlToDotnet extends Task  {
             compiler = Compiler.createDefaultCompiler();
         }
         validate();
+        boolean onlyFiles = hasOnlyFiles();
+        if (onlyFiles && ArtifactGraph.isUpToDate(this)) {
+            return;
+        }
         NetCommand command = new NetCommand(this,
                 "WSDL",
                 compiler.getCommand());
         command.setFailOnError(failOnError);
+        command.setOutputFile(destFile);
+        command.setTimeout(timeout);
         //fill in args
         compiler.applyExtraArgs(command);
         command.addArgument("/nologo");
@@ -314,8 +382,12 @@ public class WsdlToDotnet extends Task  {
 
         //rebuild unless the dest file is newer than the source file
         if (destFile.exists()) {
-            destLastModified = destFile.lastModified();
+            destLastModified =
+                UnchangedOutputs.lastModified(getProject(), destFile);
             rebuild = isRebuildNeeded(wsdl, destLastModified);
+        } else {
+            RebuildReasons.record(this, RebuildReasons.MISSING, null,
+                                  destFile);
         }
         String path;
         //mark for a rebuild if the dest file is newer
@@ -338,9 +410,18 @@ public class WsdlToDotnet extends Task  {
             command.addArgument(schema.evaluate());
         }
         //conditionally compile
-        if (rebuild) {
+        if (!rebuild) {
+            PlanMode.recordUpToDate(this, "WSDL", destFile);
+        } else if (PlanMode.shouldRun(this, "WSDL", destFile,
+                                      destLastModified < 0
+                                      ? destFile + " doesn't exist"
+                                      : "the WSDL or a schema is newer than "
+                                      + destFile, null)) {
             command.runCommand();
         }
+        if (onlyFiles) {
+            ArtifactGraph.record(this);
+        }
     }
 
     /**
@@ -353,7 +434,13 @@ public class WsdlToDotnet extends Task  {
         if (destLastModified == -1) {
             return true;
         }
-        return !FILE_UTILS.isUpToDate(schema.getTimestamp(), destLastModified);
+        if (FILE_UTILS.isUpToDate(schema.getTimestamp(), destLastModified)) {
+            return false;
+        }
+        RebuildReasons.record(this, RebuildReasons.GRANULARITY,
+                              schema.getFile() != null ? (Object) schema.getFile()
+                              : schema.evaluate(), destFile);
+        return true;
     }
 
 
@@ -0,0 +1,522 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.apache.ant.dotnet.metadata;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Calculates a digest of everything a consumer of an assembly may
+ * bind to at compile time.
+ *
+ * <p>The fingerprint covers the assembly identity, type forwarders
+ * and all types, fields, methods, parameters, properties, events,
+ * constants, generic parameters and custom attributes visible outside
+ * of the assembly.  Properties and events are visible if one of their
+ * accessors is.  The layout of visible types is part of it as well,
+ * including the types and order of the private instance fields of
+ * value types, as consumers embed value types in their own.  Method
+ * bodies, other private members and the module version id are not
+ * part of it, so recompiling an assembly after changing the
+ * implementation of a method yields the same fingerprint.</p>
+ *
+ * <p>If the assembly grants access to its internals via
+ * <code>InternalsVisibleToAttribute</code>, internal members are
+ * considered part of the API as well.</p>
+ *
+ * @since .NET Antlib 1.2
+ */
+public final class ApiFingerprint {
+
+    private static final int VISIBILITY_MASK = 0x07;
+    private static final int TYPE_PUBLIC = 1;
+    private static final int TYPE_NESTED_PUBLIC = 2;
+    private static final int TYPE_NESTED_FAMILY = 4;
+    private static final int TYPE_NESTED_ASSEMBLY = 5;
+    private static final int TYPE_NESTED_FAM_OR_ASSEM = 7;
+    private static final int TYPE_NOT_PUBLIC = 0;
+
+    private static final int MEMBER_ASSEMBLY = 3;
+    private static final int MEMBER_FAMILY = 4;
+    private static final int MEMBER_FAM_OR_ASSEM = 5;
+    private static final int MEMBER_PUBLIC = 6;
+
+    private static final int FIELD_STATIC = 0x10;
+
+    private static final String FRIEND_ATTRIBUTE =
+        "System.Runtime.CompilerServices.InternalsVisibleToAttribute";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final MetadataReader reader;
+    private final SignatureFormatter formatter;
+    private final TreeSet lines = new TreeSet();
+    private boolean includeInternals;
+
+    private final Set visibleTypes = new HashSet();
+    private final Set visibleMethods = new HashSet();
+    private final Set visibleFields = new HashSet();
+    private final Set visibleParams = new HashSet();
+    private final Set visibleProperties = new HashSet();
+    private final Set visibleEvents = new HashSet();
+
+    /**
+     * fields whose position matters, row to a name that doesn't
+     * depend on the row number
+     */
+    private final Map layoutFields = new HashMap();
+
+    /**
+     * declaring type of each property and event, by row
+     */
+    private int[] propertyOwners;
+    private int[] eventOwners;
+
+    private ApiFingerprint(MetadataReader reader) {
+        this.reader = reader;
+        formatter = new SignatureFormatter(reader);
+    }
+
+    /**
+     * Calculates the fingerprint of an assembly.
+     *
+     * @return the hex encoded SHA-1 digest of the public surface.
+     * @throws IllegalArgumentException if the metadata is malformed
+     */
+    public static String calculate(MetadataReader reader) {
+        ApiFingerprint f = new ApiFingerprint(reader);
+        f.collect();
+        return f.digest();
+    }
+
+    private void collect() {
+        includeInternals = hasFriendAssemblies();
+        addAssembly();
+        addExportedTypes();
+        addTypes();
+        addPropertiesAndEvents();
+        addLayouts();
+        addInterfaces();
+        addConstants();
+        addGenericParameters();
+        addCustomAttributes();
+    }
+
+    private void addAssembly() {
+        if (reader.getRowCount(MetadataReader.ASSEMBLY) > 0) {
+            lines.add("assembly " + reader.getStringValue(MetadataReader.ASSEMBLY, 1, 7)
+                      + " " + reader.getValue(MetadataReader.ASSEMBLY, 1, 1)
+                      + "." + reader.getValue(MetadataReader.ASSEMBLY, 1, 2)
+                      + "." + reader.getValue(MetadataReader.ASSEMBLY, 1, 3)
+                      + "." + reader.getValue(MetadataReader.ASSEMBLY, 1, 4)
+                      + " " + reader.getStringValue(MetadataReader.ASSEMBLY, 1, 8)
+                      + " " + hex(reader.getBlobValue(MetadataReader.ASSEMBLY, 1, 6)));
+        }
+    }
+
+    private void addExportedTypes() {
+        int rows = reader.getRowCount(MetadataReader.EXPORTEDTYPE);
+        for (int i = 1; i <= rows; i++) {
+            lines.add("forward " + reader.getStringValue(MetadataReader.EXPORTEDTYPE, i, 3)
+                      + "." + reader.getStringValue(MetadataReader.EXPORTEDTYPE, i, 2));
+        }
+    }
+
+    private void addTypes() {
+        int types = reader.getRowCount(MetadataReader.TYPEDEF);
+        int fields = reader.getRowCount(MetadataReader.FIELD);
+        int methods = reader.getRowCount(MetadataReader.METHODDEF);
+        for (int t = 1; t <= types; t++) {
+            int flags = reader.getValue(MetadataReader.TYPEDEF, t, 0);
+            if (!isVisibleType(flags)) {
+                continue;
+            }
+            visibleTypes.add(new Integer(t));
+            String name = formatter.getTypeDefName(t);
+            lines.add("type " + name + " " + Integer.toHexString(flags)
+                      + " : " + formatter.getTypeName(reader.getValue(MetadataReader.TYPEDEF, t, 3)));
+
+            boolean valueType = isValueType(t);
+            int instanceFields = 0;
+            int firstField = reader.getValue(MetadataReader.TYPEDEF, t, 4);
+            int lastField = t < types
+                ? reader.getValue(MetadataReader.TYPEDEF, t + 1, 4) - 1 : fields;
+            for (int f = firstField; f <= lastField && f <= fields; f++) {
+                int fieldFlags = reader.getValue(MetadataReader.FIELD, f, 0);
+                boolean instance = (fieldFlags & FIELD_STATIC) == 0;
+                if (isVisibleMember(fieldFlags)) {
+                    visibleFields.add(new Integer(f));
+                    String field = name + "::"
+                        + reader.getStringValue(MetadataReader.FIELD, f, 1);
+                    layoutFields.put(new Integer(f), field);
+                    lines.add(field + " " + Integer.toHexString(fieldFlags) + " "
+                              + formatter.format(reader.getBlobValue(MetadataReader.FIELD, f, 2)));
+                } else if (valueType && instance) {
+                    // the names of private fields don't matter to
+                    // consumers, their types and order do
+                    String field = name + " field " + instanceFields;
+                    layoutFields.put(new Integer(f), field);
+                    lines.add(field + " " + Integer.toHexString(fieldFlags) + " "
+                              + formatter.format(reader.getBlobValue(MetadataReader.FIELD, f, 2)));
+                }
+                if (instance) {
+                    instanceFields++;
+                }
+            }
+
+            int firstMethod = reader.getValue(MetadataReader.TYPEDEF, t, 5);
+            int lastMethod = t < types
+                ? reader.getValue(MetadataReader.TYPEDEF, t + 1, 5) - 1 : methods;
+            for (int m = firstMethod; m <= lastMethod && m <= methods; m++) {
+                int methodFlags = reader.getValue(MetadataReader.METHODDEF, m, 2);
+                if (isVisibleMember(methodFlags)) {
+                    visibleMethods.add(new Integer(m));
+                    String method = name + "::"
+                        + reader.getStringValue(MetadataReader.METHODDEF, m, 3)
+                        + " " + formatter.format(reader.getBlobValue(MetadataReader.METHODDEF, m, 4));
+                    lines.add(method + " " + Integer.toHexString(methodFlags));
+                    addParameters(method, m, methods);
+                }
+            }
+        }
+    }
+
+    private void addParameters(String method, int m, int methods) {
+        int params = reader.getRowCount(MetadataReader.PARAM);
+        int first = reader.getValue(MetadataReader.METHODDEF, m, 5);
+        int last = m < methods
+            ? reader.getValue(MetadataReader.METHODDEF, m + 1, 5) - 1 : params;
+        for (int p = first; p <= last && p <= params; p++) {
+            visibleParams.add(new Integer(p));
+            lines.add(method + " param "
+                      + reader.getValue(MetadataReader.PARAM, p, 1) + " "
+                      + reader.getStringValue(MetadataReader.PARAM, p, 2) + " "
+                      + Integer.toHexString(reader.getValue(MetadataReader.PARAM, p, 0)));
+        }
+    }
+
+    /**
+     * Properties and events are visible if one of their accessors
+     * is, the accessors themselves have been added as methods.
+     */
+    private void addPropertiesAndEvents() {
+        propertyOwners = getOwners(MetadataReader.PROPERTYMAP, MetadataReader.PROPERTY);
+        eventOwners = getOwners(MetadataReader.EVENTMAP, MetadataReader.EVENT);
+        int rows = reader.getRowCount(MetadataReader.METHODSEMANTICS);
+        for (int i = 1; i <= rows; i++) {
+            int method = reader.getValue(MetadataReader.METHODSEMANTICS, i, 1);
+            if (!visibleMethods.contains(new Integer(method))) {
+                continue;
+            }
+            int association = reader.getValue(MetadataReader.METHODSEMANTICS, i, 2);
+            int table = MetadataReader.getCodedTable(MetadataReader.HAS_SEMANTICS, association);
+            int row = MetadataReader.getCodedRow(MetadataReader.HAS_SEMANTICS, association);
+            if (table == MetadataReader.PROPERTY) {
+                visibleProperties.add(new Integer(row));
+            } else {
+                visibleEvents.add(new Integer(row));
+            }
+            lines.add("accessor " + describeMember(table, row) + " "
+                      + Integer.toHexString(reader.getValue(MetadataReader.METHODSEMANTICS, i, 0))
+                      + " " + describeMember(MetadataReader.METHODDEF, method));
+        }
+        for (Iterator iter = visibleProperties.iterator(); iter.hasNext();) {
+            int p = ((Integer) iter.next()).intValue();
+            lines.add("property " + describeMember(MetadataReader.PROPERTY, p) + " "
+                      + Integer.toHexString(reader.getValue(MetadataReader.PROPERTY, p, 0))
+                      + " " + formatter.format(reader.getBlobValue(MetadataReader.PROPERTY, p, 2)));
+        }
+        for (Iterator iter = visibleEvents.iterator(); iter.hasNext();) {
+            int e = ((Integer) iter.next()).intValue();
+            lines.add("event " + describeMember(MetadataReader.EVENT, e) + " "
+                      + Integer.toHexString(reader.getValue(MetadataReader.EVENT, e, 0))
+                      + " " + formatter.getTypeName(reader.getValue(MetadataReader.EVENT, e, 2)));
+        }
+    }
+
+    /**
+     * The declaring type of each row of a table listed by a map
+     * table, 0 for rows no map points to.
+     */
+    private int[] getOwners(int mapTable, int memberTable) {
+        int rows = reader.getRowCount(mapTable);
+        int members = reader.getRowCount(memberTable);
+        int[] owners = new int[members + 1];
+        for (int i = 1; i <= rows; i++) {
+            int first = reader.getValue(mapTable, i, 1);
+            int last = i < rows ? reader.getValue(mapTable, i + 1, 1) - 1 : members;
+            for (int m = first; m <= last && m <= members; m++) {
+                owners[m] = reader.getValue(mapTable, i, 0);
+            }
+        }
+        return owners;
+    }
+
+    /**
+     * Explicit packing, sizes and field offsets of visible types.
+     */
+    private void addLayouts() {
+        int rows = reader.getRowCount(MetadataReader.CLASSLAYOUT);
+        for (int i = 1; i <= rows; i++) {
+            int type = reader.getValue(MetadataReader.CLASSLAYOUT, i, 2);
+            if (visibleTypes.contains(new Integer(type))) {
+                lines.add("layout " + formatter.getTypeDefName(type) + " "
+                          + reader.getValue(MetadataReader.CLASSLAYOUT, i, 0) + " "
+                          + reader.getValue(MetadataReader.CLASSLAYOUT, i, 1));
+            }
+        }
+        rows = reader.getRowCount(MetadataReader.FIELDLAYOUT);
+        for (int i = 1; i <= rows; i++) {
+            String field = (String) layoutFields.get(new Integer(reader
+                .getValue(MetadataReader.FIELDLAYOUT, i, 1)));
+            if (field != null) {
+                lines.add("offset " + field + " "
+                          + reader.getValue(MetadataReader.FIELDLAYOUT, i, 0));
+            }
+        }
+    }
+
+    private void addInterfaces() {
+        int rows = reader.getRowCount(MetadataReader.INTERFACEIMPL);
+        for (int i = 1; i <= rows; i++) {
+            int type = reader.getValue(MetadataReader.INTERFACEIMPL, i, 0);
+            if (visibleTypes.contains(new Integer(type))) {
+                lines.add(formatter.getTypeDefName(type) + " implements "
+                          + formatter.getTypeName(reader.getValue(MetadataReader.INTERFACEIMPL, i, 1)));
+            }
+        }
+    }
+
+    /**
+     * Constants are part of the API as compilers inline them.
+     */
+    private void addConstants() {
+        int rows = reader.getRowCount(MetadataReader.CONSTANT);
+        for (int i = 1; i <= rows; i++) {
+            int parent = reader.getValue(MetadataReader.CONSTANT, i, 1);
+            int table = MetadataReader.getCodedTable(MetadataReader.HAS_CONSTANT, parent);
+            Integer row = new Integer(MetadataReader.getCodedRow(MetadataReader.HAS_CONSTANT,
+                                                                 parent));
+            if (isVisible(table, row.intValue())) {
+                lines.add("const " + table + ":" + describeMember(table, row.intValue())
+                          + " " + reader.getValue(MetadataReader.CONSTANT, i, 0)
+                          + " " + hex(reader.getBlobValue(MetadataReader.CONSTANT, i, 2)));
+            }
+        }
+    }
+
+    private void addGenericParameters() {
+        int rows = reader.getRowCount(MetadataReader.GENERICPARAM);
+        Set included = new HashSet();
+        for (int i = 1; i <= rows; i++) {
+            int owner = reader.getValue(MetadataReader.GENERICPARAM, i, 2);
+            int table = MetadataReader.getCodedTable(MetadataReader.TYPE_OR_METHOD_DEF, owner);
+            int row = MetadataReader.getCodedRow(MetadataReader.TYPE_OR_METHOD_DEF, owner);
+            if (isVisible(table, row)) {
+                included.add(new Integer(i));
+                lines.add("generic " + describeMember(table, row) + " "
+                          + reader.getValue(MetadataReader.GENERICPARAM, i, 0) + " "
+                          + reader.getStringValue(MetadataReader.GENERICPARAM, i, 3) + " "
+                          + Integer.toHexString(reader.getValue(MetadataReader.GENERICPARAM, i, 1)));
+            }
+        }
+        rows = reader.getRowCount(MetadataReader.GENERICPARAMCONSTRAINT);
+        for (int i = 1; i <= rows; i++) {
+            int param = reader.getValue(MetadataReader.GENERICPARAMCONSTRAINT, i, 0);
+            if (included.contains(new Integer(param))) {
+                int owner = reader.getValue(MetadataReader.GENERICPARAM, param, 2);
+                lines.add("constraint "
+                          + describeMember(MetadataReader.getCodedTable(MetadataReader.TYPE_OR_METHOD_DEF, owner),
+                                           MetadataReader.getCodedRow(MetadataReader.TYPE_OR_METHOD_DEF, owner))
+                          + " " + reader.getValue(MetadataReader.GENERICPARAM, param, 0) + " "
+                          + formatter.getTypeName(reader.getValue(MetadataReader.GENERICPARAMCONSTRAINT, i, 1)));
+            }
+        }
+    }
+
+    /**
+     * Attributes like ExtensionAttribute or ObsoleteAttribute change
+     * the way compilers bind to a member.
+     */
+    private void addCustomAttributes() {
+        int rows = reader.getRowCount(MetadataReader.CUSTOMATTRIBUTE);
+        for (int i = 1; i <= rows; i++) {
+            int parent = reader.getValue(MetadataReader.CUSTOMATTRIBUTE, i, 0);
+            int table = MetadataReader.getCodedTable(MetadataReader.HAS_CUSTOM_ATTRIBUTE, parent);
+            int row = MetadataReader.getCodedRow(MetadataReader.HAS_CUSTOM_ATTRIBUTE, parent);
+            if (table == MetadataReader.ASSEMBLY || isVisible(table, row)) {
+                lines.add("attribute " + describeMember(table, row) + " "
+                          + getAttributeType(i) + " "
+                          + hex(reader.getBlobValue(MetadataReader.CUSTOMATTRIBUTE, i, 2)));
+            }
+        }
+    }
+
+    private boolean hasFriendAssemblies() {
+        int rows = reader.getRowCount(MetadataReader.CUSTOMATTRIBUTE);
+        for (int i = 1; i <= rows; i++) {
+            int parent = reader.getValue(MetadataReader.CUSTOMATTRIBUTE, i, 0);
+            if (MetadataReader.getCodedTable(MetadataReader.HAS_CUSTOM_ATTRIBUTE, parent)
+                == MetadataReader.ASSEMBLY
+                && getAttributeType(i).endsWith(FRIEND_ATTRIBUTE)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The name of the type declaring the constructor of a custom
+     * attribute.
+     */
+    private String getAttributeType(int attribute) {
+        int type = reader.getValue(MetadataReader.CUSTOMATTRIBUTE, attribute, 1);
+        int table = MetadataReader.getCodedTable(MetadataReader.CUSTOM_ATTRIBUTE_TYPE, type);
+        int row = MetadataReader.getCodedRow(MetadataReader.CUSTOM_ATTRIBUTE_TYPE, type);
+        if (table == MetadataReader.METHODDEF) {
+            return describeMember(table, row);
+        }
+        if (table == MetadataReader.MEMBERREF) {
+            int parent = reader.getValue(MetadataReader.MEMBERREF, row, 0);
+            int parentTable = MetadataReader.getCodedTable(MetadataReader.MEMBER_REF_PARENT,
+                                                           parent);
+            int parentRow = MetadataReader.getCodedRow(MetadataReader.MEMBER_REF_PARENT,
+                                                       parent);
+            if (parentTable == MetadataReader.TYPEDEF
+                || parentTable == MetadataReader.TYPEREF
+                || parentTable == MetadataReader.TYPESPEC) {
+                return formatter.getTypeName(parentTable, parentRow);
+            }
+        }
+        return "?";
+    }
+
+    private boolean isVisible(int table, int row) {
+        Integer r = new Integer(row);
+        switch (table) {
+        case MetadataReader.TYPEDEF:
+            return visibleTypes.contains(r);
+        case MetadataReader.METHODDEF:
+            return visibleMethods.contains(r);
+        case MetadataReader.FIELD:
+            return visibleFields.contains(r);
+        case MetadataReader.PARAM:
+            return visibleParams.contains(r);
+        case MetadataReader.PROPERTY:
+            return visibleProperties.contains(r);
+        case MetadataReader.EVENT:
+            return visibleEvents.contains(r);
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * A name for a member that doesn't depend on its row number.
+     */
+    private String describeMember(int table, int row) {
+        switch (table) {
+        case MetadataReader.TYPEDEF:
+            return formatter.getTypeDefName(row);
+        case MetadataReader.METHODDEF:
+            return reader.getStringValue(MetadataReader.METHODDEF, row, 3) + " "
+                + formatter.format(reader.getBlobValue(MetadataReader.METHODDEF, row, 4));
+        case MetadataReader.FIELD:
+            return reader.getStringValue(MetadataReader.FIELD, row, 1);
+        case MetadataReader.PARAM:
+            return reader.getStringValue(MetadataReader.PARAM, row, 2);
+        case MetadataReader.PROPERTY:
+            return formatter.getTypeDefName(propertyOwners[row]) + "::"
+                + reader.getStringValue(MetadataReader.PROPERTY, row, 1);
+        case MetadataReader.EVENT:
+            return formatter.getTypeDefName(eventOwners[row]) + "::"
+                + reader.getStringValue(MetadataReader.EVENT, row, 1);
+        case MetadataReader.ASSEMBLY:
+            return "assembly";
+        default:
+            return table + ":" + row;
+        }
+    }
+
+    /**
+     * Whether the type extends System.ValueType or System.Enum.
+     */
+    private boolean isValueType(int type) {
+        String base = formatter.getTypeName(reader.getValue(MetadataReader.TYPEDEF, type, 3));
+        int scope = base.indexOf(']');
+        if (scope >= 0) {
+            base = base.substring(scope + 1);
+        }
+        return "System.ValueType".equals(base) || "System.Enum".equals(base);
+    }
+
+    private boolean isVisibleType(int flags) {
+        int visibility = flags & VISIBILITY_MASK;
+        if (visibility == TYPE_PUBLIC || visibility == TYPE_NESTED_PUBLIC
+            || visibility == TYPE_NESTED_FAMILY
+            || visibility == TYPE_NESTED_FAM_OR_ASSEM) {
+            return true;
+        }
+        return includeInternals
+            && (visibility == TYPE_NOT_PUBLIC
+                || visibility == TYPE_NESTED_ASSEMBLY);
+    }
+
+    private boolean isVisibleMember(int flags) {
+        int access = flags & VISIBILITY_MASK;
+        if (access == MEMBER_PUBLIC || access == MEMBER_FAMILY
+            || access == MEMBER_FAM_OR_ASSEM) {
+            return true;
+        }
+        return includeInternals && access == MEMBER_ASSEMBLY;
+    }
+
+    private String digest() {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            Iterator iter = lines.iterator();
+            while (iter.hasNext()) {
+                md.update(((String) iter.next()).getBytes("UTF-8"));
+                md.update((byte) '\n');
+            }
+            return hex(md.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.toString());
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new IllegalStateException(e.toString());
+        }
+    }
+
+    /**
+     * Hex encodes the given bytes.
+     */
+    public static String hex(byte[] b) {
+        char[] c = new char[b.length * 2];
+        for (int i = 0; i < b.length; i++) {
+            c[2 * i] = HEX[(b[i] >> 4) & 0x0F];
+            c[2 * i + 1] = HEX[b[i] & 0x0F];
+        }
+        return new String(c);
+    }
+}
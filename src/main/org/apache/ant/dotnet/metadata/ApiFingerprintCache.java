@@ -0,0 +1,150 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.apache.ant.dotnet.metadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.ant.dotnet.util.StateFiles;
+import org.apache.tools.ant.Project;
+
+/**
+ * Caches {@link ApiFingerprint}s keyed by the digest of the
+ * assembly's content.
+ *
+ * <p>The cache is shared by all tasks of a build and persisted in
+ * the state directory.  Only the most recently used entries are
+ * kept.</p>
+ *
+ * @since .NET Antlib 1.2
+ */
+public class ApiFingerprintCache {
+
+    private static final String CACHE_FILE = "api-fingerprints.properties";
+
+    /**
+     * maximum number of fingerprints to remember
+     */
+    private static final int MAX_ENTRIES = 2000;
+
+    /**
+     * prefix of fingerprints of files that couldn't be parsed, their
+     * content digest stands in for the fingerprint
+     */
+    private static final String CONTENT_PREFIX = "content:";
+
+    private static ApiFingerprintCache instance;
+
+    private final Project project;
+    private final File cacheFile;
+    private final Map entries = new LinkedHashMap(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+    private boolean dirty = false;
+
+    private ApiFingerprintCache(Project p) {
+        project = p;
+        cacheFile = StateFiles.getStateFile(p, CACHE_FILE);
+        Properties props = StateFiles.load(p, cacheFile);
+        Iterator iter = props.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry e = (Map.Entry) iter.next();
+            entries.put(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * The cache instance for the given project's state directory.
+     */
+    public static synchronized ApiFingerprintCache getInstance(Project p) {
+        if (instance == null || !instance.cacheFile
+            .equals(StateFiles.getStateFile(p, CACHE_FILE))) {
+            instance = new ApiFingerprintCache(p);
+        }
+        return instance;
+    }
+
+    /**
+     * The API fingerprint of the given assembly.
+     *
+     * <p>Files that cannot be parsed get a fingerprint derived from
+     * their full content, i.e. every change counts as an API
+     * change.</p>
+     *
+     * @throws IOException if the file cannot be read
+     */
+    public synchronized String getFingerprint(File assembly) throws IOException {
+        ByteBuffer content = MetadataReader.load(assembly);
+        String digest = digest(content.duplicate());
+        String fingerprint = (String) entries.get(digest);
+        if (fingerprint == null) {
+            try {
+                MetadataReader reader = new MetadataReader(content);
+                if (reader.hasUncompressedTables()) {
+                    // *Ptr tables would break the member ranges
+                    fingerprint = CONTENT_PREFIX + digest;
+                } else {
+                    fingerprint = ApiFingerprint.calculate(reader);
+                }
+            } catch (IOException e) {
+                project.log(assembly + " is not a managed assembly: "
+                            + e.getMessage(), Project.MSG_VERBOSE);
+                fingerprint = CONTENT_PREFIX + digest;
+            } catch (RuntimeException e) {
+                project.log("Failed to read the metadata of " + assembly
+                            + ": " + e, Project.MSG_VERBOSE);
+                fingerprint = CONTENT_PREFIX + digest;
+            }
+            entries.put(digest, fingerprint);
+            dirty = true;
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Persists the cache if it has been modified.
+     */
+    public synchronized void save() {
+        if (dirty) {
+            Properties props = new Properties();
+            props.putAll(entries);
+            StateFiles.store(project, props, cacheFile,
+                             "API fingerprints by assembly content digest");
+            dirty = false;
+        }
+    }
+
+    private static String digest(ByteBuffer content) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            md.update(content);
+            return ApiFingerprint.hex(md.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.toString());
+        }
+    }
+}
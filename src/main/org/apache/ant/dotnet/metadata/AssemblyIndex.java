@@ -0,0 +1,260 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.apache.ant.dotnet.metadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.ant.dotnet.util.StateFiles;
+import org.apache.tools.ant.Project;
+
+/**
+ * Maps assembly names to the files of a list of probe directories.
+ *
+ * <p>The index of each directory is persisted in the state directory
+ * and rebuilt whenever the directory's timestamp changes, i.e. when
+ * files are added, removed or renamed.  Directories are not searched
+ * recursively.</p>
+ *
+ * @since .NET Antlib 1.2
+ */
+public class AssemblyIndex {
+
+    private static final String STAMP_KEY = "#directory.lastmodified";
+
+    /**
+     * indices by absolute directory path, shared by all tasks of
+     * the JVM
+     */
+    private static final Map DIRECTORIES = new HashMap();
+
+    private final Project project;
+    private final DirectoryIndex[] directories;
+
+    /**
+     * @param p the project, used for logging and the state directory
+     * @param probeDirectories the directories to search in order
+     */
+    public AssemblyIndex(Project p, String[] probeDirectories) {
+        project = p;
+        List l = new ArrayList();
+        for (int i = 0; i < probeDirectories.length; i++) {
+            File dir = new File(probeDirectories[i]);
+            if (dir.isDirectory()) {
+                l.add(getDirectoryIndex(dir));
+            } else {
+                p.log("ignoring probe path element " + dir
+                      + " as it is not a directory", Project.MSG_VERBOSE);
+            }
+        }
+        directories = (DirectoryIndex[]) l.toArray(new DirectoryIndex[l.size()]);
+    }
+
+    /**
+     * Finds the file of a referenced assembly.
+     *
+     * <p>A file of the exact version is preferred, otherwise the
+     * first file of the same simple name on the probe path wins.</p>
+     *
+     * @return the file or null if none has been found
+     */
+    public File resolve(AssemblyName reference) {
+        File firstMatch = null;
+        for (int i = 0; i < directories.length; i++) {
+            List candidates = directories[i].get(reference.getName());
+            for (Iterator iter = candidates.iterator(); iter.hasNext();) {
+                String[] c = (String[]) iter.next();
+                File f = new File(directories[i].directory, c[0]);
+                if (c[1].equals(reference.getVersion())) {
+                    return f;
+                }
+                if (firstMatch == null) {
+                    firstMatch = f;
+                }
+            }
+        }
+        return firstMatch;
+    }
+
+    /**
+     * Finds the file of an assembly by its simple name.
+     *
+     * @return the file or null if none has been found
+     */
+    public File resolve(String simpleName) {
+        for (int i = 0; i < directories.length; i++) {
+            List candidates = directories[i].get(simpleName);
+            if (candidates.size() > 0) {
+                return new File(directories[i].directory,
+                                ((String[]) candidates.get(0))[0]);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Computes the transitive closure of the references of the
+     * given assemblies.
+     *
+     * @param roots the assemblies to start with, instances of File
+     * @param unresolved receives the AssemblyNames that couldn't be
+     * found on the probe path, may be null
+     * @return the roots and all assembly files they depend upon
+     * directly or indirectly, in breadth first order
+     */
+    public Collection getClosure(Collection roots, Collection unresolved) {
+        Set result = new LinkedHashSet();
+        Set seenNames = new HashSet();
+        LinkedList queue = new LinkedList();
+        for (Iterator iter = roots.iterator(); iter.hasNext();) {
+            File f = ((File) iter.next()).getAbsoluteFile();
+            if (result.add(f)) {
+                queue.add(f);
+            }
+        }
+        while (!queue.isEmpty()) {
+            File f = (File) queue.removeFirst();
+            AssemblyName[] refs;
+            try {
+                refs = MetadataCache.getReader(f).getAssemblyReferences();
+            } catch (IOException e) {
+                project.log("Can't read references of " + f + ": "
+                            + e.getMessage(), Project.MSG_VERBOSE);
+                continue;
+            }
+            for (int i = 0; i < refs.length; i++) {
+                if (!seenNames.add(refs[i])) {
+                    continue;
+                }
+                File r = resolve(refs[i]);
+                if (r == null) {
+                    if (unresolved != null) {
+                        unresolved.add(refs[i]);
+                    }
+                } else if (result.add(r)) {
+                    queue.add(r);
+                }
+            }
+        }
+        return result;
+    }
+
+    private DirectoryIndex getDirectoryIndex(File dir) {
+        String key = dir.getAbsolutePath();
+        synchronized (DIRECTORIES) {
+            DirectoryIndex idx = (DirectoryIndex) DIRECTORIES.get(key);
+            if (idx == null || idx.lastModified != dir.lastModified()) {
+                idx = new DirectoryIndex(project, dir.getAbsoluteFile());
+                DIRECTORIES.put(key, idx);
+            }
+            return idx;
+        }
+    }
+
+    /**
+     * Assemblies of a single directory.
+     */
+    private static class DirectoryIndex {
+        private final File directory;
+        private final long lastModified;
+        /**
+         * simple name to list of String[] {file name, version}
+         */
+        private final Map names = new HashMap();
+
+        DirectoryIndex(Project p, File directory) {
+            this.directory = directory;
+            lastModified = directory.lastModified();
+            File stateFile = StateFiles.getStateFile(p, directory, ".asmindex");
+            Properties props = StateFiles.load(p, stateFile);
+            if (String.valueOf(lastModified).equals(props.getProperty(STAMP_KEY))) {
+                props.remove(STAMP_KEY);
+                load(props);
+            } else {
+                p.log("Indexing assemblies in " + directory, Project.MSG_VERBOSE);
+                props = scan(p);
+                StateFiles.store(p, props, stateFile,
+                                 "assemblies of " + directory);
+                props.remove(STAMP_KEY);
+                load(props);
+            }
+        }
+
+        List get(String simpleName) {
+            List l = (List) names.get(simpleName.toLowerCase());
+            return l == null ? new ArrayList() : l;
+        }
+
+        /**
+         * Entries map file names to "simple name;version".
+         */
+        private void load(Properties props) {
+            for (Iterator iter = props.entrySet().iterator(); iter.hasNext();) {
+                Map.Entry e = (Map.Entry) iter.next();
+                String value = (String) e.getValue();
+                int sep = value.indexOf(';');
+                String name = value.substring(0, sep).toLowerCase();
+                List l = (List) names.get(name);
+                if (l == null) {
+                    l = new ArrayList();
+                    names.put(name, l);
+                }
+                l.add(new String[] {(String) e.getKey(),
+                                    value.substring(sep + 1)});
+            }
+        }
+
+        private Properties scan(Project p) {
+            Properties props = new Properties();
+            props.setProperty(STAMP_KEY, String.valueOf(lastModified));
+            String[] files = directory.list();
+            for (int i = 0; files != null && i < files.length; i++) {
+                String lower = files[i].toLowerCase();
+                if (!lower.endsWith(".dll") && !lower.endsWith(".exe")) {
+                    continue;
+                }
+                File f = new File(directory, files[i]);
+                try {
+                    if (!MetadataReader.isManagedBinary(f)) {
+                        continue;
+                    }
+                    AssemblyName name = MetadataCache.getAssemblyName(f);
+                    if (name != null) {
+                        props.setProperty(files[i], name.getName() + ";"
+                                          + name.getVersion());
+                    }
+                } catch (IOException e) {
+                    p.log("Not indexing " + f + ": " + e.getMessage(),
+                          Project.MSG_VERBOSE);
+                }
+            }
+            return props;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.apache.ant.dotnet.metadata;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The identity of an assembly as stored in the Assembly and
+ * AssemblyRef tables.
+ *
+ * @since .NET Antlib 1.2
+ */
+public class AssemblyName {
+
+    /**
+     * flag signalling the key blob holds the full public key rather
+     * than its token
+     */
+    private static final int PUBLIC_KEY_FLAG = 0x0001;
+
+    private final String name;
+    private final int[] version;
+    private final String culture;
+    private final byte[] publicKeyToken;
+
+    /**
+     * @param name simple name of the assembly
+     * @param version major, minor, build and revision number
+     * @param culture culture, empty for neutral
+     * @param key public key or public key token, may be empty
+     * @param flags the assembly flags
+     */
+    public AssemblyName(String name, int[] version, String culture,
+                        byte[] key, int flags) {
+        this.name = name;
+        this.version = version;
+        this.culture = culture;
+        this.publicKeyToken = (flags & PUBLIC_KEY_FLAG) != 0 && key.length > 0
+            ? getToken(key) : key;
+    }
+
+    /**
+     * The simple name of the assembly.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The version as major.minor.build.revision.
+     */
+    public String getVersion() {
+        return version[0] + "." + version[1] + "." + version[2] + "."
+            + version[3];
+    }
+
+    /**
+     * The culture, "neutral" if there is none.
+     */
+    public String getCulture() {
+        return culture.length() == 0 ? "neutral" : culture;
+    }
+
+    /**
+     * The hex encoded public key token, "null" if the assembly isn't
+     * strongly named.
+     */
+    public String getPublicKeyToken() {
+        return publicKeyToken.length == 0
+            ? "null" : ApiFingerprint.hex(publicKeyToken);
+    }
+
+    /**
+     * The display name in the format used by the CLR.
+     */
+    public String toString() {
+        return name + ", Version=" + getVersion() + ", Culture="
+            + getCulture() + ", PublicKeyToken=" + getPublicKeyToken();
+    }
+
+    public boolean equals(Object o) {
+        return o instanceof AssemblyName && toString().equals(o.toString());
+    }
+
+    public int hashCode() {
+        return toString().hashCode();
+    }
+
+    /**
+     * The token is the last eight bytes of the key's SHA-1 hash in
+     * reverse order.
+     */
+    private static byte[] getToken(byte[] key) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(key);
+            byte[] token = new byte[8];
+            for (int i = 0; i < 8; i++) {
+                token[i] = hash[hash.length - 1 - i];
+            }
+            return token;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.toString());
+        }
+    }
+}
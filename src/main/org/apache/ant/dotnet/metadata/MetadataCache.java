@@ -0,0 +1,121 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.apache.ant.dotnet.metadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, JVM wide cache of {@link MetadataReader}s.
+ *
+ * <p>Entries are keyed by absolute path and are discarded as soon as
+ * the file's timestamp or size changes.  Only the most recently used
+ * readers are kept so a build referencing thousands of assemblies
+ * doesn't keep all of them mapped.</p>
+ *
+ * <p>Files that turned out not to be managed are remembered as well
+ * so they are not read again.</p>
+ *
+ * @since .NET Antlib 1.2
+ */
+public final class MetadataCache {
+
+    /**
+     * maximum number of readers to keep
+     */
+    private static final int MAX_ENTRIES = 256;
+
+    private static final Map ENTRIES = new LinkedHashMap(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+
+    private MetadataCache() {
+    }
+
+    /**
+     * Returns a reader for the given file.
+     *
+     * @throws IOException if the file cannot be read or isn't managed
+     */
+    public static MetadataReader getReader(File file) throws IOException {
+        String key = file.getAbsolutePath();
+        long lastModified = file.lastModified();
+        long length = file.length();
+        synchronized (ENTRIES) {
+            Entry e = (Entry) ENTRIES.get(key);
+            if (e != null && e.lastModified == lastModified
+                && e.length == length) {
+                if (e.error != null) {
+                    throw new IOException(e.error);
+                }
+                return e.reader;
+            }
+        }
+        Entry e = new Entry(lastModified, length);
+        try {
+            e.reader = MetadataReader.open(file);
+        } catch (IOException ex) {
+            e.error = ex.getMessage();
+        } catch (RuntimeException ex) {
+            // truncated or otherwise corrupt image
+            e.error = "invalid metadata: " + ex;
+        }
+        synchronized (ENTRIES) {
+            ENTRIES.put(key, e);
+        }
+        if (e.error != null) {
+            throw new IOException(e.error);
+        }
+        return e.reader;
+    }
+
+    /**
+     * The identity of the given assembly, null if it is a module
+     * without manifest.
+     *
+     * @throws IOException if the file cannot be read or isn't managed
+     */
+    public static AssemblyName getAssemblyName(File file) throws IOException {
+        return getReader(file).getAssemblyName();
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public static void clear() {
+        synchronized (ENTRIES) {
+            ENTRIES.clear();
+        }
+    }
+
+    private static class Entry {
+        private final long lastModified;
+        private final long length;
+        private MetadataReader reader;
+        private String error;
+
+        Entry(long lastModified, long length) {
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+    }
+}
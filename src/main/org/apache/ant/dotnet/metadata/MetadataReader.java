@@ -0,0 +1,886 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.apache.ant.dotnet.metadata;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import org.apache.tools.ant.taskdefs.condition.Os;
+
+/**
+ * Reads the CLI metadata (ECMA-335 Partition II) of a managed PE
+ * file without the help of any .NET tool.
+ *
+ * <p>Only the physical layout is decoded here: the PE and CLI
+ * headers, the metadata streams and the size and position of every
+ * table row.  Interpreting the rows is left to the callers.</p>
+ *
+ * <p>Row numbers are one based, just like the metadata tokens used
+ * by the CLI.</p>
+ *
+ * <p>Nothing is copied when the reader is created, only the table
+ * layout is computed.  Rows are decoded straight from the underlying
+ * buffer when they are asked for, the identity tables are decoded
+ * once on first access.  Use {@link MetadataCache} to share readers
+ * between tasks.</p>
+ *
+ * <p>All offsets and sizes found in the headers are checked against
+ * the size of the image, a truncated or corrupt image makes the
+ * constructor throw an IOException.</p>
+ *
+ * @since .NET Antlib 1.2
+ */
+public class MetadataReader {
+
+    public static final int MODULE = 0x00;
+    public static final int TYPEREF = 0x01;
+    public static final int TYPEDEF = 0x02;
+    public static final int FIELDPTR = 0x03;
+    public static final int FIELD = 0x04;
+    public static final int METHODPTR = 0x05;
+    public static final int METHODDEF = 0x06;
+    public static final int PARAMPTR = 0x07;
+    public static final int PARAM = 0x08;
+    public static final int INTERFACEIMPL = 0x09;
+    public static final int MEMBERREF = 0x0A;
+    public static final int CONSTANT = 0x0B;
+    public static final int CUSTOMATTRIBUTE = 0x0C;
+    public static final int FIELDMARSHAL = 0x0D;
+    public static final int DECLSECURITY = 0x0E;
+    public static final int CLASSLAYOUT = 0x0F;
+    public static final int FIELDLAYOUT = 0x10;
+    public static final int STANDALONESIG = 0x11;
+    public static final int EVENTMAP = 0x12;
+    public static final int EVENTPTR = 0x13;
+    public static final int EVENT = 0x14;
+    public static final int PROPERTYMAP = 0x15;
+    public static final int PROPERTYPTR = 0x16;
+    public static final int PROPERTY = 0x17;
+    public static final int METHODSEMANTICS = 0x18;
+    public static final int METHODIMPL = 0x19;
+    public static final int MODULEREF = 0x1A;
+    public static final int TYPESPEC = 0x1B;
+    public static final int IMPLMAP = 0x1C;
+    public static final int FIELDRVA = 0x1D;
+    public static final int ENCLOG = 0x1E;
+    public static final int ENCMAP = 0x1F;
+    public static final int ASSEMBLY = 0x20;
+    public static final int ASSEMBLYPROCESSOR = 0x21;
+    public static final int ASSEMBLYOS = 0x22;
+    public static final int ASSEMBLYREF = 0x23;
+    public static final int ASSEMBLYREFPROCESSOR = 0x24;
+    public static final int ASSEMBLYREFOS = 0x25;
+    public static final int FILE = 0x26;
+    public static final int EXPORTEDTYPE = 0x27;
+    public static final int MANIFESTRESOURCE = 0x28;
+    public static final int NESTEDCLASS = 0x29;
+    public static final int GENERICPARAM = 0x2A;
+    public static final int METHODSPEC = 0x2B;
+    public static final int GENERICPARAMCONSTRAINT = 0x2C;
+
+    private static final int TABLE_COUNT = 0x2D;
+
+    public static final int TYPE_DEF_OR_REF = 0;
+    public static final int HAS_CONSTANT = 1;
+    public static final int HAS_CUSTOM_ATTRIBUTE = 2;
+    public static final int HAS_FIELD_MARSHAL = 3;
+    public static final int HAS_DECL_SECURITY = 4;
+    public static final int MEMBER_REF_PARENT = 5;
+    public static final int HAS_SEMANTICS = 6;
+    public static final int METHOD_DEF_OR_REF = 7;
+    public static final int MEMBER_FORWARDED = 8;
+    public static final int IMPLEMENTATION = 9;
+    public static final int CUSTOM_ATTRIBUTE_TYPE = 10;
+    public static final int RESOLUTION_SCOPE = 11;
+    public static final int TYPE_OR_METHOD_DEF = 12;
+
+    /** tables a coded index may point to, -1 marks unused tags */
+    private static final int[][] CODED_TABLES = {
+        {TYPEDEF, TYPEREF, TYPESPEC},
+        {FIELD, PARAM, PROPERTY},
+        {METHODDEF, FIELD, TYPEREF, TYPEDEF, PARAM, INTERFACEIMPL,
+         MEMBERREF, MODULE, DECLSECURITY, PROPERTY, EVENT, STANDALONESIG,
+         MODULEREF, TYPESPEC, ASSEMBLY, ASSEMBLYREF, FILE, EXPORTEDTYPE,
+         MANIFESTRESOURCE, GENERICPARAM, GENERICPARAMCONSTRAINT,
+         METHODSPEC},
+        {FIELD, PARAM},
+        {TYPEDEF, METHODDEF, ASSEMBLY},
+        {TYPEDEF, TYPEREF, MODULEREF, METHODDEF, TYPESPEC},
+        {EVENT, PROPERTY},
+        {METHODDEF, MEMBERREF},
+        {FIELD, METHODDEF},
+        {FILE, ASSEMBLYREF, EXPORTEDTYPE},
+        {-1, -1, METHODDEF, MEMBERREF, -1},
+        {MODULE, MODULEREF, ASSEMBLYREF, TYPEREF},
+        {TYPEDEF, METHODDEF},
+    };
+
+    /** number of tag bits of each coded index */
+    private static final int[] CODED_BITS = {
+        2, 2, 5, 1, 2, 3, 1, 1, 1, 2, 3, 2, 1
+    };
+
+    private static final int U2 = 1;
+    private static final int U4 = 2;
+    private static final int STRING = 3;
+    private static final int GUID = 4;
+    private static final int BLOB = 5;
+    private static final int INDEX = 0x100;
+    private static final int CODED = 0x200;
+
+    /** column layout of every table as defined in ECMA-335 II.22 */
+    private static final int[][] SCHEMA = {
+        /* Module */ {U2, STRING, GUID, GUID, GUID},
+        /* TypeRef */ {CODED | RESOLUTION_SCOPE, STRING, STRING},
+        /* TypeDef */ {U4, STRING, STRING, CODED | TYPE_DEF_OR_REF,
+                       INDEX | FIELD, INDEX | METHODDEF},
+        /* FieldPtr */ {INDEX | FIELD},
+        /* Field */ {U2, STRING, BLOB},
+        /* MethodPtr */ {INDEX | METHODDEF},
+        /* MethodDef */ {U4, U2, U2, STRING, BLOB, INDEX | PARAM},
+        /* ParamPtr */ {INDEX | PARAM},
+        /* Param */ {U2, U2, STRING},
+        /* InterfaceImpl */ {INDEX | TYPEDEF, CODED | TYPE_DEF_OR_REF},
+        /* MemberRef */ {CODED | MEMBER_REF_PARENT, STRING, BLOB},
+        /* Constant */ {U2, CODED | HAS_CONSTANT, BLOB},
+        /* CustomAttribute */ {CODED | HAS_CUSTOM_ATTRIBUTE,
+                               CODED | CUSTOM_ATTRIBUTE_TYPE, BLOB},
+        /* FieldMarshal */ {CODED | HAS_FIELD_MARSHAL, BLOB},
+        /* DeclSecurity */ {U2, CODED | HAS_DECL_SECURITY, BLOB},
+        /* ClassLayout */ {U2, U4, INDEX | TYPEDEF},
+        /* FieldLayout */ {U4, INDEX | FIELD},
+        /* StandAloneSig */ {BLOB},
+        /* EventMap */ {INDEX | TYPEDEF, INDEX | EVENT},
+        /* EventPtr */ {INDEX | EVENT},
+        /* Event */ {U2, STRING, CODED | TYPE_DEF_OR_REF},
+        /* PropertyMap */ {INDEX | TYPEDEF, INDEX | PROPERTY},
+        /* PropertyPtr */ {INDEX | PROPERTY},
+        /* Property */ {U2, STRING, BLOB},
+        /* MethodSemantics */ {U2, INDEX | METHODDEF, CODED | HAS_SEMANTICS},
+        /* MethodImpl */ {INDEX | TYPEDEF, CODED | METHOD_DEF_OR_REF,
+                          CODED | METHOD_DEF_OR_REF},
+        /* ModuleRef */ {STRING},
+        /* TypeSpec */ {BLOB},
+        /* ImplMap */ {U2, CODED | MEMBER_FORWARDED, STRING,
+                       INDEX | MODULEREF},
+        /* FieldRVA */ {U4, INDEX | FIELD},
+        /* EncLog */ {U4, U4},
+        /* EncMap */ {U4},
+        /* Assembly */ {U4, U2, U2, U2, U2, U4, BLOB, STRING, STRING},
+        /* AssemblyProcessor */ {U4},
+        /* AssemblyOS */ {U4, U4, U4},
+        /* AssemblyRef */ {U2, U2, U2, U2, U4, BLOB, STRING, STRING, BLOB},
+        /* AssemblyRefProcessor */ {U4, INDEX | ASSEMBLYREF},
+        /* AssemblyRefOS */ {U4, U4, U4, INDEX | ASSEMBLYREF},
+        /* File */ {U4, STRING, BLOB},
+        /* ExportedType */ {U4, U4, STRING, STRING, CODED | IMPLEMENTATION},
+        /* ManifestResource */ {U4, U4, STRING, CODED | IMPLEMENTATION},
+        /* NestedClass */ {INDEX | TYPEDEF, INDEX | TYPEDEF},
+        /* GenericParam */ {U2, U2, CODED | TYPE_OR_METHOD_DEF, STRING},
+        /* MethodSpec */ {CODED | METHOD_DEF_OR_REF, BLOB},
+        /* GenericParamConstraint */ {INDEX | GENERICPARAM,
+                                      CODED | TYPE_DEF_OR_REF},
+    };
+
+    private static final int MZ_SIGNATURE = 0x5A4D;
+    private static final int PE_SIGNATURE = 0x00004550;
+    private static final int METADATA_SIGNATURE = 0x424A5342;
+    private static final int PE32_PLUS = 0x20B;
+    private static final int CLI_HEADER_DIRECTORY = 14;
+    private static final int DEBUG_DIRECTORY = 6;
+    private static final int DEBUG_TYPE_CODEVIEW = 2;
+    private static final int DEBUG_TYPE_PDB_CHECKSUM = 19;
+
+    /**
+     * Mapped files stay locked on Windows until the buffer gets
+     * garbage collected, which would keep compilers from overwriting
+     * them.
+     */
+    private static final boolean MAP_FILES = !Os.isFamily("windows");
+
+    /**
+     * Files up to this size are read into the heap even where they
+     * could be mapped.  A compiler rewriting a mapped file in place
+     * makes any later access to the mapping fail with a bus error,
+     * and nearly all assemblies - in particular the outputs of the
+     * build - are smaller than this.
+     */
+    private static final long MAP_THRESHOLD = 4 * 1024 * 1024;
+
+    /**
+     * enough to hold the DOS, PE and optional headers plus the
+     * section table of any sane PE file
+     */
+    private static final int HEADER_PROBE_SIZE = 4096;
+
+    private final ByteBuffer buffer;
+    private int sectionTable;
+    private int sectionCount;
+    private String runtimeVersion;
+    private boolean uncompressedTables;
+
+    private int stringsOffset;
+    private int stringsSize;
+    private int blobOffset;
+    private int blobSize;
+    private int guidOffset;
+    private int guidSize;
+    private int tablesOffset = -1;
+
+    private int stringIndexSize = 2;
+    private int guidIndexSize = 2;
+    private int blobIndexSize = 2;
+
+    private final int[] rowCounts = new int[TABLE_COUNT];
+    private final int[] tableOffsets = new int[TABLE_COUNT];
+    private final int[] rowSizes = new int[TABLE_COUNT];
+    private final int[][] columnOffsets = new int[TABLE_COUNT][];
+    private final int[][] columnSizes = new int[TABLE_COUNT][];
+
+    private AssemblyName assemblyName;
+    private AssemblyName[] assemblyReferences;
+
+    /**
+     * Parses the given image.
+     *
+     * @param buffer the complete contents of a PE file
+     * @throws IOException if the image is not a managed PE file
+     */
+    public MetadataReader(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int metadata = readHeaders();
+        readStreamHeaders(metadata);
+        if (tablesOffset < 0) {
+            throw new IOException("no metadata tables stream");
+        }
+        readTableLayout();
+    }
+
+    /**
+     * Reads the metadata of the given file.
+     *
+     * <p>Large files are mapped into memory except on Windows, all
+     * others are read into the heap.</p>
+     *
+     * @param file the assembly or module to read
+     * @throws IOException if the file cannot be read or isn't managed
+     */
+    public static MetadataReader open(File file) throws IOException {
+        return new MetadataReader(load(file));
+    }
+
+    /**
+     * Provides the contents of a file, mapped into memory if it is
+     * large and the platform allows it, read into the heap
+     * otherwise.
+     */
+    public static ByteBuffer load(File file) throws IOException {
+        return MAP_FILES && file.length() > MAP_THRESHOLD
+            ? map(file) : readFile(file);
+    }
+
+    /**
+     * Maps a file into memory read-only.
+     */
+    public static ByteBuffer map(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                               channel.size());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads the complete contents of a file.
+     */
+    public static ByteBuffer readFile(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer b = ByteBuffer.allocate((int) channel.size());
+            while (b.hasRemaining() && channel.read(b) >= 0) {
+                // keep on reading
+            }
+            b.flip();
+            return b;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Whether the file is a PE file with a CLI header.
+     *
+     * <p>Only the headers are read, the metadata itself is not
+     * validated.</p>
+     *
+     * @throws IOException if the file cannot be read
+     */
+    public static boolean isManagedBinary(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] b = new byte[(int) Math.min(raf.length(),
+                                               HEADER_PROBE_SIZE)];
+            raf.readFully(b);
+            ByteBuffer buf = ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN);
+            if (b.length < 0x40 || (buf.getShort(0) & 0xFFFF) != MZ_SIGNATURE) {
+                return false;
+            }
+            int pe = buf.getInt(0x3C);
+            if (pe < 0 || pe + 24 > b.length || buf.getInt(pe) != PE_SIGNATURE) {
+                return false;
+            }
+            int optional = pe + 24;
+            boolean plus = (buf.getShort(optional) & 0xFFFF) == PE32_PLUS;
+            int countPos = optional + (plus ? 108 : 92);
+            int cliPos = optional + (plus ? 112 : 96) + CLI_HEADER_DIRECTORY * 8;
+            if (cliPos + 8 > b.length || buf.getInt(countPos) <= CLI_HEADER_DIRECTORY) {
+                return false;
+            }
+            return buf.getInt(cliPos) != 0;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * The version of the runtime the image has been compiled for,
+     * "v4.0.30319" for example.
+     */
+    public String getRuntimeVersion() {
+        return runtimeVersion;
+    }
+
+    /**
+     * Whether the tables stream is the uncompressed "#-" flavor
+     * that may use the *Ptr indirection tables.
+     */
+    public boolean hasUncompressedTables() {
+        return uncompressedTables;
+    }
+
+    /**
+     * The identity of the assembly, null for modules that don't
+     * carry a manifest.
+     */
+    public synchronized AssemblyName getAssemblyName() {
+        if (assemblyName == null && getRowCount(ASSEMBLY) > 0) {
+            assemblyName =
+                new AssemblyName(getStringValue(ASSEMBLY, 1, 7),
+                                 new int[] {getValue(ASSEMBLY, 1, 1),
+                                            getValue(ASSEMBLY, 1, 2),
+                                            getValue(ASSEMBLY, 1, 3),
+                                            getValue(ASSEMBLY, 1, 4)},
+                                 getStringValue(ASSEMBLY, 1, 8),
+                                 getBlobValue(ASSEMBLY, 1, 6),
+                                 getValue(ASSEMBLY, 1, 5));
+        }
+        return assemblyName;
+    }
+
+    /**
+     * The assemblies this image references.
+     */
+    public synchronized AssemblyName[] getAssemblyReferences() {
+        if (assemblyReferences == null) {
+            int rows = getRowCount(ASSEMBLYREF);
+            assemblyReferences = new AssemblyName[rows];
+            for (int i = 1; i <= rows; i++) {
+                assemblyReferences[i - 1] =
+                    new AssemblyName(getStringValue(ASSEMBLYREF, i, 6),
+                                     new int[] {getValue(ASSEMBLYREF, i, 0),
+                                                getValue(ASSEMBLYREF, i, 1),
+                                                getValue(ASSEMBLYREF, i, 2),
+                                                getValue(ASSEMBLYREF, i, 3)},
+                                     getStringValue(ASSEMBLYREF, i, 7),
+                                     getBlobValue(ASSEMBLYREF, i, 5),
+                                     getValue(ASSEMBLYREF, i, 4));
+            }
+        }
+        return (AssemblyName[]) assemblyReferences.clone();
+    }
+
+    /**
+     * The name of the module, i.e. the file name it has been
+     * compiled to.
+     */
+    public String getModuleName() {
+        return getRowCount(MODULE) > 0 ? getStringValue(MODULE, 1, 1) : null;
+    }
+
+    /**
+     * The module version id, a GUID that changes with every
+     * compilation.
+     */
+    public byte[] getModuleVersionId() {
+        return getRowCount(MODULE) > 0
+            ? getGuid(getValue(MODULE, 1, 2)) : new byte[16];
+    }
+
+    /**
+     * The parts of the image that differ between two compilations of
+     * the same sources: the timestamp and checksum of the PE header,
+     * the module version id, the timestamps of the debug directory,
+     * the GUID and age linking the image to its debug symbols, the
+     * checksum of the symbols and the strong name signature.
+     *
+     * @return pairs of file offset and length
+     * @since .NET Antlib 1.2
+     */
+    public int[] getVolatileRanges() throws IOException {
+        int[] ranges = new int[64];
+        int count = 0;
+        int pe = buffer.getInt(0x3C);
+        int optional = pe + 24;
+        boolean plus = u2(optional) == PE32_PLUS;
+        int directories = optional + (plus ? 112 : 96);
+        checkRange(directories, (DEBUG_DIRECTORY + 1) * 8, "data directory");
+        // COFF TimeDateStamp and optional header CheckSum
+        ranges[count++] = pe + 8;
+        ranges[count++] = 4;
+        ranges[count++] = optional + 64;
+        ranges[count++] = 4;
+        if (getRowCount(MODULE) > 0 && getValue(MODULE, 1, 2) > 0) {
+            ranges[count++] = guidOffset + (getValue(MODULE, 1, 2) - 1) * 16;
+            ranges[count++] = 16;
+        }
+        int debugRva = buffer.getInt(directories + DEBUG_DIRECTORY * 8);
+        int debugSize = buffer.getInt(directories + DEBUG_DIRECTORY * 8 + 4);
+        if (debugRva != 0) {
+            int debug = rvaToOffset(debugRva);
+            checkRange(debug, debugSize, "debug directory");
+            for (int i = 0; i < debugSize / 28 && count + 4 <= ranges.length;
+                 i++) {
+                int entry = debug + i * 28;
+                ranges[count++] = entry + 4;
+                ranges[count++] = 4;
+                int type = buffer.getInt(entry + 12);
+                int size = buffer.getInt(entry + 16);
+                int data = buffer.getInt(entry + 24);
+                if (type == DEBUG_TYPE_CODEVIEW && size >= 24) {
+                    checkRange(data, size, "debug data");
+                    // skip the RSDS signature
+                    ranges[count++] = data + 4;
+                    ranges[count++] = 20;
+                } else if (type == DEBUG_TYPE_PDB_CHECKSUM) {
+                    checkRange(data, size, "debug data");
+                    ranges[count++] = data;
+                    ranges[count++] = size;
+                }
+            }
+        }
+        int cli = rvaToOffset(buffer.getInt(directories
+                                            + CLI_HEADER_DIRECTORY * 8));
+        int signatureRva = buffer.getInt(cli + 32);
+        if (signatureRva != 0 && count + 2 <= ranges.length) {
+            int signature = rvaToOffset(signatureRva);
+            int signatureSize = buffer.getInt(cli + 36);
+            checkRange(signature, signatureSize, "strong name signature");
+            ranges[count++] = signature;
+            ranges[count++] = signatureSize;
+        }
+        int[] result = new int[count];
+        System.arraycopy(ranges, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * The name of a TypeDef row, including its namespace.
+     */
+    public String getTypeDefName(int row) {
+        String ns = getStringValue(TYPEDEF, row, 2);
+        String name = getStringValue(TYPEDEF, row, 1);
+        return ns.length() == 0 ? name : ns + "." + name;
+    }
+
+    /**
+     * The name of a MethodDef row.
+     */
+    public String getMethodDefName(int row) {
+        return getStringValue(METHODDEF, row, 3);
+    }
+
+    /**
+     * Number of rows of the given table.
+     */
+    public int getRowCount(int table) {
+        return table < TABLE_COUNT ? rowCounts[table] : 0;
+    }
+
+    /**
+     * Reads a column of the given row as unsigned integer.
+     *
+     * <p>Heap columns return the heap index, index and coded index
+     * columns return the raw index value.</p>
+     *
+     * @param table the table
+     * @param row the one based row number
+     * @param column the zero based column
+     */
+    public int getValue(int table, int row, int column) {
+        if (row < 1 || row > rowCounts[table]) {
+            throw new IllegalArgumentException("row " + row
+                                               + " doesn't exist in table 0x"
+                                               + Integer.toHexString(table));
+        }
+        int pos = tableOffsets[table] + (row - 1) * rowSizes[table]
+            + columnOffsets[table][column];
+        return columnSizes[table][column] == 2
+            ? (buffer.getShort(pos) & 0xFFFF) : buffer.getInt(pos);
+    }
+
+    /**
+     * Reads a string column of the given row.
+     */
+    public String getStringValue(int table, int row, int column) {
+        return getString(getValue(table, row, column));
+    }
+
+    /**
+     * Reads a blob column of the given row.
+     */
+    public byte[] getBlobValue(int table, int row, int column) {
+        return getBlob(getValue(table, row, column));
+    }
+
+    /**
+     * Reads a null terminated UTF-8 string from the #Strings heap.
+     */
+    public String getString(int index) {
+        if (index == 0) {
+            return "";
+        }
+        if (index >= stringsSize) {
+            throw new IllegalArgumentException("string index out of range");
+        }
+        int start = stringsOffset + index;
+        int end = start;
+        int limit = stringsOffset + stringsSize;
+        while (end < limit && buffer.get(end) != 0) {
+            end++;
+        }
+        byte[] b = new byte[end - start];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = buffer.get(start + i);
+        }
+        try {
+            return new String(b, "UTF-8");
+        } catch (java.io.UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(e.toString());
+        }
+    }
+
+    /**
+     * Reads an entry of the #Blob heap.
+     */
+    public byte[] getBlob(int index) {
+        if (index == 0) {
+            return new byte[0];
+        }
+        if (index >= blobSize) {
+            throw new IllegalArgumentException("blob index out of range");
+        }
+        int pos = blobOffset + index;
+        int limit = blobOffset + blobSize;
+        int first = buffer.get(pos) & 0xFF;
+        int length;
+        if ((first & 0x80) == 0) {
+            length = first;
+            pos += 1;
+        } else if ((first & 0xC0) == 0x80 && pos + 2 <= limit) {
+            length = ((first & 0x3F) << 8) | (buffer.get(pos + 1) & 0xFF);
+            pos += 2;
+        } else if (pos + 4 <= limit) {
+            length = ((first & 0x1F) << 24)
+                | ((buffer.get(pos + 1) & 0xFF) << 16)
+                | ((buffer.get(pos + 2) & 0xFF) << 8)
+                | (buffer.get(pos + 3) & 0xFF);
+            pos += 4;
+        } else {
+            throw new IllegalArgumentException("blob " + index
+                                               + " exceeds the heap");
+        }
+        if (length > limit - pos) {
+            throw new IllegalArgumentException("blob " + index
+                                               + " exceeds the heap");
+        }
+        byte[] b = new byte[length];
+        for (int i = 0; i < length; i++) {
+            b[i] = buffer.get(pos + i);
+        }
+        return b;
+    }
+
+    /**
+     * Reads an entry of the #GUID heap, indices are one based.
+     */
+    public byte[] getGuid(int index) {
+        byte[] b = new byte[16];
+        if (index == 0) {
+            return b;
+        }
+        int pos = guidOffset + (index - 1) * 16;
+        if (pos + 16 > guidOffset + guidSize) {
+            throw new IllegalArgumentException("guid index out of range");
+        }
+        for (int i = 0; i < 16; i++) {
+            b[i] = buffer.get(pos + i);
+        }
+        return b;
+    }
+
+    /**
+     * The table a coded index value points to, -1 if the tag is
+     * unused.
+     */
+    public static int getCodedTable(int codedKind, int value) {
+        int tag = value & ((1 << CODED_BITS[codedKind]) - 1);
+        int[] tables = CODED_TABLES[codedKind];
+        return tag < tables.length ? tables[tag] : -1;
+    }
+
+    /**
+     * The one based row a coded index value points to.
+     */
+    public static int getCodedRow(int codedKind, int value) {
+        return value >>> CODED_BITS[codedKind];
+    }
+
+    /**
+     * Parses the DOS, PE and CLI headers.
+     *
+     * @return the file offset of the metadata root
+     */
+    private int readHeaders() throws IOException {
+        if (buffer.limit() < 0x40 || u2(0) != MZ_SIGNATURE) {
+            throw new IOException("not a PE file");
+        }
+        int pe = buffer.getInt(0x3C);
+        if (pe < 0 || pe + 24 > buffer.limit() || buffer.getInt(pe) != PE_SIGNATURE) {
+            throw new IOException("not a PE file");
+        }
+        int coff = pe + 4;
+        sectionCount = u2(coff + 2);
+        int optionalHeaderSize = u2(coff + 16);
+        int optional = coff + 20;
+        sectionTable = optional + optionalHeaderSize;
+        checkRange(optional, 2, "optional header");
+        boolean plus = u2(optional) == PE32_PLUS;
+        int directories = optional + (plus ? 112 : 96);
+        checkRange(optional, directories - optional
+                   + (CLI_HEADER_DIRECTORY + 1) * 8, "optional header");
+        checkRange(sectionTable, sectionCount * 40L, "section table");
+        int directoryCount = buffer.getInt(directories - 4);
+        if (directoryCount <= CLI_HEADER_DIRECTORY) {
+            throw new IOException("not a managed PE file");
+        }
+        int cliRva = buffer.getInt(directories + CLI_HEADER_DIRECTORY * 8);
+        if (cliRva == 0) {
+            throw new IOException("not a managed PE file");
+        }
+        int cli = rvaToOffset(cliRva);
+        checkRange(cli, 72, "CLI header");
+        int metadata = rvaToOffset(buffer.getInt(cli + 8));
+        checkRange(metadata, 16, "metadata root");
+        if (buffer.getInt(metadata) != METADATA_SIGNATURE) {
+            throw new IOException("invalid metadata signature");
+        }
+        return metadata;
+    }
+
+    /**
+     * Locates the heaps and the tables stream.
+     */
+    private void readStreamHeaders(int metadata) throws IOException {
+        int versionLength = buffer.getInt(metadata + 12);
+        // the version is followed by the flags and the stream count
+        checkRange(metadata + 16, versionLength + 4L, "metadata root");
+        StringBuffer version = new StringBuffer();
+        for (int i = 0; i < versionLength; i++) {
+            byte b = buffer.get(metadata + 16 + i);
+            if (b == 0) {
+                break;
+            }
+            version.append((char) b);
+        }
+        runtimeVersion = version.toString();
+        int pos = metadata + 16 + versionLength;
+        int streams = u2(pos + 2);
+        pos += 4;
+        for (int i = 0; i < streams; i++) {
+            checkRange(pos, 8, "stream header");
+            long start = (long) metadata + (buffer.getInt(pos) & 0xFFFFFFFFL);
+            int size = buffer.getInt(pos + 4);
+            checkRange(start, size, "metadata stream");
+            int offset = (int) start;
+            pos += 8;
+            StringBuffer name = new StringBuffer();
+            byte b;
+            do {
+                checkRange(pos, 1, "stream header");
+                b = buffer.get(pos++);
+                if (b != 0) {
+                    name.append((char) b);
+                }
+            } while (b != 0);
+            // names are padded to the next four byte boundary
+            pos = (pos + 3) & ~3;
+            String n = name.toString();
+            if ("#~".equals(n) || "#-".equals(n)) {
+                tablesOffset = offset;
+                uncompressedTables = "#-".equals(n);
+            } else if ("#Strings".equals(n)) {
+                stringsOffset = offset;
+                stringsSize = size;
+            } else if ("#Blob".equals(n)) {
+                blobOffset = offset;
+                blobSize = size;
+            } else if ("#GUID".equals(n)) {
+                guidOffset = offset;
+                guidSize = size;
+            }
+        }
+    }
+
+    /**
+     * Computes the row counts, row sizes and table positions.
+     */
+    private void readTableLayout() throws IOException {
+        checkRange(tablesOffset, 24, "tables stream");
+        int heapSizes = buffer.get(tablesOffset + 6) & 0xFF;
+        stringIndexSize = (heapSizes & 0x01) != 0 ? 4 : 2;
+        guidIndexSize = (heapSizes & 0x02) != 0 ? 4 : 2;
+        blobIndexSize = (heapSizes & 0x04) != 0 ? 4 : 2;
+        long valid = buffer.getLong(tablesOffset + 8);
+        int pos = tablesOffset + 24;
+        for (int i = 0; i < 64; i++) {
+            if ((valid & (1L << i)) != 0) {
+                if (i >= TABLE_COUNT) {
+                    throw new IOException("unknown metadata table 0x"
+                                          + Integer.toHexString(i));
+                }
+                checkRange(pos, 4, "tables stream");
+                rowCounts[i] = buffer.getInt(pos);
+                if (rowCounts[i] < 0) {
+                    throw new IOException("invalid row count of table 0x"
+                                          + Integer.toHexString(i));
+                }
+                pos += 4;
+            }
+        }
+        if ((heapSizes & 0x40) != 0) {
+            // extra data used by edit and continue images
+            pos += 4;
+        }
+        for (int t = 0; t < TABLE_COUNT; t++) {
+            int[] columns = SCHEMA[t];
+            columnOffsets[t] = new int[columns.length];
+            columnSizes[t] = new int[columns.length];
+            int size = 0;
+            for (int c = 0; c < columns.length; c++) {
+                columnOffsets[t][c] = size;
+                columnSizes[t][c] = getColumnSize(columns[c]);
+                size += columnSizes[t][c];
+            }
+            rowSizes[t] = size;
+            tableOffsets[t] = pos;
+            long length = (long) size * rowCounts[t];
+            checkRange(pos, length, "metadata table 0x"
+                       + Integer.toHexString(t));
+            pos += (int) length;
+        }
+    }
+
+    private int getColumnSize(int type) {
+        switch (type) {
+        case U2:
+            return 2;
+        case U4:
+            return 4;
+        case STRING:
+            return stringIndexSize;
+        case GUID:
+            return guidIndexSize;
+        case BLOB:
+            return blobIndexSize;
+        default:
+            if ((type & INDEX) != 0) {
+                return rowCounts[type & 0xFF] < 0x10000 ? 2 : 4;
+            }
+            int kind = type & 0xFF;
+            int max = 0;
+            int[] tables = CODED_TABLES[kind];
+            for (int i = 0; i < tables.length; i++) {
+                if (tables[i] >= 0 && rowCounts[tables[i]] > max) {
+                    max = rowCounts[tables[i]];
+                }
+            }
+            return max < (1 << (16 - CODED_BITS[kind])) ? 2 : 4;
+        }
+    }
+
+    /**
+     * Maps a relative virtual address to a file offset using the
+     * section table.
+     */
+    private int rvaToOffset(int rva) throws IOException {
+        for (int i = 0; i < sectionCount; i++) {
+            int header = sectionTable + i * 40;
+            int virtualSize = buffer.getInt(header + 8);
+            int virtualAddress = buffer.getInt(header + 12);
+            int rawSize = buffer.getInt(header + 16);
+            int rawPointer = buffer.getInt(header + 20);
+            long size = Math.max(virtualSize & 0xFFFFFFFFL,
+                                 rawSize & 0xFFFFFFFFL);
+            long address = virtualAddress & 0xFFFFFFFFL;
+            long r = rva & 0xFFFFFFFFL;
+            if (r >= address && r < address + size) {
+                long offset = r - address + (rawPointer & 0xFFFFFFFFL);
+                if (offset >= buffer.limit()) {
+                    break;
+                }
+                return (int) offset;
+            }
+        }
+        throw new IOException("RVA 0x" + Integer.toHexString(rva)
+                              + " is not inside any section");
+    }
+
+    /**
+     * Ensures the given part lies inside the image.
+     */
+    private void checkRange(long offset, long length, String what)
+        throws IOException {
+        if (offset < 0 || length < 0 || offset + length > buffer.limit()) {
+            throw new IOException(what + " exceeds the file size");
+        }
+    }
+
+    private int u2(int pos) {
+        return buffer.getShort(pos) & 0xFFFF;
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.apache.ant.dotnet.metadata;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Turns type references and signature blobs of a {@link
+ * MetadataReader} into strings that don't depend on row numbers.
+ *
+ * <p>Row numbers of TypeRef and TypeSpec entries change whenever the
+ * implementation of an assembly starts to use a new type, so
+ * anything that compares metadata of two builds has to compare names
+ * instead.</p>
+ *
+ * @since .NET Antlib 1.2
+ */
+public class SignatureFormatter {
+
+    private static final int ELEMENT_TYPE_END = 0x00;
+    private static final int ELEMENT_TYPE_PTR = 0x0F;
+    private static final int ELEMENT_TYPE_BYREF = 0x10;
+    private static final int ELEMENT_TYPE_VALUETYPE = 0x11;
+    private static final int ELEMENT_TYPE_CLASS = 0x12;
+    private static final int ELEMENT_TYPE_VAR = 0x13;
+    private static final int ELEMENT_TYPE_ARRAY = 0x14;
+    private static final int ELEMENT_TYPE_GENERICINST = 0x15;
+    private static final int ELEMENT_TYPE_TYPEDBYREF = 0x16;
+    private static final int ELEMENT_TYPE_I = 0x18;
+    private static final int ELEMENT_TYPE_U = 0x19;
+    private static final int ELEMENT_TYPE_FNPTR = 0x1B;
+    private static final int ELEMENT_TYPE_OBJECT = 0x1C;
+    private static final int ELEMENT_TYPE_SZARRAY = 0x1D;
+    private static final int ELEMENT_TYPE_MVAR = 0x1E;
+    private static final int ELEMENT_TYPE_CMOD_REQD = 0x1F;
+    private static final int ELEMENT_TYPE_CMOD_OPT = 0x20;
+    private static final int ELEMENT_TYPE_SENTINEL = 0x41;
+    private static final int ELEMENT_TYPE_PINNED = 0x45;
+
+    private static final int FIELD_SIGNATURE = 0x06;
+    private static final int PROPERTY_SIGNATURE = 0x08;
+    private static final int GENERIC_SIGNATURE = 0x10;
+
+    private static final String[] PRIMITIVES = {
+        null, "void", "bool", "char", "int8", "uint8", "int16", "uint16",
+        "int32", "uint32", "int64", "uint64", "float32", "float64", "string"
+    };
+
+    private final MetadataReader reader;
+
+    /**
+     * enclosing TypeDef row of nested TypeDef rows
+     */
+    private Map enclosingTypes;
+
+    public SignatureFormatter(MetadataReader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * The full name of a TypeDef row, nested types are separated
+     * from their enclosing type by a slash.
+     */
+    public String getTypeDefName(int row) {
+        Integer enclosing = (Integer) getEnclosingTypes().get(new Integer(row));
+        String name = reader.getStringValue(MetadataReader.TYPEDEF, row, 1);
+        if (enclosing != null && enclosing.intValue() != row) {
+            return getTypeDefName(enclosing.intValue()) + "/" + name;
+        }
+        return qualify(reader.getStringValue(MetadataReader.TYPEDEF, row, 2),
+                       name);
+    }
+
+    /**
+     * The full name of a TypeRef row, prefixed by the name of the
+     * assembly it lives in if it has been resolved to an
+     * AssemblyRef.
+     */
+    public String getTypeRefName(int row) {
+        String name = qualify(reader.getStringValue(MetadataReader.TYPEREF,
+                                                    row, 2),
+                              reader.getStringValue(MetadataReader.TYPEREF,
+                                                    row, 1));
+        int scope = reader.getValue(MetadataReader.TYPEREF, row, 0);
+        int table = MetadataReader.getCodedTable(MetadataReader.RESOLUTION_SCOPE,
+                                                 scope);
+        int scopeRow = MetadataReader.getCodedRow(MetadataReader.RESOLUTION_SCOPE,
+                                                  scope);
+        if (scopeRow == 0) {
+            return name;
+        }
+        if (table == MetadataReader.TYPEREF && scopeRow != row) {
+            return getTypeRefName(scopeRow) + "/"
+                + reader.getStringValue(MetadataReader.TYPEREF, row, 1);
+        }
+        if (table == MetadataReader.ASSEMBLYREF) {
+            return "[" + reader.getStringValue(MetadataReader.ASSEMBLYREF,
+                                               scopeRow, 6)
+                + "]" + name;
+        }
+        return name;
+    }
+
+    /**
+     * The name of whatever a coded TypeDefOrRef index points to.
+     */
+    public String getTypeName(int codedTypeDefOrRef) {
+        return getTypeName(MetadataReader
+                           .getCodedTable(MetadataReader.TYPE_DEF_OR_REF,
+                                          codedTypeDefOrRef),
+                           MetadataReader
+                           .getCodedRow(MetadataReader.TYPE_DEF_OR_REF,
+                                        codedTypeDefOrRef));
+    }
+
+    /**
+     * The name of a TypeDef, TypeRef or TypeSpec row.
+     */
+    public String getTypeName(int table, int row) {
+        if (row == 0) {
+            return "";
+        }
+        switch (table) {
+        case MetadataReader.TYPEDEF:
+            return getTypeDefName(row);
+        case MetadataReader.TYPEREF:
+            return getTypeRefName(row);
+        case MetadataReader.TYPESPEC:
+            Cursor c = new Cursor(reader.getBlobValue(MetadataReader.TYPESPEC,
+                                                      row, 0));
+            StringBuffer sb = new StringBuffer();
+            type(c, sb);
+            return sb.toString();
+        default:
+            throw new IllegalArgumentException("not a type table: 0x"
+                                               + Integer.toHexString(table));
+        }
+    }
+
+    /**
+     * Formats a method, field, property or local variable signature
+     * blob.
+     */
+    public String format(byte[] signature) {
+        Cursor c = new Cursor(signature);
+        StringBuffer sb = new StringBuffer();
+        if (signature.length == 0) {
+            return "";
+        }
+        int callingConvention = c.next();
+        if ((callingConvention & 0x0F) == FIELD_SIGNATURE) {
+            sb.append("field ");
+            type(c, sb);
+        } else {
+            methodSignature(callingConvention, c, sb);
+        }
+        return sb.toString();
+    }
+
+    private void methodSignature(int callingConvention, Cursor c,
+                                 StringBuffer sb) {
+        sb.append("cc").append(Integer.toHexString(callingConvention));
+        if ((callingConvention & GENERIC_SIGNATURE) != 0) {
+            sb.append('`').append(c.compressed());
+        }
+        int count = c.compressed();
+        sb.append(' ');
+        type(c, sb);
+        sb.append('(');
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            type(c, sb);
+        }
+        sb.append(')');
+        if ((callingConvention & 0x0F) == PROPERTY_SIGNATURE) {
+            sb.insert(0, "property ");
+        }
+    }
+
+    private void type(Cursor c, StringBuffer sb) {
+        int element = c.next();
+        if (element > ELEMENT_TYPE_END && element < PRIMITIVES.length) {
+            sb.append(PRIMITIVES[element]);
+            return;
+        }
+        switch (element) {
+        case ELEMENT_TYPE_TYPEDBYREF:
+            sb.append("typedref");
+            break;
+        case ELEMENT_TYPE_I:
+            sb.append("native int");
+            break;
+        case ELEMENT_TYPE_U:
+            sb.append("native uint");
+            break;
+        case ELEMENT_TYPE_OBJECT:
+            sb.append("object");
+            break;
+        case ELEMENT_TYPE_PTR:
+            type(c, sb);
+            sb.append('*');
+            break;
+        case ELEMENT_TYPE_BYREF:
+            type(c, sb);
+            sb.append('&');
+            break;
+        case ELEMENT_TYPE_PINNED:
+            type(c, sb);
+            sb.append(" pinned");
+            break;
+        case ELEMENT_TYPE_SENTINEL:
+            sb.append("...,");
+            type(c, sb);
+            break;
+        case ELEMENT_TYPE_SZARRAY:
+            type(c, sb);
+            sb.append("[]");
+            break;
+        case ELEMENT_TYPE_VALUETYPE:
+            sb.append("valuetype ").append(getTypeRef(c.compressed()));
+            break;
+        case ELEMENT_TYPE_CLASS:
+            sb.append("class ").append(getTypeRef(c.compressed()));
+            break;
+        case ELEMENT_TYPE_VAR:
+            sb.append('!').append(c.compressed());
+            break;
+        case ELEMENT_TYPE_MVAR:
+            sb.append("!!").append(c.compressed());
+            break;
+        case ELEMENT_TYPE_CMOD_REQD:
+        case ELEMENT_TYPE_CMOD_OPT:
+            sb.append(element == ELEMENT_TYPE_CMOD_REQD ? "modreq(" : "modopt(")
+                .append(getTypeRef(c.compressed())).append(") ");
+            type(c, sb);
+            break;
+        case ELEMENT_TYPE_ARRAY:
+            type(c, sb);
+            sb.append('[').append(c.compressed());
+            int sizes = c.compressed();
+            for (int i = 0; i < sizes; i++) {
+                sb.append(',').append(c.compressed());
+            }
+            int bounds = c.compressed();
+            for (int i = 0; i < bounds; i++) {
+                sb.append(';').append(c.compressed());
+            }
+            sb.append(']');
+            break;
+        case ELEMENT_TYPE_GENERICINST:
+            type(c, sb);
+            int arguments = c.compressed();
+            sb.append('<');
+            for (int i = 0; i < arguments; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                type(c, sb);
+            }
+            sb.append('>');
+            break;
+        case ELEMENT_TYPE_FNPTR:
+            sb.append("method ");
+            methodSignature(c.next(), c, sb);
+            break;
+        default:
+            throw new IllegalArgumentException("unknown element type 0x"
+                                               + Integer.toHexString(element));
+        }
+    }
+
+    /**
+     * Resolves a TypeDefOrRefOrSpecEncoded value.
+     */
+    private String getTypeRef(int encoded) {
+        return getTypeName(encoded);
+    }
+
+    private Map getEnclosingTypes() {
+        if (enclosingTypes == null) {
+            enclosingTypes = new HashMap();
+            int rows = reader.getRowCount(MetadataReader.NESTEDCLASS);
+            for (int i = 1; i <= rows; i++) {
+                enclosingTypes.put(new Integer(reader
+                                               .getValue(MetadataReader
+                                                         .NESTEDCLASS, i, 0)),
+                                   new Integer(reader
+                                               .getValue(MetadataReader
+                                                         .NESTEDCLASS, i, 1)));
+            }
+        }
+        return enclosingTypes;
+    }
+
+    private static String qualify(String namespace, String name) {
+        return namespace.length() == 0 ? name : namespace + "." + name;
+    }
+
+    /**
+     * Position inside a signature blob.
+     */
+    private static class Cursor {
+        private final byte[] blob;
+        private int pos = 0;
+
+        Cursor(byte[] blob) {
+            this.blob = blob;
+        }
+
+        int next() {
+            if (pos >= blob.length) {
+                throw new IllegalArgumentException("truncated signature");
+            }
+            return blob[pos++] & 0xFF;
+        }
+
+        /**
+         * Reads a compressed unsigned integer (ECMA-335 II.23.2).
+         */
+        int compressed() {
+            int first = next();
+            if ((first & 0x80) == 0) {
+                return first;
+            }
+            if ((first & 0xC0) == 0x80) {
+                return ((first & 0x3F) << 8) | next();
+            }
+            return ((first & 0x1F) << 24) | (next() << 16) | (next() << 8)
+                | next();
+        }
+    }
+}
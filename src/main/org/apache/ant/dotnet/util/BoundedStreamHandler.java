@@ -0,0 +1,303 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.apache.ant.dotnet.util;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.taskdefs.ExecuteStreamHandler;
+import org.apache.tools.ant.util.FileUtils;
+
+/**
+ * Reads the output of a process without ever making the process wait
+ * for Ant's loggers.
+ *
+ * <p>Standard output and error are drained by threads of their own
+ * that only write to memory or a file.  Output that stays below a
+ * limit is logged once the process has finished.  Bigger output is
+ * written to a file and only the file's name and the last lines are
+ * logged.</p>
+ *
+ * <p>After the process has finished everything it has written is
+ * read before the output is reported.  Only a stream a process
+ * started by the command holds open is given up on - see {@link
+ * StreamDrain}.</p>
+ *
+ * <p>The handler is used by the tasks of this library if the
+ * <code>ant.dotnet.output.limit</code> property is set to the number
+ * of bytes per stream that are kept in memory.
+ * <code>ant.dotnet.output.tail</code> is the number of lines logged
+ * if the limit has been exceeded (50 by default) and
+ * <code>ant.dotnet.output.dir</code> the directory files are created
+ * in (the temporary directory by default).</p>
+ *
+ * @since .NET Antlib 1.2
+ */
+public class BoundedStreamHandler implements ExecuteStreamHandler {
+
+    /**
+     * Name of the property that enables the handler.
+     */
+    public static final String LIMIT_PROPERTY = "ant.dotnet.output.limit";
+
+    /**
+     * Name of the property holding the number of lines to log.
+     */
+    public static final String TAIL_PROPERTY = "ant.dotnet.output.tail";
+
+    /**
+     * Name of the property holding the directory for output files.
+     */
+    public static final String DIR_PROPERTY = "ant.dotnet.output.dir";
+
+    private static final int DEFAULT_TAIL = 50;
+
+    /**
+     * longer lines - in bytes - are truncated in the tail
+     */
+    private static final int MAX_LINE_LENGTH = 4096;
+
+    private static final FileUtils FILE_UTILS = FileUtils.getFileUtils();
+
+    private final Task owner;
+    private final int limit;
+    private final int tail;
+    private final File dir;
+    private Drain out;
+    private Drain err;
+
+    /**
+     * @param owner the task to log to
+     * @param limit bytes per stream kept in memory
+     * @param tail number of lines to log if the limit is exceeded
+     * @param dir directory for output files, null for the temporary
+     * directory
+     */
+    public BoundedStreamHandler(Task owner, int limit, int tail, File dir) {
+        this.owner = owner;
+        this.limit = limit;
+        this.tail = tail;
+        this.dir = dir;
+    }
+
+    /**
+     * Creates a handler if the project enables them.
+     *
+     * @return the handler or null
+     */
+    public static ExecuteStreamHandler create(Task owner) {
+        Project p = owner.getProject();
+        String limit = p.getProperty(LIMIT_PROPERTY);
+        if (limit == null) {
+            return null;
+        }
+        String tail = p.getProperty(TAIL_PROPERTY);
+        String dir = p.getProperty(DIR_PROPERTY);
+        try {
+            return new BoundedStreamHandler(owner,
+                Integer.parseInt(limit.trim()),
+                tail == null ? DEFAULT_TAIL : Integer.parseInt(tail.trim()),
+                dir == null ? null : p.resolveFile(dir));
+        } catch (NumberFormatException e) {
+            throw new BuildException("invalid value of " + LIMIT_PROPERTY
+                                     + " or " + TAIL_PROPERTY + ": "
+                                     + e.getMessage(), owner.getLocation());
+        }
+    }
+
+    public void setProcessInputStream(OutputStream os) throws IOException {
+        // nothing to feed
+        os.close();
+    }
+
+    public void setProcessOutputStream(InputStream is) {
+        out = new Drain(is, "output", Project.MSG_INFO);
+    }
+
+    public void setProcessErrorStream(InputStream is) {
+        err = new Drain(is, "error", Project.MSG_WARN);
+    }
+
+    public void start() {
+        start(out, "-out");
+        start(err, "-err");
+    }
+
+    /**
+     * Waits for the streams to be drained and logs the output.
+     */
+    public void stop() {
+        if (out != null) {
+            out.join();
+        }
+        if (err != null) {
+            err.join();
+        }
+        if (out != null) {
+            out.report();
+        }
+        if (err != null) {
+            err.report();
+        }
+    }
+
+    private void start(Drain d, String suffix) {
+        if (d != null) {
+            d.start(Threads.newThread(owner.getProject(), d,
+                                      owner.getTaskName() + suffix));
+        }
+    }
+
+    /**
+     * Reads a stream until it is exhausted.
+     *
+     * <p>All state is guarded by the drain's lock, the thread may
+     * still be running when a stream that has been abandoned is
+     * reported.</p>
+     */
+    private class Drain extends StreamDrain {
+        private final String name;
+        private final int level;
+
+        private final ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        private File file;
+        private OutputStream fileOut;
+        private long total = 0;
+        private IOException failure;
+
+        private final LinkedList lastLines = new LinkedList();
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        Drain(InputStream in, String name, int level) {
+            super(in);
+            this.name = name;
+            this.level = level;
+        }
+
+        protected synchronized void write(byte[] buffer, int read)
+            throws IOException {
+            total += read;
+            if (fileOut == null && memory.size() + read > limit) {
+                spill();
+            }
+            if (fileOut == null) {
+                memory.write(buffer, 0, read);
+            } else {
+                fileOut.write(buffer, 0, read);
+                collectLines(buffer, read);
+            }
+        }
+
+        protected synchronized void failed(IOException e) {
+            failure = e;
+        }
+
+        /**
+         * moves the output collected so far to a file
+         */
+        private void spill() throws IOException {
+            file = FILE_UTILS.createTempFile(owner.getTaskName() + "-" + name
+                                             + "-", ".log", dir);
+            fileOut = new BufferedOutputStream(new FileOutputStream(file));
+            byte[] b = memory.toByteArray();
+            fileOut.write(b);
+            collectLines(b, b.length);
+            memory.reset();
+        }
+
+        /**
+         * remembers the last lines of the output
+         */
+        private void collectLines(byte[] b, int length) {
+            for (int i = 0; i < length; i++) {
+                if (b[i] == '\n') {
+                    addLine();
+                } else if (b[i] != '\r' && line.size() < MAX_LINE_LENGTH) {
+                    line.write(b[i]);
+                }
+            }
+        }
+
+        private void addLine() {
+            // decoded using the platform's encoding like Ant's
+            // LogOutputStream does
+            lastLines.add(line.toString());
+            line.reset();
+            if (lastLines.size() > tail) {
+                lastLines.removeFirst();
+            }
+        }
+
+        /**
+         * logs the output or a summary
+         */
+        synchronized void report() {
+            // flushes what has been written to the file, further
+            // writes of a thread still running are lost
+            FILE_UTILS.close(fileOut);
+            if (isAbandoned()) {
+                owner.log("Stopped reading the " + name + " of the process,"
+                          + " a process it has started still holds the"
+                          + " stream open", Project.MSG_VERBOSE);
+            }
+            if (failure != null) {
+                owner.log("Failed to read the " + name + " of the process: "
+                          + failure, Project.MSG_WARN);
+            }
+            if (file == null) {
+                logLines(memory.toByteArray());
+                return;
+            }
+            if (line.size() > 0) {
+                addLine();
+            }
+            owner.log("The " + name + " of the process had " + total
+                      + " bytes, it has been written to " + file
+                      + (lastLines.size() > 0 ? ", the last lines are:" : ""));
+            for (Iterator iter = lastLines.iterator(); iter.hasNext();) {
+                owner.log((String) iter.next(), level);
+            }
+        }
+
+        private void logLines(byte[] b) {
+            BufferedReader r = new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(b)));
+            try {
+                String l;
+                while ((l = r.readLine()) != null) {
+                    owner.log(l, level);
+                }
+            } catch (IOException e) {
+                // can't happen reading from memory
+            }
+        }
+    }
+}
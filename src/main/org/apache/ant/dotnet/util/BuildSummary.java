@@ -0,0 +1,106 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.apache.ant.dotnet.util;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.SubBuildListener;
+
+/**
+ * Collects information during the build of a project and logs a
+ * summary when it finishes.
+ *
+ * <p>There is one instance per project and kind of summary, stored as
+ * a reference of the project.  It reports when the build finishes or
+ * - if the project is run by ant or antcall - when the subbuild of
+ * its project finishes.</p>
+ *
+ * @since .NET Antlib 1.2
+ */
+abstract class BuildSummary implements SubBuildListener {
+
+    /**
+     * Creates the summary for a project.
+     */
+    interface Factory {
+        BuildSummary create(Project p);
+    }
+
+    /**
+     * the project the summary is logged to
+     */
+    protected final Project project;
+
+    protected BuildSummary(Project project) {
+        this.project = project;
+    }
+
+    /**
+     * The summary stored under the given reference, created and
+     * registered as listener of the project if it doesn't exist
+     * yet.
+     */
+    static BuildSummary getInstance(Project p, String reference,
+                                    Factory factory) {
+        synchronized (p) {
+            BuildSummary s = (BuildSummary) p.getReference(reference);
+            if (s == null) {
+                s = factory.create(p);
+                p.addReference(reference, s);
+                p.addBuildListener(s);
+            }
+            return s;
+        }
+    }
+
+    /**
+     * Logs the summary and forgets what has been collected.
+     */
+    protected abstract void report();
+
+    public void buildFinished(BuildEvent event) {
+        report();
+    }
+
+    public void subBuildFinished(BuildEvent event) {
+        if (event.getProject() == project) {
+            report();
+        }
+    }
+
+    public void buildStarted(BuildEvent event) {
+    }
+
+    public void subBuildStarted(BuildEvent event) {
+    }
+
+    public void targetStarted(BuildEvent event) {
+    }
+
+    public void targetFinished(BuildEvent event) {
+    }
+
+    public void taskStarted(BuildEvent event) {
+    }
+
+    public void taskFinished(BuildEvent event) {
+    }
+
+    public void messageLogged(BuildEvent event) {
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.apache.ant.dotnet.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+
+/**
+ * Reads the timestamps of the files an up to date check compares
+ * and remembers them, so no file is read twice during the same
+ * check.
+ *
+ * <p>On network file systems reading the attributes of a file takes
+ * a round trip to the server.  Timestamps of many files are read in
+ * parallel by a pool shared by all tasks, its size is taken from the
+ * <code>ant.dotnet.stat.threads</code> property and defaults to
+ * four threads per processor.  Setting the property to 1 reads all
+ * timestamps in the thread of the task.</p>
+ *
+ * <p>Instances must only be used by a single thread and shouldn't
+ * outlive the check, a command that rewrites one of the files makes
+ * the remembered timestamp wrong.</p>
+ *
+ * @since .NET Antlib 1.2
+ */
+public class FileTimestamps {
+
+    /**
+     * Name of the property holding the number of threads reading
+     * timestamps.
+     */
+    public static final String THREADS_PROPERTY = "ant.dotnet.stat.threads";
+
+    /**
+     * fewer files are read by the task's thread
+     */
+    private static final int MIN_PARALLEL = 64;
+
+    /**
+     * number of files a single thread of the pool reads in a row
+     */
+    private static final int BATCH_SIZE = 16;
+
+    private static ForkJoinPool pool;
+
+    private final int threads;
+
+    /**
+     * File to Long
+     */
+    private final Map timestamps = new HashMap();
+
+    /**
+     * @param p the project whose properties configure the pool
+     */
+    public FileTimestamps(Project p) {
+        threads = getThreads(p);
+    }
+
+    /**
+     * The time the file has been modified, 0 if it doesn't exist.
+     */
+    public long lastModified(File f) {
+        Long t = (Long) timestamps.get(f);
+        if (t == null) {
+            t = new Long(read(f));
+            timestamps.put(f, t);
+        }
+        return t.longValue();
+    }
+
+    /**
+     * Reads the timestamps of all files that haven't been read, yet.
+     *
+     * @param files File instances
+     */
+    public void readAll(Collection files) {
+        read(files, Long.MAX_VALUE);
+    }
+
+    /**
+     * Finds a file that is newer than the given timestamp, stops
+     * reading timestamps as soon as one has been found.
+     *
+     * @param files File instances
+     * @param timestamp the timestamp to compare to
+     * @return the first newer file of the collection or null
+     */
+    public File findNewer(Collection files, long timestamp) {
+        read(files, timestamp);
+        for (Iterator iter = files.iterator(); iter.hasNext();) {
+            File f = (File) iter.next();
+            Long t = (Long) timestamps.get(f);
+            if (t != null && t.longValue() > timestamp) {
+                return f;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the timestamps of all files of a list without remembering
+     * them - a PathList never contains a file twice.
+     *
+     * @return the timestamps in the order of the list, 0 for files
+     * that don't exist
+     */
+    public long[] lastModified(PathList files) {
+        Batch batch = new Batch(files, files.size(), Long.MAX_VALUE);
+        if (threads <= 1 || files.size() < MIN_PARALLEL) {
+            for (int i = 0; i < files.size(); i++) {
+                batch.timestamps[i] = files.lastModified(i);
+            }
+        } else {
+            getPool(threads).invoke(new ReadTimestamps(batch, 0,
+                                                       files.size()));
+        }
+        return batch.timestamps;
+    }
+
+    /**
+     * Reads the timestamps not known, yet, stops once one of them is
+     * newer than stopAfter.
+     */
+    private void read(Collection files, long stopAfter) {
+        List unknown = new ArrayList();
+        for (Iterator iter = files.iterator(); iter.hasNext();) {
+            File f = (File) iter.next();
+            Long t = (Long) timestamps.get(f);
+            if (t == null) {
+                unknown.add(f);
+            } else if (t.longValue() > stopAfter) {
+                return;
+            }
+        }
+        if (threads <= 1 || unknown.size() < MIN_PARALLEL) {
+            for (Iterator iter = unknown.iterator(); iter.hasNext();) {
+                if (lastModified((File) iter.next()) > stopAfter) {
+                    return;
+                }
+            }
+            return;
+        }
+        Batch batch = new Batch(unknown, unknown.size(), stopAfter);
+        getPool(threads).invoke(new ReadTimestamps(batch, 0, unknown.size()));
+        for (int i = 0; i < unknown.size(); i++) {
+            if (batch.timestamps[i] >= 0) {
+                timestamps.put(unknown.get(i), new Long(batch.timestamps[i]));
+            }
+        }
+    }
+
+    /**
+     * Reads a timestamp with the same precision as the timestamps of
+     * outputs the tasks compare it to - on some VMs the NIO API
+     * reports milliseconds where File.lastModified doesn't.
+     */
+    private static long read(File f) {
+        return f.lastModified();
+    }
+
+    private static int getThreads(Project p) {
+        String value = p.getProperty(THREADS_PROPERTY);
+        if (value == null) {
+            return 4 * Runtime.getRuntime().availableProcessors();
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new BuildException("invalid value of " + THREADS_PROPERTY
+                                     + ": " + value);
+        }
+    }
+
+    /**
+     * the pool is created by the first check that needs it
+     */
+    private static synchronized ForkJoinPool getPool(int threads) {
+        if (pool == null) {
+            pool = new ForkJoinPool(threads);
+        }
+        return pool;
+    }
+
+    /**
+     * The files read by a single call, -1 marks timestamps that
+     * haven't been read.
+     */
+    private static class Batch {
+        /**
+         * a list of Files or a PathList
+         */
+        private final List files;
+        private final long[] timestamps;
+        private final long stopAfter;
+        private volatile boolean stopped = false;
+
+        Batch(List files, int size, long stopAfter) {
+            this.files = files;
+            this.stopAfter = stopAfter;
+            timestamps = new long[size];
+            for (int i = 0; i < size; i++) {
+                timestamps[i] = -1;
+            }
+        }
+
+        long read(int index) {
+            return files instanceof PathList
+                ? ((PathList) files).lastModified(index)
+                : FileTimestamps.read((File) files.get(index));
+        }
+    }
+
+    /**
+     * Reads the timestamps of a range of a batch, splitting it until
+     * the range is small enough.
+     */
+    private static class ReadTimestamps extends RecursiveAction {
+        private final Batch batch;
+        private final int from;
+        private final int to;
+
+        ReadTimestamps(Batch batch, int from, int to) {
+            this.batch = batch;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if (to - from > BATCH_SIZE) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ReadTimestamps(batch, from, middle),
+                          new ReadTimestamps(batch, middle, to));
+                return;
+            }
+            for (int i = from; i < to && !batch.stopped; i++) {
+                long t = batch.read(i);
+                batch.timestamps[i] = t;
+                if (t > batch.stopAfter) {
+                    batch.stopped = true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.apache.ant.dotnet.util;
+
+import java.io.File;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.tools.ant.DirectoryScanner;
+
+/**
+ * A list of files without duplicates that doesn't keep a File or
+ * path String per file.
+ *
+ * <p>The directory of each file is stored once for all files inside
+ * of it, only the file's name and the index of its directory are
+ * kept per file.  File instances are created when an element is
+ * accessed, tasks handling huge numbers of files should use {@link
+ * #appendPath} and {@link #lastModified} instead.</p>
+ *
+ * <p>Files are kept in the order they have been added, adding a file
+ * that is already part of the list doesn't change the list and
+ * returns false.  Elements cannot be removed.</p>
+ *
+ * @since .NET Antlib 1.2
+ */
+public class PathList extends AbstractList {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * the directories, index to path
+     */
+    private final List directories = new ArrayList();
+
+    /**
+     * path to index of the directory
+     */
+    private final Map directoryIndices = new HashMap();
+
+    private int[] directoryOfFile = new int[INITIAL_CAPACITY];
+    private String[] names = new String[INITIAL_CAPACITY];
+    private int size = 0;
+
+    /**
+     * open addressing hash table of 1 + index of each file, 0 for
+     * empty slots
+     */
+    private int[] table = new int[2 * INITIAL_CAPACITY];
+
+    /**
+     * Adds all files a scanner has included.
+     *
+     * @return the number of files that haven't been part of the list
+     */
+    public int addAll(DirectoryScanner scanner) {
+        String[] included = scanner.getIncludedFiles();
+        String basePath = scanner.getBasedir().getPath();
+        String base = basePath.endsWith(File.separator) ? basePath
+            : basePath + File.separator;
+        int added = 0;
+        String lastPrefix = null;
+        int lastDirectory = -1;
+        for (int i = 0; i < included.length; i++) {
+            String relative = included[i];
+            int slash = relative.lastIndexOf(File.separatorChar);
+            // scanners return the files of a directory one after the other
+            if (lastPrefix == null || slash != lastPrefix.length()
+                || !relative.startsWith(lastPrefix)) {
+                lastPrefix = slash < 0 ? "" : relative.substring(0, slash);
+                lastDirectory = getDirectory(slash < 0 ? basePath
+                                             : base + lastPrefix);
+            }
+            if (addFile(lastDirectory, relative.substring(slash + 1))) {
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Adds a File.
+     *
+     * @return whether the file hasn't been part of the list
+     */
+    public boolean add(Object o) {
+        File f = (File) o;
+        String parent = f.getParent();
+        return addFile(getDirectory(parent == null ? "" : parent),
+                       f.getName());
+    }
+
+    /**
+     * A new File instance for the element at the given index.
+     */
+    public Object get(int index) {
+        checkIndex(index);
+        return newFile(index);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(Object o) {
+        if (!(o instanceof File)) {
+            return false;
+        }
+        File f = (File) o;
+        String parent = f.getParent();
+        Integer directory =
+            (Integer) directoryIndices.get(parent == null ? "" : parent);
+        return directory != null
+            && find(directory.intValue(), f.getName()) >= 0;
+    }
+
+    public int indexOf(Object o) {
+        if (!(o instanceof File)) {
+            return -1;
+        }
+        File f = (File) o;
+        String parent = f.getParent();
+        Integer directory =
+            (Integer) directoryIndices.get(parent == null ? "" : parent);
+        return directory == null ? -1 : find(directory.intValue(), f.getName());
+    }
+
+    public int lastIndexOf(Object o) {
+        return indexOf(o);
+    }
+
+    /**
+     * The path of the element at the given index, the same as
+     * <code>get(index).getPath()</code>.
+     */
+    public String getPath(int index) {
+        StringBuffer sb = new StringBuffer();
+        appendPath(index, sb);
+        return sb.toString();
+    }
+
+    /**
+     * Appends the path of the element at the given index.
+     */
+    public void appendPath(int index, StringBuffer sb) {
+        checkIndex(index);
+        String dir = getDirectoryPath(index);
+        sb.append(dir);
+        if (dir.length() > 0 && !dir.endsWith(File.separator)) {
+            sb.append(File.separatorChar);
+        }
+        sb.append(names[index]);
+    }
+
+    /**
+     * The time the element at the given index has been modified.
+     */
+    public long lastModified(int index) {
+        checkIndex(index);
+        return newFile(index).lastModified();
+    }
+
+    private File newFile(int index) {
+        String dir = getDirectoryPath(index);
+        return dir.length() == 0 ? new File(names[index])
+            : new File(dir, names[index]);
+    }
+
+    private String getDirectoryPath(int index) {
+        return (String) directories.get(directoryOfFile[index]);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index
+                                                + ", Size: " + size);
+        }
+    }
+
+    private int getDirectory(String path) {
+        Integer index = (Integer) directoryIndices.get(path);
+        if (index == null) {
+            index = new Integer(directories.size());
+            directories.add(path);
+            directoryIndices.put(path, index);
+        }
+        return index.intValue();
+    }
+
+    private boolean addFile(int directory, String name) {
+        if (find(directory, name) >= 0) {
+            return false;
+        }
+        if (size == names.length) {
+            int[] newDirectories = new int[2 * size];
+            System.arraycopy(directoryOfFile, 0, newDirectories, 0, size);
+            directoryOfFile = newDirectories;
+            String[] newNames = new String[2 * size];
+            System.arraycopy(names, 0, newNames, 0, size);
+            names = newNames;
+        }
+        directoryOfFile[size] = directory;
+        names[size] = name;
+        size++;
+        if (2 * size > table.length) {
+            rehash();
+        } else {
+            insert(size - 1);
+        }
+        modCount++;
+        return true;
+    }
+
+    /**
+     * the index of the file or -1
+     */
+    private int find(int directory, String name) {
+        int mask = table.length - 1;
+        for (int slot = hash(directory, name) & mask; table[slot] != 0;
+             slot = (slot + 1) & mask) {
+            int index = table[slot] - 1;
+            if (directoryOfFile[index] == directory
+                && names[index].equals(name)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    private void insert(int index) {
+        int mask = table.length - 1;
+        int slot = hash(directoryOfFile[index], names[index]) & mask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = index + 1;
+    }
+
+    private void rehash() {
+        table = new int[2 * table.length];
+        for (int i = 0; i < size; i++) {
+            insert(i);
+        }
+    }
+
+    private static int hash(int directory, String name) {
+        int h = name.hashCode() * 31 + directory;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.apache.ant.dotnet.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collection;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Location;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.util.FileUtils;
+
+/**
+ * Support for running a build without running any external command.
+ *
+ * <p>If the <code>ant.dotnet.plan</code> property is true, the tasks
+ * of this library scan their inputs and decide whether they are up
+ * to date as usual, but instead of running a command they emit a
+ * JSON record describing it.  Each record is a single line with the
+ * properties</p>
+ *
+ * <ul>
+ *   <li>task - name of the task</li>
+ *   <li>location - location of the task in the build file</li>
+ *   <li>step - the tool that would run</li>
+ *   <li>output - the file the tool would create</li>
+ *   <li>wouldRun - whether the tool would run at all</li>
+ *   <li>reason - why it would run</li>
+ *   <li>inputs - the inputs that made it run</li>
+ *   <li>estimatedMillis - the average duration of earlier runs, see
+ *   {@link TaskHistory}</li>
+ * </ul>
+ *
+ * <p>Properties that are unknown are null.  Records are appended to
+ * the file named by the <code>ant.dotnet.plan.file</code> property
+ * or logged if it isn't set.</p>
+ *
+ * @since .NET Antlib 1.2
+ */
+public class PlanMode {
+
+    /**
+     * Name of the property that enables plan mode.
+     */
+    public static final String PROPERTY = "ant.dotnet.plan";
+
+    /**
+     * Name of the property holding the file to write the plan to.
+     */
+    public static final String FILE_PROPERTY = "ant.dotnet.plan.file";
+
+    private static final Object LOCK = new Object();
+
+    private PlanMode() {
+    }
+
+    /**
+     * Whether plan mode is enabled for the given project.
+     */
+    public static boolean isEnabled(Project p) {
+        return Project.toBoolean(p.getProperty(PROPERTY));
+    }
+
+    /**
+     * Decides whether a command that is out of date should actually
+     * run.
+     *
+     * <p>Always true unless plan mode is enabled, in which case the
+     * command gets recorded and false is returned.</p>
+     *
+     * @param task the task running the command
+     * @param step the tool that would run
+     * @param output the file the command creates, may be null
+     * @param reason why the command needs to run
+     * @param inputs the inputs that made it necessary, may be null
+     */
+    public static boolean shouldRun(Task task, String step, File output,
+                                    String reason, Collection inputs) {
+        if (!isEnabled(task.getProject())) {
+            return true;
+        }
+        record(task, step, output, true, reason, inputs);
+        return false;
+    }
+
+    /**
+     * Records a command that doesn't need to run if plan mode is
+     * enabled.
+     *
+     * @param task the task that would run the command
+     * @param step the tool that would run
+     * @param output the file the command would create, may be null
+     */
+    public static void recordUpToDate(Task task, String step, File output) {
+        if (isEnabled(task.getProject())) {
+            record(task, step, output, false, "up to date", null);
+        }
+    }
+
+    /**
+     * Creates a reason out of the result of an up-to-date check.
+     *
+     * @param output the output, may be null
+     * @param outputTimestamp its timestamp, 0 if it doesn't exist
+     * @param staleCount the number of inputs newer than the output
+     * @param inputCount the number of all inputs
+     */
+    public static String getReason(File output, long outputTimestamp,
+                                   int staleCount, int inputCount) {
+        if (output != null && outputTimestamp == 0) {
+            return output + " doesn't exist";
+        }
+        return staleCount + " of " + inputCount + " inputs are newer"
+            + " than " + (output == null ? "the output" : output.toString());
+    }
+
+    private static void record(Task task, String step, File output,
+                               boolean wouldRun, String reason,
+                               Collection inputs) {
+        Project p = task.getProject();
+        String location = null;
+        Location l = task.getLocation();
+        if (l != null && l.getFileName() != null) {
+            location = l.getFileName() + ":" + l.getLineNumber();
+        }
+        long estimate = TaskHistory.getInstance(p)
+            .getEstimate(TaskHistory.getKey(task, step, output));
+
+        StringBuffer sb = new StringBuffer("{");
+        sb.append("\"task\":").append(JsonUtils.quote(task.getTaskName()));
+        sb.append(",\"location\":").append(JsonUtils.quote(location));
+        sb.append(",\"step\":").append(JsonUtils.quote(step));
+        sb.append(",\"output\":").append(JsonUtils.quote(output));
+        sb.append(",\"wouldRun\":").append(wouldRun);
+        sb.append(",\"reason\":").append(JsonUtils.quote(reason));
+        sb.append(",\"inputs\":")
+            .append(inputs == null ? "null" : JsonUtils.toArray(inputs));
+        sb.append(",\"estimatedMillis\":")
+            .append(estimate < 0 ? "null" : String.valueOf(estimate));
+        sb.append('}');
+
+        String file = p.getProperty(FILE_PROPERTY);
+        if (file == null) {
+            task.log(sb.toString());
+            return;
+        }
+        File f = p.resolveFile(file);
+        synchronized (LOCK) {
+            Writer w = null;
+            try {
+                w = new OutputStreamWriter(new FileOutputStream(f, true),
+                                           "UTF-8");
+                w.write(sb.toString());
+                w.write('\n');
+            } catch (IOException e) {
+                throw new BuildException("Failed to write plan to " + f, e,
+                                         task.getLocation());
+            } finally {
+                FileUtils.close(w);
+            }
+        }
+    }
+}
@@ -0,0 +1,571 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.apache.ant.dotnet.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.util.FileUtils;
+
+/**
+ * Limits the external processes the tasks of this library run at the
+ * same time.
+ *
+ * <p>If the <code>ant.dotnet.jobs</code> property is set to a number
+ * of slots - or to "auto" for one slot per processor - each command
+ * has to acquire slots before it may start.  A command needs as many
+ * slots as processors it has kept busy in earlier builds, but no
+ * more than the number of threads it has used.  Commands that have
+ * never been sampled need a single slot.</p>
+ *
+ * <p>On Linux a command is only started if the memory
+ * /proc/meminfo reports as available, minus what the running
+ * commands are still expected to allocate, exceeds the peak
+ * resident set size of the command in earlier builds by
+ * <code>ant.dotnet.jobs.memoryreserve</code> MB (256 by default).
+ * While commands are running their process trees are sampled via
+ * /proc and the peaks are recorded in the {@link TaskHistory}.</p>
+ *
+ * <p>A command is always started if no other command is running, so
+ * a command that needs more than the machine has is slow, not stuck.
+ * The times commands have waited for their slots are reported at the
+ * end of the build.</p>
+ *
+ * <p>The projects of a single build that use the same state directory
+ * - the subprojects run by ant or antcall inside of parallel, for
+ * example - share the running commands, each command is admitted
+ * using the slots and memory reserve of its own project.  Builds
+ * running in different VMs don't know of each other, and the slots
+ * are not passed on to the commands the way make passes its
+ * jobserver to recursive makes.</p>
+ *
+ * @since .NET Antlib 1.2
+ */
+public class ProcessGovernor {
+
+    /**
+     * Name of the property holding the number of slots.
+     */
+    public static final String JOBS_PROPERTY = "ant.dotnet.jobs";
+
+    /**
+     * Name of the property holding the memory to leave available in
+     * MB.
+     */
+    public static final String MEMORY_RESERVE_PROPERTY =
+        "ant.dotnet.jobs.memoryreserve";
+
+    private static final long DEFAULT_MEMORY_RESERVE = 256;
+
+    /**
+     * milliseconds between two samples of the running processes and
+     * two checks of the available memory while a command waits
+     */
+    private static final long SAMPLE_INTERVAL = 250;
+
+    /**
+     * waits shorter than this aren't reported
+     */
+    private static final long MIN_REPORTED_WAIT = 100;
+
+    private static final int MAX_REPORTED_WAITS = 10;
+
+    /**
+     * the unit of the CPU times in /proc/[pid]/stat, the kernel's
+     * USER_HZ is 100 on all common architectures
+     */
+    private static final long TICKS_PER_SECOND = 100;
+
+    private static final File PROC = new File("/proc");
+
+    private static final String REPORT_REFERENCE = "ant.dotnet.governor";
+
+    private static final String TOOL_PREFIX = "tool:";
+
+    /**
+     * Process.pid() - null if not available
+     */
+    private static final Method PID;
+
+    static {
+        Method pid = null;
+        try {
+            pid = Process.class.getMethod("pid", new Class[0]);
+        } catch (Exception e) {
+            // pre Java 9
+            pid = null;
+        }
+        PID = pid;
+    }
+
+    /**
+     * instances by absolute path of their state directory, they only
+     * know the commands running right now
+     */
+    private static final Map INSTANCES = new HashMap();
+
+    private final List running = new ArrayList();
+    private int used = 0;
+    private boolean sampling = false;
+
+    private ProcessGovernor() {
+    }
+
+    /**
+     * Waits until the command may start.
+     *
+     * @param owner the task running the command
+     * @param key the command's key in the {@link TaskHistory}
+     * @param tool the executable, may be null
+     * @return the slots to release once the command has finished,
+     * null if the project doesn't limit the processes
+     */
+    public static Ticket acquire(Task owner, String key, String tool) {
+        int slots = getSlots(owner);
+        if (slots <= 0) {
+            return null;
+        }
+        long reserve = getMemoryReserve(owner);
+        ProcessGovernor g;
+        String dir = StateFiles.getStateDirectory(owner.getProject())
+            .getAbsolutePath();
+        synchronized (INSTANCES) {
+            g = (ProcessGovernor) INSTANCES.get(dir);
+            if (g == null) {
+                g = new ProcessGovernor();
+                INSTANCES.put(dir, g);
+            }
+        }
+        return g.admit(owner, key, tool, slots, reserve);
+    }
+
+    private static int getSlots(Task owner) {
+        String value = owner.getProject().getProperty(JOBS_PROPERTY);
+        if (value == null) {
+            return 0;
+        }
+        if ("auto".equalsIgnoreCase(value.trim())) {
+            return Runtime.getRuntime().availableProcessors();
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new BuildException("invalid value of " + JOBS_PROPERTY
+                                     + ": " + value, owner.getLocation());
+        }
+    }
+
+    private static long getMemoryReserve(Task owner) {
+        String value = owner.getProject().getProperty(MEMORY_RESERVE_PROPERTY);
+        if (value == null) {
+            return DEFAULT_MEMORY_RESERVE * 1024;
+        }
+        try {
+            return Long.parseLong(value.trim()) * 1024;
+        } catch (NumberFormatException e) {
+            throw new BuildException("invalid value of "
+                                     + MEMORY_RESERVE_PROPERTY + ": " + value,
+                                     owner.getLocation());
+        }
+    }
+
+    private Ticket admit(Task owner, String key, String tool, int slots,
+                         long reserve) {
+        TaskHistory history = TaskHistory.getInstance(owner.getProject());
+        String toolKey = tool == null ? null
+            : TOOL_PREFIX + new File(tool).getName();
+        long[] estimate = history.getResources(key);
+        if (estimate == null && toolKey != null) {
+            estimate = history.getResources(toolKey);
+        }
+        int weight = 1;
+        long rss = 0;
+        if (estimate != null) {
+            long busy = Math.min((estimate[2] + 99) / 100, estimate[1]);
+            weight = (int) Math.max(1, Math.min(busy, slots));
+            rss = estimate[0];
+        }
+        Ticket t = new Ticket(owner, key, toolKey, weight, rss, slots,
+                              reserve);
+        long start = System.currentTimeMillis();
+        synchronized (this) {
+            boolean logged = false;
+            while (!canStart(t)) {
+                if (!logged) {
+                    owner.log("Waiting for " + weight + " process slot(s)"
+                              + (rss > 0 ? " and " + rss / 1024 + " MB" : ""),
+                              Project.MSG_VERBOSE);
+                    logged = true;
+                }
+                try {
+                    wait(SAMPLE_INTERVAL);
+                } catch (InterruptedException e) {
+                    throw new BuildException("Interrupted while waiting for a"
+                                             + " process slot", e,
+                                             owner.getLocation());
+                }
+            }
+            used += weight;
+            running.add(t);
+        }
+        long waited = System.currentTimeMillis() - start;
+        if (waited >= MIN_REPORTED_WAIT) {
+            getReport(owner.getProject()).add(key, waited, weight, rss);
+        }
+        return t;
+    }
+
+    /**
+     * whether the command fits into the free slots and the available
+     * memory, must hold the lock
+     */
+    private boolean canStart(Ticket t) {
+        if (running.size() == 0) {
+            return true;
+        }
+        if (used + t.weight > t.slots) {
+            return false;
+        }
+        long available = getAvailableMemory();
+        if (available < 0) {
+            return true;
+        }
+        long needed = t.rss + t.reserve;
+        for (Iterator iter = running.iterator(); iter.hasNext();) {
+            Ticket r = (Ticket) iter.next();
+            needed += Math.max(0, r.rss - r.currentRss);
+        }
+        return needed <= available;
+    }
+
+    /**
+     * samples the running processes until none is left, must hold
+     * the lock
+     */
+    private void startSampler(Project project) {
+        if (sampling) {
+            return;
+        }
+        sampling = true;
+        Thread t = Threads.newThread(project, new Runnable() {
+                public void run() {
+                    sample();
+                }
+            }, "process-governor");
+        if (!t.isDaemon()) {
+            t.setDaemon(true);
+        }
+        t.start();
+    }
+
+    private void sample() {
+        while (true) {
+            List tickets = new ArrayList();
+            synchronized (this) {
+                for (Iterator iter = running.iterator(); iter.hasNext();) {
+                    Ticket t = (Ticket) iter.next();
+                    if (t.pid > 0) {
+                        tickets.add(t);
+                    }
+                }
+                if (tickets.size() == 0) {
+                    sampling = false;
+                    return;
+                }
+            }
+            for (Iterator iter = tickets.iterator(); iter.hasNext();) {
+                Ticket t = (Ticket) iter.next();
+                long[] usage = new long[3];
+                addUsage(t.pid, usage);
+                synchronized (this) {
+                    t.currentRss = usage[0];
+                    t.peakRss = Math.max(t.peakRss, usage[0]);
+                    t.peakThreads = Math.max(t.peakThreads, usage[1]);
+                    t.ticks = Math.max(t.ticks, usage[2]);
+                    t.sampled = System.currentTimeMillis();
+                }
+            }
+            try {
+                Thread.sleep(SAMPLE_INTERVAL);
+            } catch (InterruptedException e) {
+                synchronized (this) {
+                    sampling = false;
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Adds resident set size in kB, number of threads and CPU time
+     * in ticks of the process and all its descendants.
+     */
+    private static void addUsage(long pid, long[] usage) {
+        File dir = new File(PROC, String.valueOf(pid));
+        String status = read(new File(dir, "status"));
+        if (status == null) {
+            // has finished
+            return;
+        }
+        usage[0] += getField(status, "VmRSS:");
+        usage[1] += getField(status, "Threads:");
+        String stat = read(new File(dir, "stat"));
+        if (stat != null && stat.lastIndexOf(')') > 0) {
+            // utime, stime, cutime and cstime are fields 14 to 17,
+            // the command in field 2 may contain spaces
+            String[] fields =
+                stat.substring(stat.lastIndexOf(')') + 1).trim().split(" ");
+            for (int i = 11; i <= 14 && i < fields.length; i++) {
+                usage[2] += parseLong(fields[i]);
+            }
+        }
+        File[] tasks = new File(dir, "task").listFiles();
+        for (int i = 0; tasks != null && i < tasks.length; i++) {
+            String children = read(new File(tasks[i], "children"));
+            if (children == null) {
+                continue;
+            }
+            String[] pids = children.trim().split(" ");
+            for (int j = 0; j < pids.length; j++) {
+                long child = parseLong(pids[j]);
+                if (child > 0) {
+                    addUsage(child, usage);
+                }
+            }
+        }
+    }
+
+    /**
+     * the MemAvailable line of /proc/meminfo in kB, -1 if unknown
+     */
+    private static long getAvailableMemory() {
+        String meminfo = read(new File(PROC, "meminfo"));
+        if (meminfo == null || meminfo.indexOf("MemAvailable:") < 0) {
+            return -1;
+        }
+        return getField(meminfo, "MemAvailable:");
+    }
+
+    /**
+     * the first number following the given name in a file of "name
+     * value" lines
+     */
+    private static long getField(String content, String name) {
+        int index = content.indexOf(name);
+        if (index < 0) {
+            return 0;
+        }
+        int end = content.indexOf('\n', index);
+        String value = content.substring(index + name.length(),
+                                         end < 0 ? content.length() : end)
+            .trim();
+        int space = value.indexOf(' ');
+        return parseLong(space < 0 ? value : value.substring(0, space));
+    }
+
+    private static long parseLong(String s) {
+        try {
+            return Long.parseLong(s.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * reads a file of /proc, null if it cannot be read
+     */
+    private static String read(File f) {
+        BufferedReader r = null;
+        try {
+            r = new BufferedReader(new FileReader(f));
+            StringBuffer sb = new StringBuffer();
+            char[] buffer = new char[4096];
+            int read;
+            while ((read = r.read(buffer)) > 0) {
+                sb.append(buffer, 0, read);
+            }
+            return sb.toString();
+        } catch (IOException e) {
+            return null;
+        } finally {
+            FileUtils.close(r);
+        }
+    }
+
+    private static long getPid(Process p) {
+        if (PID == null || !PROC.isDirectory()) {
+            return -1;
+        }
+        try {
+            return ((Long) PID.invoke(p, new Object[0])).longValue();
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static Report getReport(Project p) {
+        return (Report) BuildSummary.getInstance(p, REPORT_REFERENCE,
+            new BuildSummary.Factory() {
+                public BuildSummary create(Project project) {
+                    return new Report(project);
+                }
+            });
+    }
+
+    /**
+     * The slots a command holds.
+     */
+    public final class Ticket {
+        private final Task owner;
+        private final String key;
+        private final String toolKey;
+        private final int weight;
+        /**
+         * expected peak resident set size in kB
+         */
+        private final long rss;
+        /**
+         * the slots and the memory to leave available in kB of the
+         * owner's project
+         */
+        private final int slots;
+        private final long reserve;
+        private long pid = -1;
+        private long started;
+        private long currentRss = 0;
+        private long peakRss = 0;
+        private long peakThreads = 0;
+        private long ticks = 0;
+        /**
+         * time of the last sample, the CPU time is relative to it
+         */
+        private long sampled;
+        private boolean released = false;
+
+        private Ticket(Task owner, String key, String toolKey, int weight,
+                       long rss, int slots, long reserve) {
+            this.owner = owner;
+            this.key = key;
+            this.toolKey = toolKey;
+            this.weight = weight;
+            this.rss = rss;
+            this.slots = slots;
+            this.reserve = reserve;
+        }
+
+        /**
+         * Starts sampling the process of the command.
+         */
+        public void started(Process process) {
+            long p = getPid(process);
+            if (p <= 0) {
+                return;
+            }
+            synchronized (ProcessGovernor.this) {
+                pid = p;
+                started = System.currentTimeMillis();
+                startSampler(owner.getProject());
+            }
+        }
+
+        /**
+         * Releases the slots and records the resources the command
+         * has used.
+         */
+        public void release() {
+            long elapsed;
+            synchronized (ProcessGovernor.this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+                used -= weight;
+                running.remove(this);
+                ProcessGovernor.this.notifyAll();
+                if (pid <= 0 || peakRss == 0) {
+                    return;
+                }
+                elapsed = Math.max(1, sampled - started);
+            }
+            long cpu = ticks * 100 * 1000 / (TICKS_PER_SECOND * elapsed);
+            TaskHistory history = TaskHistory.getInstance(owner.getProject());
+            history.recordResources(owner, key, peakRss, peakThreads, cpu);
+            if (toolKey != null) {
+                history.recordResources(owner, toolKey, peakRss, peakThreads,
+                                        cpu);
+            }
+        }
+    }
+
+    /**
+     * Logs the commands that have waited longest for their slots
+     * when the build finishes.
+     */
+    private static class Report extends BuildSummary {
+        private final List waits = new ArrayList();
+        private long total = 0;
+
+        Report(Project project) {
+            super(project);
+        }
+
+        synchronized void add(String key, long millis, int weight, long rss) {
+            waits.add(new Object[] {
+                new Long(millis),
+                key + " waited " + millis + " ms for " + weight + " slot(s)"
+                + (rss > 0 ? " and " + rss / 1024 + " MB" : "")
+            });
+            total += millis;
+        }
+
+        protected synchronized void report() {
+            if (waits.size() == 0) {
+                return;
+            }
+            Collections.sort(waits, new Comparator() {
+                    public int compare(Object o1, Object o2) {
+                        return ((Long) ((Object[]) o2)[0])
+                            .compareTo((Long) ((Object[]) o1)[0]);
+                    }
+                });
+            project.log(waits.size() + " command"
+                        + (waits.size() == 1 ? " has" : "s have")
+                        + " waited " + total + " ms for process slots"
+                        + (waits.size() > MAX_REPORTED_WAITS
+                           ? ", the longest waits:" : ":"));
+            for (int i = 0; i < waits.size() && i < MAX_REPORTED_WAITS; i++) {
+                project.log("  " + ((Object[]) waits.get(i))[1]);
+            }
+            waits.clear();
+            total = 0;
+        }
+    }
+}
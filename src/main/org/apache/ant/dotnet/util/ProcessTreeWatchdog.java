@@ -0,0 +1,244 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.apache.ant.dotnet.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ScheduledFuture;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.taskdefs.ExecuteWatchdog;
+import org.apache.tools.ant.util.Watchdog;
+
+/**
+ * A watchdog that kills the processes started by the watched
+ * process as well.
+ *
+ * <p>Ant's ExecuteWatchdog only destroys the process it has started.
+ * Compilers running on Mono or wrapped by scripts leave their child
+ * processes behind, which may keep running and hold on to the
+ * output streams.  On Java 9 and later this watchdog also kills all
+ * descendants of the process, older VMs only kill the process
+ * itself.</p>
+ *
+ * <p>The API is accessed via reflection as this library must be
+ * compilable and run on older VMs.</p>
+ *
+ * <p>The watchdog also tells the {@link ProcessGovernor} which
+ * process to sample, without a timeout it does nothing else.</p>
+ *
+ * <p>If processes are supervised by virtual threads - see {@link
+ * SupervisedExecute} - the timeout is handled by a timer shared by
+ * all commands rather than a thread of its own.</p>
+ *
+ * @since .NET Antlib 1.2
+ */
+public class ProcessTreeWatchdog extends ExecuteWatchdog {
+
+    /**
+     * Name of the property holding the default timeout in
+     * milliseconds.
+     */
+    public static final String TIMEOUT_PROPERTY = "ant.dotnet.timeout";
+
+    /**
+     * Process.descendants(), Stream.toArray() and
+     * ProcessHandle.destroyForcibly() - null if not available
+     */
+    private static final Method DESCENDANTS;
+    private static final Method TO_ARRAY;
+    private static final Method DESTROY_FORCIBLY;
+
+    static {
+        Method descendants = null;
+        Method toArray = null;
+        Method destroyForcibly = null;
+        try {
+            descendants = Process.class.getMethod("descendants", new Class[0]);
+            toArray = Class.forName("java.util.stream.Stream")
+                .getMethod("toArray", new Class[0]);
+            destroyForcibly = Class.forName("java.lang.ProcessHandle")
+                .getMethod("destroyForcibly", new Class[0]);
+        } catch (Exception e) {
+            // pre Java 9
+            descendants = null;
+        }
+        DESCENDANTS = descendants;
+        TO_ARRAY = toArray;
+        DESTROY_FORCIBLY = destroyForcibly;
+    }
+
+    private final Task owner;
+    private final long timeout;
+    private final ProcessGovernor.Ticket ticket;
+    private Process process;
+    private int killedDescendants = 0;
+    private ScheduledFuture expiry;
+    private volatile boolean expired = false;
+
+    /**
+     * @param owner the task to log to
+     * @param timeout the timeout in milliseconds
+     */
+    public ProcessTreeWatchdog(Task owner, long timeout) {
+        this(owner, timeout, null);
+    }
+
+    /**
+     * @param owner the task to log to
+     * @param timeout the timeout in milliseconds, 0 for none
+     * @param ticket the slots the process holds, may be null
+     */
+    public ProcessTreeWatchdog(Task owner, long timeout,
+                               ProcessGovernor.Ticket ticket) {
+        super(Math.max(timeout, 1));
+        this.owner = owner;
+        this.timeout = timeout;
+        this.ticket = ticket;
+    }
+
+    /**
+     * The timeout to use if a task doesn't specify one.
+     *
+     * @return the value of the <code>ant.dotnet.timeout</code>
+     * property or null
+     */
+    public static Long getDefaultTimeout(Task owner) {
+        String value = owner.getProject().getProperty(TIMEOUT_PROPERTY);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return new Long(value.trim());
+        } catch (NumberFormatException e) {
+            throw new BuildException("invalid value of " + TIMEOUT_PROPERTY
+                                     + ": " + value, owner.getLocation());
+        }
+    }
+
+    /**
+     * The timeout in milliseconds.
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * The number of descendants that have been killed together with
+     * the process.
+     */
+    public synchronized int getKilledDescendants() {
+        return killedDescendants;
+    }
+
+    public synchronized void start(Process process) {
+        this.process = process;
+        if (ticket != null) {
+            ticket.started(process);
+        }
+        if (timeout > 0) {
+            if (SupervisedExecute.isEnabled(owner.getProject())) {
+                expired = false;
+                expiry = Threads.schedule(new Runnable() {
+                        public void run() {
+                            expire();
+                        }
+                    }, timeout);
+            } else {
+                super.start(process);
+            }
+        }
+    }
+
+    /**
+     * Kills the descendants of the process after the process itself
+     * has been destroyed.
+     */
+    public synchronized void timeoutOccured(Watchdog w) {
+        // collect them first, they are reparented once the process
+        // has died
+        Object[] descendants = getDescendants();
+        super.timeoutOccured(w);
+        if (killedProcess()) {
+            destroy(descendants);
+        }
+    }
+
+    /**
+     * Kills the process and its descendants when the shared timer
+     * says so - unless the process has finished in the meantime.
+     */
+    private synchronized void expire() {
+        if (process == null) {
+            return;
+        }
+        Object[] descendants = getDescendants();
+        try {
+            process.exitValue();
+            return;
+        } catch (IllegalThreadStateException e) {
+            expired = true;
+            process.destroy();
+        }
+        destroy(descendants);
+    }
+
+    /**
+     * Whether the process has been killed because it exceeded the
+     * timeout.
+     */
+    public boolean killedProcess() {
+        return expired || super.killedProcess();
+    }
+
+    private void destroy(Object[] descendants) {
+        for (int i = 0; i < descendants.length; i++) {
+            try {
+                DESTROY_FORCIBLY.invoke(descendants[i], new Object[0]);
+                killedDescendants++;
+            } catch (Exception e) {
+                owner.log("Failed to kill " + descendants[i] + ": " + e,
+                          Project.MSG_VERBOSE);
+            }
+        }
+    }
+
+    public synchronized void stop() {
+        if (expiry != null) {
+            expiry.cancel(false);
+            expiry = null;
+        }
+        super.stop();
+        process = null;
+    }
+
+    private Object[] getDescendants() {
+        if (DESCENDANTS == null || process == null) {
+            return new Object[0];
+        }
+        try {
+            return (Object[]) TO_ARRAY.invoke(
+                DESCENDANTS.invoke(process, new Object[0]), new Object[0]);
+        } catch (Exception e) {
+            owner.log("Failed to list the child processes: " + e,
+                      Project.MSG_VERBOSE);
+            return new Object[0];
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.apache.ant.dotnet.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.taskdefs.ExecuteStreamHandler;
+import org.apache.tools.ant.taskdefs.LogOutputStream;
+import org.apache.tools.ant.util.FileUtils;
+
+/**
+ * Logs the output of a process like Ant's LogStreamHandler, but
+ * pumps the streams on threads created by {@link Threads}.
+ *
+ * <p>After the process has finished everything it has written is
+ * logged, however slow the loggers are.  Only a stream a process
+ * started by the command holds open is given up on - see {@link
+ * StreamDrain}.</p>
+ *
+ * @since .NET Antlib 1.2
+ */
+public class PumpingLogStreamHandler implements ExecuteStreamHandler {
+
+    private final Task owner;
+    private final OutputStream out;
+    private final OutputStream err;
+    private Pump outPump;
+    private Pump errPump;
+
+    /**
+     * @param owner the task to log to
+     */
+    public PumpingLogStreamHandler(Task owner) {
+        this(owner, new LogOutputStream(owner, Project.MSG_INFO),
+             new LogOutputStream(owner, Project.MSG_WARN));
+    }
+
+    /**
+     * @param owner the task the threads work for
+     * @param out receives standard output, closed in {@link #stop}
+     * @param err receives standard error, closed in {@link #stop}
+     */
+    public PumpingLogStreamHandler(Task owner, OutputStream out,
+                                   OutputStream err) {
+        this.owner = owner;
+        this.out = out;
+        this.err = err;
+    }
+
+    /**
+     * Creates a handler if virtual threads are available and enabled
+     * by the <code>ant.dotnet.virtualthreads</code> property.
+     *
+     * @return the handler or null
+     */
+    public static ExecuteStreamHandler create(Task owner) {
+        return Threads.isVirtual(owner.getProject())
+            ? new PumpingLogStreamHandler(owner) : null;
+    }
+
+    public void setProcessInputStream(OutputStream os) throws IOException {
+        // nothing to feed
+        os.close();
+    }
+
+    public void setProcessOutputStream(InputStream is) {
+        outPump = new Pump(is, out);
+    }
+
+    public void setProcessErrorStream(InputStream is) {
+        errPump = new Pump(is, err);
+    }
+
+    public void start() {
+        start(outPump, "-out");
+        start(errPump, "-err");
+    }
+
+    /**
+     * Waits for the streams to be drained.
+     */
+    public void stop() {
+        stop(outPump, out);
+        stop(errPump, err);
+    }
+
+    private void start(Pump p, String suffix) {
+        if (p != null) {
+            p.start(Threads.newThread(owner.getProject(), p,
+                                      owner.getTaskName() + suffix));
+        }
+    }
+
+    private void stop(Pump p, OutputStream os) {
+        if (p == null) {
+            FileUtils.close(os);
+            return;
+        }
+        p.join();
+        if (p.isAbandoned()) {
+            owner.log("Stopped reading the output of the process, a process"
+                      + " it has started still holds the stream open",
+                      Project.MSG_VERBOSE);
+        }
+        synchronized (p) {
+            FileUtils.close(os);
+        }
+    }
+
+    /**
+     * Copies a stream of the process to the log.
+     */
+    private static class Pump extends StreamDrain {
+        private final OutputStream os;
+
+        Pump(InputStream in, OutputStream os) {
+            super(in);
+            this.os = os;
+        }
+
+        protected synchronized void write(byte[] b, int length)
+            throws IOException {
+            os.write(b, 0, length);
+        }
+
+        protected void failed(IOException e) {
+            // like Ant's StreamPumper
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.apache.ant.dotnet.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Location;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.util.FileUtils;
+
+/**
+ * Records why the up to date checks of the tasks of this library
+ * have decided that a command needs to run.
+ *
+ * <p>If the <code>ant.dotnet.explain</code> property is true, each
+ * input that makes a command run is recorded as a single line of
+ * JSON with the properties</p>
+ *
+ * <ul>
+ *   <li>task - name of the task</li>
+ *   <li>location - location of the task in the build file</li>
+ *   <li>output - the file that is out of date</li>
+ *   <li>input - the file or URL that made it out of date, null if
+ *   the output doesn't exist or the command always runs</li>
+ *   <li>comparison - how the input has been compared to the output,
+ *   one of the constants of this class</li>
+ *   <li>inputModified, outputModified - the timestamps that have
+ *   been compared, null if unknown</li>
+ * </ul>
+ *
+ * <p>Records are appended to the file named by the
+ * <code>ant.dotnet.explain.file</code> property, a summary is
+ * logged at the end of the build.</p>
+ *
+ * @since .NET Antlib 1.2
+ */
+public class RebuildReasons {
+
+    /**
+     * Name of the property that enables the records.
+     */
+    public static final String PROPERTY = "ant.dotnet.explain";
+
+    /**
+     * Name of the property holding the file to write the records to.
+     */
+    public static final String FILE_PROPERTY = "ant.dotnet.explain.file";
+
+    /**
+     * The output doesn't exist.
+     */
+    public static final String MISSING = "missing";
+
+    /**
+     * The input is newer than the output.
+     */
+    public static final String MTIME = "mtime";
+
+    /**
+     * The input is newer than the output by more than the file
+     * system's timestamp granularity.
+     */
+    public static final String GRANULARITY = "granularity";
+
+    /**
+     * The input's content differs from what has been recorded - the
+     * API fingerprint of a reference for example.
+     */
+    public static final String HASH = "hash";
+
+    /**
+     * A referenced assembly is newer than the output.
+     */
+    public static final String REFERENCE = "reference";
+
+    /**
+     * The command runs without an up to date check.
+     */
+    public static final String FORCED = "forced";
+
+    private static final String REPORT_REFERENCE = "ant.dotnet.rebuildreasons";
+
+    private static final Object LOCK = new Object();
+
+    private RebuildReasons() {
+    }
+
+    /**
+     * Whether the records are enabled for the given project.
+     */
+    public static boolean isEnabled(Project p) {
+        return Project.toBoolean(p.getProperty(PROPERTY));
+    }
+
+    /**
+     * Records why a command needs to run.
+     *
+     * @param task the task running the command
+     * @param comparison one of the constants of this class
+     * @param input the file or URL that made the output out of date,
+     * may be null
+     * @param output the output, may be null
+     */
+    public static void record(Task task, String comparison, Object input,
+                              File output) {
+        Project p = task.getProject();
+        if (!isEnabled(p)) {
+            return;
+        }
+        String location = null;
+        Location l = task.getLocation();
+        if (l != null && l.getFileName() != null) {
+            location = l.getFileName() + ":" + l.getLineNumber();
+        }
+        long inputModified = input instanceof File
+            ? ((File) input).lastModified() : 0;
+        long outputModified = output != null ? output.lastModified() : 0;
+
+        StringBuffer sb = new StringBuffer("{");
+        sb.append("\"task\":").append(JsonUtils.quote(task.getTaskName()));
+        sb.append(",\"location\":").append(JsonUtils.quote(location));
+        sb.append(",\"output\":").append(JsonUtils.quote(output));
+        sb.append(",\"input\":").append(JsonUtils.quote(input));
+        sb.append(",\"comparison\":").append(JsonUtils.quote(comparison));
+        sb.append(",\"inputModified\":").append(inputModified == 0 ? "null"
+                                                : String.valueOf(inputModified));
+        sb.append(",\"outputModified\":").append(outputModified == 0 ? "null"
+                                                 : String.valueOf(outputModified));
+        sb.append('}');
+
+        getReport(p).add(task.getTaskName() + " "
+                         + (output != null ? output.toString()
+                            : String.valueOf(location)),
+                         comparison, input);
+
+        String file = p.getProperty(FILE_PROPERTY);
+        if (file == null) {
+            task.log(sb.toString(), Project.MSG_VERBOSE);
+            return;
+        }
+        File f = p.resolveFile(file);
+        synchronized (LOCK) {
+            Writer w = null;
+            try {
+                w = new OutputStreamWriter(new FileOutputStream(f, true),
+                                           "UTF-8");
+                w.write(sb.toString());
+                w.write('\n');
+            } catch (IOException e) {
+                throw new BuildException("Failed to write rebuild reasons to "
+                                         + f, e, task.getLocation());
+            } finally {
+                FileUtils.close(w);
+            }
+        }
+    }
+
+    private static Report getReport(Project p) {
+        return (Report) BuildSummary.getInstance(p, REPORT_REFERENCE,
+            new BuildSummary.Factory() {
+                public BuildSummary create(Project project) {
+                    return new Report(project);
+                }
+            });
+    }
+
+    /**
+     * Logs how many inputs made each command run at the end of the
+     * build.
+     */
+    private static class Report extends BuildSummary {
+        /**
+         * task and output to the number of inputs and the first
+         * reason
+         */
+        private final Map commands = new LinkedHashMap();
+        /**
+         * comparison to number of records
+         */
+        private final Map comparisons = new TreeMap();
+
+        Report(Project project) {
+            super(project);
+        }
+
+        synchronized void add(String command, String comparison,
+                              Object input) {
+            Object[] entry = (Object[]) commands.get(command);
+            if (entry == null) {
+                entry = new Object[] {
+                    new int[1],
+                    comparison + (input == null ? "" : " " + input)
+                };
+                commands.put(command, entry);
+            }
+            ((int[]) entry[0])[0]++;
+            int[] count = (int[]) comparisons.get(comparison);
+            if (count == null) {
+                count = new int[1];
+                comparisons.put(comparison, count);
+            }
+            count[0]++;
+        }
+
+        protected synchronized void report() {
+            if (commands.size() == 0) {
+                return;
+            }
+            StringBuffer sb = new StringBuffer();
+            for (Iterator iter = comparisons.entrySet().iterator();
+                 iter.hasNext();) {
+                Map.Entry e = (Map.Entry) iter.next();
+                sb.append(sb.length() == 0 ? "" : ", ").append(e.getKey())
+                    .append(": ").append(((int[]) e.getValue())[0]);
+            }
+            project.log(commands.size() + " command"
+                        + (commands.size() == 1 ? " has" : "s have")
+                        + " been out of date (" + sb + "):");
+            for (Iterator iter = commands.entrySet().iterator();
+                 iter.hasNext();) {
+                Map.Entry e = (Map.Entry) iter.next();
+                Object[] entry = (Object[]) e.getValue();
+                int count = ((int[]) entry[0])[0];
+                project.log("  " + e.getKey() + ": " + entry[1]
+                            + (count > 1 ? " and " + (count - 1) + " more"
+                               : ""));
+            }
+            commands.clear();
+            comparisons.clear();
+        }
+    }
+}
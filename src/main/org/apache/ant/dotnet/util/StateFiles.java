@@ -0,0 +1,148 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.apache.ant.dotnet.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.util.FileUtils;
+
+/**
+ * Helper methods for the files the tasks of this library use to
+ * remember things between builds.
+ *
+ * <p>All state lives inside a single directory that defaults to
+ * <code>.ant-dotnet</code> inside the user's home directory and can
+ * be changed using the <code>ant.dotnet.statedir</code>
+ * property.</p>
+ *
+ * <p>State files are caches, problems reading or writing them are
+ * logged but never fail the build.</p>
+ *
+ * @since .NET Antlib 1.2
+ */
+public class StateFiles {
+
+    /**
+     * Name of the property that overrides the default state directory.
+     */
+    public static final String STATE_DIR_PROPERTY = "ant.dotnet.statedir";
+
+    private static final FileUtils FILE_UTILS = FileUtils.getFileUtils();
+
+    private StateFiles() {
+    }
+
+    /**
+     * The directory holding all state files.
+     */
+    public static File getStateDirectory(Project p) {
+        String dir = p.getProperty(STATE_DIR_PROPERTY);
+        if (dir != null) {
+            return p.resolveFile(dir);
+        }
+        return new File(System.getProperty("user.home"), ".ant-dotnet");
+    }
+
+    /**
+     * A state file shared by all tasks of the build.
+     */
+    public static File getStateFile(Project p, String name) {
+        return new File(getStateDirectory(p), name);
+    }
+
+    /**
+     * A state file that belongs to the given output file of a task.
+     *
+     * <p>The name contains a hash of the output's absolute path, so
+     * outputs of the same name in different directories don't
+     * share their state.</p>
+     */
+    public static File getStateFile(Project p, File output, String suffix) {
+        String path = output.getAbsolutePath();
+        return getStateFile(p, output.getName() + "-"
+                            + Integer.toHexString(path.hashCode()) + suffix);
+    }
+
+    /**
+     * Loads a properties file, returns an empty instance if the file
+     * doesn't exist or cannot be read.
+     */
+    public static Properties load(Project p, File f) {
+        Properties props = new Properties();
+        if (f.isFile()) {
+            InputStream in = null;
+            try {
+                in = new BufferedInputStream(new FileInputStream(f));
+                props.load(in);
+            } catch (IOException e) {
+                p.log("Failed to read " + f + ": " + e, Project.MSG_WARN);
+                props.clear();
+            } finally {
+                FILE_UTILS.close(in);
+            }
+        }
+        return props;
+    }
+
+    /**
+     * Stores a properties file, creating the parent directory if
+     * necessary.
+     */
+    public static void store(Project p, Properties props, File f,
+                             String comment) {
+        OutputStream out = null;
+        File tmp = null;
+        try {
+            File parent = f.getAbsoluteFile().getParentFile();
+            if (!parent.isDirectory()) {
+                parent.mkdirs();
+            }
+            // write to a temporary file of its own first so concurrent
+            // builds never see half written state nor write to the
+            // same temporary file
+            tmp = File.createTempFile(f.getName() + ".", ".tmp", parent);
+            out = new BufferedOutputStream(new FileOutputStream(tmp));
+            props.store(out, comment);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(f)) {
+                f.delete();
+                if (!tmp.renameTo(f)) {
+                    throw new IOException("cannot rename " + tmp);
+                }
+            }
+            tmp = null;
+        } catch (IOException e) {
+            p.log("Failed to write " + f + ": " + e, Project.MSG_WARN);
+        } finally {
+            FILE_UTILS.close(out);
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
+    }
+}
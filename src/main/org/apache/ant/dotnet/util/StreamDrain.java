@@ -0,0 +1,159 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.apache.ant.dotnet.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.tools.ant.util.FileUtils;
+
+/**
+ * Reads a stream of a process on a thread of its own until it is
+ * exhausted and passes the data on.
+ *
+ * <p>Once the process has finished, {@link #join} waits for
+ * everything the process has written to be passed on, no matter how
+ * long a slow receiver - like a logger - takes.  Only if the stream
+ * then stays open without any data available is it held open by a
+ * process the command has started, and it is closed under the
+ * reader's feet.  The thread may not notice this at once, so
+ * subclasses must guard what they share with it by locking the
+ * drain.</p>
+ *
+ * @since .NET Antlib 1.2
+ */
+abstract class StreamDrain implements Runnable {
+
+    /**
+     * milliseconds between two looks at the reading thread
+     */
+    private static final long JOIN_TIMEOUT = 200;
+
+    private final InputStream in;
+    private Thread thread;
+
+    /**
+     * whether the thread waits for data rather than passing it on
+     */
+    private volatile boolean reading = false;
+
+    /**
+     * whether the stream has been closed because a process still
+     * held it open
+     */
+    private volatile boolean abandoned = false;
+
+    StreamDrain(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Passes data read from the stream on.
+     */
+    protected abstract void write(byte[] b, int length) throws IOException;
+
+    /**
+     * Invoked if reading or passing on the data fails, unless the
+     * stream has been abandoned.
+     */
+    protected abstract void failed(IOException e);
+
+    /**
+     * Starts reading on a new thread.
+     */
+    void start(Thread t) {
+        thread = t;
+        if (!t.isDaemon()) {
+            t.setDaemon(true);
+        }
+        t.start();
+    }
+
+    public void run() {
+        byte[] buffer = new byte[8192];
+        try {
+            while (true) {
+                reading = true;
+                int read = in.read(buffer);
+                reading = false;
+                if (read < 0) {
+                    break;
+                }
+                if (read > 0) {
+                    write(buffer, read);
+                }
+            }
+        } catch (IOException e) {
+            if (!abandoned) {
+                failed(e);
+            }
+        } finally {
+            reading = false;
+            FileUtils.close(in);
+        }
+    }
+
+    /**
+     * Whether the stream has been closed while a process still held
+     * it open.
+     */
+    boolean isAbandoned() {
+        return abandoned;
+    }
+
+    /**
+     * Waits for the thread to pass on everything the process has
+     * written, must only be invoked after the process has finished.
+     *
+     * @return whether the thread has finished
+     */
+    boolean join() {
+        if (thread == null) {
+            return true;
+        }
+        try {
+            while (true) {
+                thread.join(JOIN_TIMEOUT);
+                if (!thread.isAlive()) {
+                    return true;
+                }
+                // the process is gone, so all it has written is in
+                // the pipe - if that is empty and the thread waits
+                // for more, only a child process can provide it
+                if (reading && available() == 0) {
+                    break;
+                }
+            }
+            abandoned = true;
+            thread.interrupt();
+            FileUtils.close(in);
+            thread.join(JOIN_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !thread.isAlive();
+    }
+
+    private int available() {
+        try {
+            return in.available();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.apache.ant.dotnet.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.taskdefs.Execute;
+import org.apache.tools.ant.taskdefs.ExecuteStreamHandler;
+import org.apache.tools.ant.taskdefs.ExecuteWatchdog;
+
+/**
+ * Runs a process without tying up platform threads if virtual
+ * threads are enabled.
+ *
+ * <p>If {@link Threads} creates virtual threads the process is
+ * started by a ProcessBuilder and waited for using
+ * Process.onExit() - unlike Process.waitFor() this doesn't pin the
+ * carrier of a virtual thread running the command, for example one
+ * compiling a partition.  The stream handlers of this library pump
+ * the output on virtual threads and {@link ProcessTreeWatchdog}
+ * uses a timer shared by all commands, so a command doesn't cost
+ * any platform thread beyond the one of the task running it.</p>
+ *
+ * <p>Otherwise, or if the VM launcher has been disabled, it behaves
+ * like Ant's Execute.</p>
+ *
+ * <p>The API is accessed via reflection as this library must be
+ * compilable and run on older VMs.</p>
+ *
+ * @since .NET Antlib 1.2
+ */
+public class SupervisedExecute extends Execute {
+
+    /**
+     * Process.onExit() - null if not available
+     */
+    private static final Method ON_EXIT;
+
+    static {
+        Method onExit = null;
+        try {
+            onExit = Process.class.getMethod("onExit", new Class[0]);
+        } catch (Exception e) {
+            // pre Java 9
+            onExit = null;
+        }
+        ON_EXIT = onExit;
+    }
+
+    /**
+     * processes to destroy if the VM exits while they are running
+     */
+    private static final Set RUNNING = new HashSet();
+
+    private static Thread destroyer;
+
+    private ExecuteStreamHandler streamHandler;
+    private final ExecuteWatchdog watchdog;
+    private Project project;
+    private boolean useVMLauncher = true;
+
+    /**
+     * @param streamHandler the handler for the process' streams
+     * @param watchdog watches the process, may be null
+     */
+    public SupervisedExecute(ExecuteStreamHandler streamHandler,
+                             ExecuteWatchdog watchdog) {
+        super(streamHandler, watchdog);
+        this.watchdog = watchdog;
+    }
+
+    /**
+     * Whether processes run for the given project are supervised
+     * by virtual threads.
+     */
+    public static boolean isEnabled(Project p) {
+        return ON_EXIT != null && Threads.isVirtual(p);
+    }
+
+    public void setStreamHandler(ExecuteStreamHandler streamHandler) {
+        super.setStreamHandler(streamHandler);
+        this.streamHandler = streamHandler;
+    }
+
+    public void setAntRun(Project project) throws BuildException {
+        super.setAntRun(project);
+        this.project = project;
+    }
+
+    public void setVMLauncher(boolean useVMLauncher) {
+        super.setVMLauncher(useVMLauncher);
+        this.useVMLauncher = useVMLauncher;
+    }
+
+    /**
+     * Runs the process and waits for it to finish.
+     *
+     * @return the exit code of the process
+     */
+    public int execute() throws IOException {
+        if (!isSupervised()) {
+            return super.execute();
+        }
+        File dir = getWorkingDirectory();
+        if (!dir.exists()) {
+            throw new BuildException(dir + " doesn't exist.");
+        }
+        ProcessBuilder builder = new ProcessBuilder(getCommandline());
+        builder.directory(dir);
+        String[] env = getEnvironment();
+        if (env != null) {
+            // already merged with the inherited environment unless
+            // a new environment is wanted
+            Map variables = builder.environment();
+            variables.clear();
+            for (int i = 0; i < env.length; i++) {
+                // on Windows names may start with =
+                int eq = env[i].indexOf('=', 1);
+                if (eq > 0) {
+                    variables.put(env[i].substring(0, eq),
+                                  env[i].substring(eq + 1));
+                }
+            }
+        }
+        final Process process = builder.start();
+        try {
+            streamHandler.setProcessInputStream(process.getOutputStream());
+            streamHandler.setProcessOutputStream(process.getInputStream());
+            streamHandler.setProcessErrorStream(process.getErrorStream());
+        } catch (IOException e) {
+            process.destroy();
+            throw e;
+        }
+        streamHandler.start();
+        register(process);
+        try {
+            if (watchdog != null) {
+                watchdog.start(process);
+            }
+            waitFor(process);
+            if (watchdog != null) {
+                watchdog.stop();
+            }
+            streamHandler.stop();
+            closeStreams(process);
+            if (watchdog != null) {
+                watchdog.checkException();
+            }
+            return getExitValue();
+        } finally {
+            unregister(process);
+        }
+    }
+
+    /**
+     * Waits for the process using Process.onExit() if the process
+     * is supervised.
+     */
+    protected void waitFor(Process process) {
+        if (!isSupervised()) {
+            super.waitFor(process);
+            return;
+        }
+        Future exit;
+        try {
+            exit = (Future) ON_EXIT.invoke(process, new Object[0]);
+        } catch (Exception e) {
+            project.log("Failed to wait for the process using onExit: " + e,
+                        Project.MSG_VERBOSE);
+            super.waitFor(process);
+            return;
+        }
+        try {
+            exit.get();
+            setExitValue(process.exitValue());
+        } catch (InterruptedException e) {
+            process.destroy();
+        } catch (Exception e) {
+            // onExit never completes exceptionally
+            super.waitFor(process);
+        }
+    }
+
+    private boolean isSupervised() {
+        return project != null && useVMLauncher && isEnabled(project);
+    }
+
+    private static synchronized void register(Process process) {
+        if (RUNNING.isEmpty()) {
+            destroyer = new Thread(new Runnable() {
+                    public void run() {
+                        destroyAll();
+                    }
+                }, "ant.dotnet process destroyer");
+            Runtime.getRuntime().addShutdownHook(destroyer);
+        }
+        RUNNING.add(process);
+    }
+
+    private static synchronized void unregister(Process process) {
+        if (RUNNING.remove(process) && RUNNING.isEmpty()) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(destroyer);
+            } catch (IllegalStateException e) {
+                // the VM is shutting down and the hook is running
+            }
+            destroyer = null;
+        }
+    }
+
+    private static synchronized void destroyAll() {
+        for (Iterator iter = RUNNING.iterator(); iter.hasNext();) {
+            ((Process) iter.next()).destroy();
+        }
+    }
+}
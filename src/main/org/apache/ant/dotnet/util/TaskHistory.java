@@ -0,0 +1,398 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.apache.ant.dotnet.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.tools.ant.Location;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+
+/**
+ * Remembers how long the external commands run by the tasks of this
+ * library took.
+ *
+ * <p>Commands are identified by the name and location of their task,
+ * the tool they run and the file they create - see {@link
+ * #getKey}.  Entries map this key to
+ * "last duration;average duration;number of runs", all durations in
+ * milliseconds.  The average gives recent runs more weight than old
+ * ones.</p>
+ *
+ * <p>Runs that take more than <code>ant.dotnet.regression.threshold</code>
+ * percent (50 by default) and at least a second longer than the
+ * average are reported at the end of the build.</p>
+ *
+ * <p>Commands that have been killed because they exceeded their
+ * timeout are reported at the end of the build as well, the number
+ * of times a command has been killed is stored with the prefix
+ * "timeouts:" in front of its key.</p>
+ *
+ * <p>If the {@link ProcessGovernor} samples the processes of a
+ * command, their peak resident set size in kB, the peak number of
+ * threads and the CPU time as percentage of the elapsed time are
+ * stored with the prefix "resources:" as
+ * "rss;threads;cpu;number of samples".  The peak resident set size
+ * follows increases at once and decreases like an average.</p>
+ *
+ * <p>The history is persisted once when the build - or the
+ * subbuild that has recorded something - finishes.</p>
+ *
+ * @since .NET Antlib 1.2
+ */
+public class TaskHistory {
+
+    private static final String FILE_NAME = "task-durations.properties";
+
+    /**
+     * the number of runs after which the average stops being a plain
+     * mean and starts to forget older runs
+     */
+    private static final int MAX_WEIGHT = 10;
+
+    /**
+     * Name of the property holding the percentage a run may be
+     * slower than the average before it is reported.
+     */
+    public static final String THRESHOLD_PROPERTY =
+        "ant.dotnet.regression.threshold";
+
+    private static final int DEFAULT_THRESHOLD = 50;
+
+    /**
+     * runs that are slower by less than this aren't reported
+     */
+    private static final long MIN_REGRESSION_MILLIS = 1000;
+
+    private static final String REPORT_REFERENCE = "ant.dotnet.regressions";
+
+    private static final String TIMEOUTS_PREFIX = "timeouts:";
+
+    private static final String RESOURCES_PREFIX = "resources:";
+
+    /**
+     * instances by absolute path of their state file, they only hold
+     * what is persisted - the projects that have recorded something
+     * are known to their reports
+     */
+    private static final Map INSTANCES = new HashMap();
+
+    private final File stateFile;
+    private final Properties durations;
+
+    /**
+     * whether something has been recorded since the history has
+     * been persisted
+     */
+    private boolean dirty = false;
+
+    private TaskHistory(Project p, File stateFile) {
+        this.stateFile = stateFile;
+        durations = StateFiles.load(p, stateFile);
+    }
+
+    /**
+     * The history for the state directory of the given project.
+     */
+    public static TaskHistory getInstance(Project p) {
+        File f = StateFiles.getStateFile(p, FILE_NAME);
+        synchronized (INSTANCES) {
+            TaskHistory h = (TaskHistory) INSTANCES.get(f.getAbsolutePath());
+            if (h == null) {
+                h = new TaskHistory(p, f);
+                INSTANCES.put(f.getAbsolutePath(), h);
+            }
+            return h;
+        }
+    }
+
+    /**
+     * The key of a command.
+     *
+     * @param task the task running the command
+     * @param step the tool that is run, may be null
+     * @param output the file the command creates, may be null
+     */
+    public static String getKey(Task task, String step, File output) {
+        StringBuffer sb = new StringBuffer(String.valueOf(task.getTaskName()));
+        Location l = task.getLocation();
+        if (l != null && l.getFileName() != null) {
+            sb.append('@').append(l.getFileName()).append(':')
+                .append(l.getLineNumber());
+        }
+        if (step != null) {
+            sb.append('#').append(step);
+        }
+        if (output != null) {
+            sb.append('#').append(output.getAbsolutePath());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The average duration of the command.
+     *
+     * @return the duration in milliseconds, -1 if the command has
+     * never been run
+     */
+    public synchronized long getEstimate(String key) {
+        long[] entry = get(key);
+        return entry == null ? -1 : entry[1];
+    }
+
+    /**
+     * Records a run of the command.
+     *
+     * @param owner the task that has run the command, its project
+     * receives the report of slow runs
+     * @param key the command's key
+     * @param millis the duration of the run
+     */
+    public synchronized void record(Task owner, String key, long millis) {
+        long[] entry = get(key);
+        long average = millis;
+        long runs = 1;
+        if (entry != null) {
+            if (isRegression(owner.getProject(), millis, entry[1])) {
+                getReport(owner.getProject()).add(key, millis, entry[1]);
+            }
+            runs = Math.min(entry[2] + 1, MAX_WEIGHT);
+            average = entry[1] + (millis - entry[1]) / runs;
+        }
+        durations.setProperty(key, millis + ";" + average + ";" + runs);
+        changed(owner.getProject());
+    }
+
+    /**
+     * Records that the command has been killed.
+     *
+     * @param owner the task that has run the command, its project
+     * receives the report of killed commands
+     * @param key the command's key
+     * @param timeout the timeout the command has exceeded
+     * @param descendants number of child processes that have been
+     * killed as well
+     */
+    public synchronized void recordTimeout(Task owner, String key,
+                                           long timeout, int descendants) {
+        int count = 1;
+        String value = durations.getProperty(TIMEOUTS_PREFIX + key);
+        if (value != null) {
+            try {
+                count += Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                // start again
+            }
+        }
+        durations.setProperty(TIMEOUTS_PREFIX + key, String.valueOf(count));
+        changed(owner.getProject());
+        getReport(owner.getProject())
+            .add(key + " has been killed after " + timeout + " ms"
+                 + (descendants > 0
+                    ? " together with " + descendants + " child process(es)"
+                    : "")
+                 + ", " + count + " time(s) so far");
+    }
+
+    /**
+     * The resources the processes of a command have used.
+     *
+     * @return {peak resident set size in kB, peak number of threads,
+     * CPU time in percent of the elapsed time} or null if the
+     * command has never been sampled
+     */
+    public synchronized long[] getResources(String key) {
+        long[] entry = parse(durations.getProperty(RESOURCES_PREFIX + key), 4);
+        return entry == null ? null
+            : new long[] {entry[0], entry[1], entry[2]};
+    }
+
+    /**
+     * Records the resources the processes of a command have used.
+     *
+     * @param owner the task that has run the command
+     * @param key the command's key
+     * @param rss peak resident set size in kB
+     * @param threads peak number of threads
+     * @param cpu CPU time in percent of the elapsed time
+     */
+    public synchronized void recordResources(Task owner, String key,
+                                             long rss, long threads,
+                                             long cpu) {
+        long[] entry = parse(durations.getProperty(RESOURCES_PREFIX + key), 4);
+        long runs = 1;
+        if (entry != null) {
+            runs = Math.min(entry[3] + 1, MAX_WEIGHT);
+            if (rss < entry[0]) {
+                rss = entry[0] + (rss - entry[0]) / runs;
+            }
+            threads = entry[1] + (threads - entry[1]) / runs;
+            cpu = entry[2] + (cpu - entry[2]) / runs;
+        }
+        durations.setProperty(RESOURCES_PREFIX + key,
+                              rss + ";" + threads + ";" + cpu + ";" + runs);
+        changed(owner.getProject());
+    }
+
+    /**
+     * marks the history dirty, it is persisted when the project's
+     * build finishes
+     */
+    private void changed(Project p) {
+        dirty = true;
+        getReport(p).addHistory(this);
+    }
+
+    /**
+     * persists the history if it has changed
+     *
+     * @param p the project to log problems to
+     */
+    private synchronized void store(Project p) {
+        if (dirty) {
+            StateFiles.store(p, durations, stateFile,
+                             "durations of external commands");
+            dirty = false;
+        }
+    }
+
+    private static boolean isRegression(Project p, long millis,
+                                        long average) {
+        int threshold = DEFAULT_THRESHOLD;
+        String value = p.getProperty(THRESHOLD_PROPERTY);
+        if (value != null) {
+            try {
+                threshold = Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                p.log("Ignoring invalid " + THRESHOLD_PROPERTY + " " + value,
+                      Project.MSG_WARN);
+            }
+        }
+        return millis - average >= MIN_REGRESSION_MILLIS
+            && millis * 100 > average * (100 + threshold);
+    }
+
+    private static RegressionReport getReport(Project p) {
+        return (RegressionReport) BuildSummary.getInstance(p, REPORT_REFERENCE,
+            new BuildSummary.Factory() {
+                public BuildSummary create(Project project) {
+                    return new RegressionReport(project);
+                }
+            });
+    }
+
+    /**
+     * Parses an entry.
+     *
+     * @return {last, average, runs} or null
+     */
+    private long[] get(String key) {
+        return parse(durations.getProperty(key), 3);
+    }
+
+    /**
+     * Parses a value made of the given number of numbers separated
+     * by semicolons.
+     *
+     * @return the numbers or null
+     */
+    private static long[] parse(String value, int count) {
+        if (value == null) {
+            return null;
+        }
+        String[] parts = value.split(";");
+        if (parts.length != count) {
+            return null;
+        }
+        long[] result = new long[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                result[i] = Long.parseLong(parts[i]);
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return result;
+    }
+
+    /**
+     * Logs the runs that took considerably longer than usual and the
+     * commands that have been killed and persists the histories that
+     * have changed when the build finishes.
+     */
+    private static class RegressionReport extends BuildSummary {
+        private final List regressions = new ArrayList();
+        private final List timeouts = new ArrayList();
+        private final Set histories = new HashSet();
+
+        RegressionReport(Project project) {
+            super(project);
+        }
+
+        synchronized void add(String key, long millis, long average) {
+            regressions.add(key + " took " + millis + " ms instead of "
+                            + average + " ms on average"
+                            + (average == 0 ? ""
+                               : " (+" + ((millis - average) * 100 / average)
+                               + "%)"));
+        }
+
+        synchronized void add(String timeout) {
+            timeouts.add(timeout);
+        }
+
+        synchronized void addHistory(TaskHistory history) {
+            histories.add(history);
+        }
+
+        protected void report() {
+            List changed;
+            synchronized (this) {
+                report(regressions, " been considerably slower than usual:");
+                report(timeouts, " exceeded the timeout:");
+                changed = new ArrayList(histories);
+                histories.clear();
+            }
+            // outside of the lock, recording locks the history first
+            for (Iterator iter = changed.iterator(); iter.hasNext();) {
+                ((TaskHistory) iter.next()).store(project);
+            }
+        }
+
+        private void report(List l, String what) {
+            if (l.size() == 0) {
+                return;
+            }
+            project.log(l.size() + " command"
+                        + (l.size() == 1 ? " has" : "s have") + what,
+                        Project.MSG_WARN);
+            for (Iterator iter = l.iterator(); iter.hasNext();) {
+                project.log("  " + iter.next(), Project.MSG_WARN);
+            }
+            l.clear();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.apache.ant.dotnet.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.Project;
+
+/**
+ * Creates the threads that wait for and read from external commands.
+ *
+ * <p>If the <code>ant.dotnet.virtualthreads</code> property is true
+ * virtual threads are used on Java 21 and later, so running many
+ * commands in parallel doesn't cost several operating system threads
+ * per command.  Older VMs always use platform threads.</p>
+ *
+ * <p>The API is accessed via reflection as this library must be
+ * compilable and run on older VMs.</p>
+ *
+ * @since .NET Antlib 1.2
+ */
+public class Threads {
+
+    /**
+     * Name of the property that enables virtual threads.
+     */
+    public static final String VIRTUAL_PROPERTY = "ant.dotnet.virtualthreads";
+
+    /**
+     * Thread.ofVirtual(), Thread.Builder.name(String) and
+     * Thread.Builder.unstarted(Runnable) - null if not available
+     */
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method UNSTARTED;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method unstarted = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual", new Class[0]);
+            Class builder = Class.forName("java.lang.Thread$Builder");
+            name = builder.getMethod("name", new Class[] {String.class});
+            unstarted = builder.getMethod("unstarted",
+                                          new Class[] {Runnable.class});
+        } catch (Exception e) {
+            // pre Java 21
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        UNSTARTED = unstarted;
+    }
+
+    /**
+     * runs the timeouts of all commands, created on demand
+     */
+    private static ScheduledThreadPoolExecutor timer;
+
+    private Threads() {
+    }
+
+    /**
+     * Whether the threads created for the given project are virtual.
+     */
+    public static boolean isVirtual(Project p) {
+        if (OF_VIRTUAL == null) {
+            return false;
+        }
+        String value = p.getProperty(VIRTUAL_PROPERTY);
+        return value != null && Project.toBoolean(value);
+    }
+
+    /**
+     * Runs the given action after a delay on a single thread shared
+     * by all commands, so timeouts don't cost a thread per command.
+     *
+     * @param r the action
+     * @param millis the delay in milliseconds
+     * @return can be used to cancel the action
+     */
+    public static ScheduledFuture schedule(Runnable r, long millis) {
+        synchronized (Threads.class) {
+            if (timer == null) {
+                timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "ant.dotnet timeouts");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+                // most commands finish before their timeout
+                timer.setRemoveOnCancelPolicy(true);
+            }
+        }
+        return timer.schedule(r, millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a thread that hasn't been started, yet.
+     *
+     * <p>Virtual threads are always daemon threads, platform threads
+     * are not.</p>
+     *
+     * @param p the project the thread works for
+     * @param r what the thread shall do
+     * @param name name of the thread
+     */
+    public static Thread newThread(Project p, Runnable r, String name) {
+        if (isVirtual(p)) {
+            try {
+                Object builder = OF_VIRTUAL.invoke(null, new Object[0]);
+                builder = NAME.invoke(builder, new Object[] {name});
+                return (Thread) UNSTARTED.invoke(builder, new Object[] {r});
+            } catch (Exception e) {
+                p.log("Failed to create a virtual thread, using a platform"
+                      + " thread instead: " + e, Project.MSG_VERBOSE);
+            }
+        }
+        return new Thread(r, name);
+    }
+}
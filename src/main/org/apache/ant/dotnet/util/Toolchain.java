@@ -0,0 +1,395 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.apache.ant.dotnet.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.StringTokenizer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.taskdefs.Execute;
+import org.apache.tools.ant.taskdefs.PumpStreamHandler;
+import org.apache.tools.ant.taskdefs.condition.Os;
+
+/**
+ * Locates the .NET tools on the PATH and finds out which version
+ * they are and which command line switches they support.
+ *
+ * <p>Each tool is located at most once per project and probed - by
+ * running it with its help switch - at most once per build.  Results
+ * are stored in the state directory and reused by later builds as
+ * long as the PATH is the same and the tool's file hasn't been
+ * modified.</p>
+ *
+ * <p>There is one instance per project, stored as a reference of
+ * the project.  Only the stored results are shared by the projects
+ * using the same state directory.</p>
+ *
+ * @since .NET Antlib 1.2
+ */
+public class Toolchain {
+
+    private static final String FILE_NAME = "toolchain.properties";
+
+    private static final String PATH_KEY = "PATH";
+
+    /**
+     * probing a tool takes no longer than this
+     */
+    private static final long PROBE_TIMEOUT = 10000;
+
+    /**
+     * the switches tasks of this library are interested in
+     */
+    private static final String[] SWITCHES = new String[] {
+        "deterministic", "shared", "filealign", "m", "maxcpucount"
+    };
+
+    /**
+     * tool name to the argument that makes it list its switches or
+     * its version, tools not listed here use "-?"
+     */
+    private static final Map HELP_ARGS = new HashMap();
+
+    static {
+        String[] dash = new String[] {"csc", "vbc", "mcs", "dmcs", "gmcs",
+                                      "vbnc", "nunit-console"};
+        for (int i = 0; i < dash.length; i++) {
+            HELP_ARGS.put(dash[i], "-help");
+        }
+        HELP_ARGS.put("fsc", "--help");
+        HELP_ARGS.put("fsharpc", "--help");
+        HELP_ARGS.put("ilasm", Os.isFamily("windows") ? "/?" : "--help");
+        HELP_ARGS.put("ildasm", "/?");
+        HELP_ARGS.put("mono", "--version");
+    }
+
+    private static final Pattern VERSION =
+        Pattern.compile("(\\d+\\.\\d+(?:\\.\\d+)*)");
+
+    private static final String REFERENCE = "ant.dotnet.toolchain";
+
+    /**
+     * the stored results by absolute path of their state file, access
+     * is guarded by locking the Properties instance
+     */
+    private static final Map STATES = new HashMap();
+
+    private final Project project;
+    private final File stateFile;
+    private final Properties state;
+
+    /**
+     * tools that have been looked at by this project, by name
+     */
+    private final Map tools = new HashMap();
+
+    private Toolchain(Project p, File stateFile, Properties state) {
+        project = p;
+        this.stateFile = stateFile;
+        this.state = state;
+    }
+
+    /**
+     * The toolchain of the given project.
+     */
+    public static Toolchain getInstance(Project p) {
+        synchronized (p) {
+            Toolchain t = (Toolchain) p.getReference(REFERENCE);
+            if (t == null) {
+                File f = StateFiles.getStateFile(p, FILE_NAME);
+                t = new Toolchain(p, f, getState(p, f));
+                p.addReference(REFERENCE, t);
+            }
+            return t;
+        }
+    }
+
+    /**
+     * the stored results of the given state file, read on first
+     * access
+     */
+    private static Properties getState(Project p, File f) {
+        synchronized (STATES) {
+            Properties state = (Properties) STATES.get(f.getAbsolutePath());
+            if (state == null) {
+                state = StateFiles.load(p, f);
+                String path = getPath();
+                if (!path.equals(state.getProperty(PATH_KEY))) {
+                    state.clear();
+                    state.setProperty(PATH_KEY, path);
+                }
+                STATES.put(f.getAbsolutePath(), state);
+            }
+            return state;
+        }
+    }
+
+    /**
+     * Searches the PATH for a tool.
+     *
+     * @param name the name of the tool, like "candle.exe"
+     * @return the tool's file or null if it hasn't been found
+     */
+    public synchronized File find(String name) {
+        Tool t = (Tool) tools.get(name);
+        if (t == null) {
+            t = new Tool(name);
+            tools.put(name, t);
+        }
+        return t.file;
+    }
+
+    /**
+     * Locates and probes a tool.
+     *
+     * <p>The probe runs while only the tool is locked, tasks using
+     * other tools don't wait for it.  In {@link PlanMode plan mode}
+     * no process is started, a tool that hasn't been probed by an
+     * earlier build reports what is known without running it.</p>
+     *
+     * @param owner the task that wants to use the tool
+     * @param name the name of the tool or its path
+     * @return the tool, never null
+     */
+    public Tool getTool(Task owner, String name) {
+        Tool t;
+        synchronized (this) {
+            find(name);
+            t = (Tool) tools.get(name);
+        }
+        if (!PlanMode.isEnabled(owner.getProject())) {
+            t.ensureProbed(owner);
+        }
+        return t;
+    }
+
+    private static String getPath() {
+        String path = System.getenv("PATH");
+        if (path == null) {
+            // Windows' spelling
+            path = System.getenv("Path");
+        }
+        return path == null ? "" : path;
+    }
+
+    /**
+     * persists the results, must lock the state
+     */
+    private void store() {
+        StateFiles.store(project, state, stateFile, ".NET tools");
+    }
+
+    /**
+     * A tool on the PATH.
+     */
+    public final class Tool {
+        private final String name;
+        private File file;
+        private boolean probed = false;
+        private String version;
+        private final Map switches = new HashMap();
+
+        private Tool(String name) {
+            this.name = name;
+            locate();
+        }
+
+        /**
+         * The tool's file or null if it hasn't been found.
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * The version the tool reports or null if unknown.
+         */
+        public String getVersion() {
+            return version;
+        }
+
+        /**
+         * Whether the tool's help lists the given switch.
+         *
+         * @param name the switch without any prefix, like "deterministic"
+         * @param defaultValue returned if the tool couldn't be probed
+         */
+        public boolean supports(String name, boolean defaultValue) {
+            if (version == null && switches.size() == 0) {
+                return defaultValue;
+            }
+            return switches.containsKey(name);
+        }
+
+        /**
+         * The switch the way the tool's help spells it.
+         *
+         * @param name the switch without any prefix, like "deterministic"
+         * @return the switch including its prefix, like "-deterministic",
+         * or null if the tool doesn't support it
+         */
+        public String getSwitch(String name) {
+            return (String) switches.get(name);
+        }
+
+        private void locate() {
+            synchronized (state) {
+                locateLocked();
+            }
+        }
+
+        private void locateLocked() {
+            if (name.indexOf('/') >= 0 || name.indexOf('\\') >= 0) {
+                File f = project.resolveFile(name);
+                file = f.isFile() ? f : null;
+            } else {
+                String cached = state.getProperty(name + ".file");
+                file = cached != null && new File(cached).isFile()
+                    ? new File(cached) : search();
+            }
+            if (file == null) {
+                forget();
+                return;
+            }
+            String modified = String.valueOf(file.lastModified());
+            if (!file.getAbsolutePath().equals(state.getProperty(name + ".file"))
+                || !modified.equals(state.getProperty(name + ".modified"))) {
+                forget();
+                state.setProperty(name + ".file", file.getAbsolutePath());
+                state.setProperty(name + ".modified", modified);
+                store();
+                return;
+            }
+            // unchanged, use what an earlier build has found out
+            String v = state.getProperty(name + ".switches");
+            if (v != null) {
+                version = state.getProperty(name + ".version");
+                StringTokenizer st = new StringTokenizer(v, " ");
+                while (st.hasMoreTokens()) {
+                    addSwitch(st.nextToken());
+                }
+                probed = true;
+            }
+        }
+
+        private void forget() {
+            String[] suffixes = new String[] {".file", ".modified",
+                                              ".version", ".switches"};
+            for (int i = 0; i < suffixes.length; i++) {
+                state.remove(name + suffixes[i]);
+            }
+        }
+
+        private File search() {
+            String[] names = Os.isFamily("windows")
+                && !name.toLowerCase().endsWith(".exe")
+                ? new String[] {name + ".exe", name} : new String[] {name};
+            StringTokenizer st = new StringTokenizer(getPath(),
+                                                     File.pathSeparator);
+            while (st.hasMoreTokens()) {
+                String dir = st.nextToken();
+                for (int i = 0; i < names.length; i++) {
+                    File f = new File(dir, names[i]);
+                    if (f.isFile()) {
+                        return f;
+                    }
+                }
+            }
+            return null;
+        }
+
+        /**
+         * probes the tool unless that has happened before
+         */
+        private synchronized void ensureProbed(Task owner) {
+            if (!probed) {
+                probe(owner);
+            }
+        }
+
+        /**
+         * runs the tool with its help switch and parses the output
+         */
+        private void probe(Task owner) {
+            probed = true;
+            if (file == null) {
+                return;
+            }
+            String base = file.getName().toLowerCase();
+            if (base.endsWith(".exe")) {
+                base = base.substring(0, base.length() - 4);
+            }
+            String help = (String) HELP_ARGS.get(base);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Execute exe =
+                new Execute(new PumpStreamHandler(out),
+                            new ProcessTreeWatchdog(owner, PROBE_TIMEOUT));
+            exe.setAntRun(project);
+            exe.setCommandline(new String[] {
+                file.getAbsolutePath(), help == null ? "-?" : help
+            });
+            try {
+                exe.execute();
+            } catch (IOException e) {
+                owner.log("Failed to probe " + file + ": " + e,
+                          Project.MSG_VERBOSE);
+                return;
+            }
+            String output = out.toString();
+            Matcher m = VERSION.matcher(output);
+            version = m.find() ? m.group(1) : "";
+            StringBuffer sb = new StringBuffer();
+            for (int i = 0; i < SWITCHES.length; i++) {
+                Matcher s = Pattern.compile("(?:^|[\\s\\[(,])((?:--|-|/)"
+                                            + SWITCHES[i]
+                                            + ")(?=[\\s:+\\[\\]),]|$)",
+                                            Pattern.MULTILINE
+                                            | Pattern.CASE_INSENSITIVE)
+                    .matcher(output);
+                if (s.find()) {
+                    sb.append(s.group(1)).append(' ');
+                    addSwitch(s.group(1));
+                }
+            }
+            owner.log(file + " is version " + version + ", supports "
+                      + switches.keySet(), Project.MSG_VERBOSE);
+            synchronized (state) {
+                state.setProperty(name + ".version", version);
+                state.setProperty(name + ".switches", sb.toString().trim());
+                store();
+            }
+        }
+
+        private void addSwitch(String s) {
+            int i = 0;
+            while (i < s.length() && (s.charAt(i) == '-'
+                                      || s.charAt(i) == '/')) {
+                i++;
+            }
+            switches.put(s.substring(i).toLowerCase(), s);
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.apache.ant.dotnet.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.ant.dotnet.metadata.MetadataReader;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.util.FileUtils;
+
+/**
+ * Keeps the timestamp of an output that a command has regenerated
+ * without changing it, so tasks depending on the output don't run.
+ *
+ * <p>The existing output is moved aside before the command runs and
+ * compared to the new one afterwards.  Assemblies and modules are
+ * compared without the parts that change with every compilation,
+ * like the module version id and the timestamps, all other files
+ * byte by byte.  If they are the same, the new output gets the
+ * timestamp of the old one.  The time of the comparison is recorded
+ * in the state directory and used by the up to date check of the
+ * task that has created the output, so it doesn't run again
+ * either.</p>
+ *
+ * @since .NET Antlib 1.2
+ */
+public class UnchangedOutputs {
+
+    /**
+     * Name of the property that enables keeping timestamps.
+     */
+    public static final String PROPERTY = "ant.dotnet.writeifchanged";
+
+    private static final String STATE_SUFFIX = ".unchanged";
+
+    private static final String PREVIOUS_SUFFIX = ".previous";
+
+    private static final String MODIFIED = "modified";
+
+    private static final String VERIFIED = "verified";
+
+    private static final String REPORT_REFERENCE = "ant.dotnet.unchangedoutputs";
+
+    private static final FileUtils FILE_UTILS = FileUtils.getFileUtils();
+
+    private final Task owner;
+    private final File output;
+    private final File previous;
+
+    private UnchangedOutputs(Task owner, File output, File previous) {
+        this.owner = owner;
+        this.output = output;
+        this.previous = previous;
+    }
+
+    /**
+     * Whether the project enables keeping timestamps.
+     */
+    public static boolean isEnabled(Project p) {
+        return Project.toBoolean(p.getProperty(PROPERTY));
+    }
+
+    /**
+     * The timestamp to use when checking whether an output is up to
+     * date with its own inputs.
+     *
+     * @return the time the output has last been found unchanged if
+     * its timestamp has been kept, its timestamp otherwise
+     */
+    public static long lastModified(Project p, File output) {
+        long modified = output.lastModified();
+        if (modified == 0 || !isEnabled(p)) {
+            return modified;
+        }
+        File f = StateFiles.getStateFile(p, output, STATE_SUFFIX);
+        if (!f.isFile()) {
+            return modified;
+        }
+        Properties state = StateFiles.load(p, f);
+        if (String.valueOf(modified).equals(state.getProperty(MODIFIED))) {
+            try {
+                return Long.parseLong(state.getProperty(VERIFIED));
+            } catch (NumberFormatException e) {
+                // ignore a broken state file
+            }
+        }
+        return modified;
+    }
+
+    /**
+     * Moves an existing output aside before a command rewrites it.
+     *
+     * @param owner the task running the command
+     * @param output the output, may be null
+     * @return null if keeping timestamps is disabled or the output
+     * doesn't exist
+     */
+    public static UnchangedOutputs moveAside(Task owner, File output) {
+        if (output == null || !isEnabled(owner.getProject())
+            || !output.isFile()) {
+            return null;
+        }
+        File previous = new File(output.getParentFile(),
+                                 output.getName() + PREVIOUS_SUFFIX);
+        previous.delete();
+        if (!output.renameTo(previous)) {
+            owner.log("Can't move " + output + " aside, it will be"
+                      + " overwritten", Project.MSG_VERBOSE);
+            return null;
+        }
+        return new UnchangedOutputs(owner, output, previous);
+    }
+
+    /**
+     * Compares the new output to the previous one after the command
+     * has succeeded.
+     *
+     * @return whether the output is unchanged and has kept its
+     * timestamp
+     */
+    public boolean complete() {
+        if (!output.isFile()) {
+            restore();
+            return false;
+        }
+        File state = StateFiles.getStateFile(owner.getProject(), output,
+                                             STATE_SUFFIX);
+        boolean same;
+        try {
+            same = isEquivalent(previous, output);
+        } catch (IOException e) {
+            owner.log("Can't compare " + output + " to its previous version: "
+                      + e, Project.MSG_VERBOSE);
+            same = false;
+        }
+        long previousModified = previous.lastModified();
+        previous.delete();
+        if (!same || !output.setLastModified(previousModified)) {
+            state.delete();
+            return false;
+        }
+        Properties props = new Properties();
+        props.setProperty(MODIFIED, String.valueOf(output.lastModified()));
+        props.setProperty(VERIFIED, String.valueOf(System.currentTimeMillis()));
+        StateFiles.store(owner.getProject(), props, state,
+                         "unchanged output " + output);
+        owner.log(output + " is unchanged, keeping its timestamp",
+                  Project.MSG_VERBOSE);
+        getReport(owner.getProject()).add(output);
+        return true;
+    }
+
+    /**
+     * Puts the previous output back if the command has failed without
+     * creating a new one, deletes it otherwise.
+     */
+    public void restore() {
+        if (output.exists() || !previous.renameTo(output)) {
+            previous.delete();
+        }
+    }
+
+    /**
+     * Whether two files are the same, ignoring the parts of
+     * assemblies and modules that change with every compilation.
+     */
+    public static boolean isEquivalent(File a, File b) throws IOException {
+        if (a.length() != b.length()) {
+            return false;
+        }
+        if (!MetadataReader.isManagedBinary(a)
+            || !MetadataReader.isManagedBinary(b)) {
+            return FILE_UTILS.contentEquals(a, b);
+        }
+        byte[] contentA = maskVolatileRanges(MetadataReader.readFile(a));
+        byte[] contentB = maskVolatileRanges(MetadataReader.readFile(b));
+        return contentA != null && contentB != null
+            && Arrays.equals(contentA, contentB);
+    }
+
+    /**
+     * zeroes the parts that differ between compilations, null if the
+     * metadata cannot be read
+     */
+    private static byte[] maskVolatileRanges(ByteBuffer buffer) {
+        byte[] content = buffer.array();
+        int[] ranges;
+        try {
+            ranges = new MetadataReader(buffer).getVolatileRanges();
+        } catch (IOException e) {
+            return null;
+        } catch (RuntimeException e) {
+            // corrupt headers pointing outside the file
+            return null;
+        }
+        for (int i = 0; i + 1 < ranges.length; i += 2) {
+            int end = Math.min(content.length, ranges[i] + ranges[i + 1]);
+            for (int j = Math.max(0, ranges[i]); j < end; j++) {
+                content[j] = 0;
+            }
+        }
+        return content;
+    }
+
+    private static Report getReport(Project p) {
+        return (Report) BuildSummary.getInstance(p, REPORT_REFERENCE,
+            new BuildSummary.Factory() {
+                public BuildSummary create(Project project) {
+                    return new Report(project);
+                }
+            });
+    }
+
+    /**
+     * Lists the outputs that have kept their timestamps at the end
+     * of the build.
+     */
+    private static class Report extends BuildSummary {
+        private final List outputs = new ArrayList();
+
+        Report(Project project) {
+            super(project);
+        }
+
+        synchronized void add(File output) {
+            outputs.add(output);
+        }
+
+        protected synchronized void report() {
+            if (outputs.size() == 0) {
+                return;
+            }
+            project.log(outputs.size() + " output"
+                        + (outputs.size() == 1 ? " has" : "s have")
+                        + " been regenerated without changes, keeping"
+                        + " the timestamp avoided rebuilding what"
+                        + " depends on " + (outputs.size() == 1 ? "it:"
+                                            : "them:"));
+            for (Iterator iter = outputs.iterator(); iter.hasNext();) {
+                project.log("  " + iter.next());
+            }
+            outputs.clear();
+        }
+    }
+}
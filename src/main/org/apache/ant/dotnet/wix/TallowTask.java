@@ -19,6 +19,7 @@
 package org.apache.ant.dotnet.wix;
 
 import org.apache.ant.dotnet.DotNetExecTask;
+import org.apache.ant.dotnet.util.UnchangedOutputs;
 import org.apache.ant.dotnet.build.AbstractBuildTask;
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.DirectoryScanner;
@@ -215,6 +216,19 @@ public class TallowTask extends Task {
         }
         exec.setOutput (target);
 
-        exec.execute();
+        UnchangedOutputs previous = UnchangedOutputs.moveAside(this, target);
+        boolean success = false;
+        try {
+            exec.execute();
+            success = true;
+        } finally {
+            if (previous != null) {
+                if (success) {
+                    previous.complete();
+                } else {
+                    previous.restore();
+                }
+            }
+        }
     }
 }
@@ -18,7 +18,12 @@
 
 package org.apache.ant.dotnet.wix;
 
+import org.apache.ant.dotnet.ArtifactGraph;
 import org.apache.ant.dotnet.DotNetExecTask;
+import org.apache.ant.dotnet.Watchable;
+import org.apache.ant.dotnet.util.FileTimestamps;
+import org.apache.ant.dotnet.util.PlanMode;
+import org.apache.ant.dotnet.util.RebuildReasons;
 import org.apache.ant.dotnet.build.AbstractBuildTask;
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.DirectoryScanner;
@@ -41,7 +46,7 @@ import java.util.Set;
  *
  * @see https://sf.net/projects/wix
  */
-public class WixTask extends Task {
+public class WixTask extends Task implements Watchable {
 
     /**
      * The vm attribute - if given.
@@ -109,6 +114,11 @@ public class WixTask extends Task {
      */
     private boolean useLit = false;
 
+    /**
+     * Whether candle would have run in plan mode.
+     */
+    private boolean candlePlanned = false;
+
     public WixTask() {
         super();
     }
@@ -241,6 +251,7 @@ public class WixTask extends Task {
                                      + " doesn't exist.");
         }
 
+        candlePlanned = false;
         String m = Mode.BOTH;
         if (mode != null) {
             m = mode.getValue();
@@ -250,6 +261,9 @@ public class WixTask extends Task {
             throw new BuildException("You must specify the target if you want"
                                      + " to run light.");
         }
+        if (ArtifactGraph.isUpToDate(this)) {
+            return;
+        }
 
         Collection lightSources = null;
         if (!m.equals(Mode.LIGHT)) {
@@ -271,6 +285,33 @@ public class WixTask extends Task {
             }
             doLight(lightSources, moreLightSources);
         }
+        ArtifactGraph.record(this);
+    }
+
+    /**
+     * Adds all sources to the inputs, the files generated by candle
+     * and the target to the outputs.
+     * @since .NET Antlib 1.2
+     */
+    public void addWatchedFiles(Collection inputs, Collection filesets,
+                                Collection outputs) {
+        Set s = new HashSet();
+        if (source != null) {
+            s.add(source);
+        }
+        s.addAll(grabFiles(sources));
+        inputs.addAll(s);
+        inputs.addAll(grabFiles(moreSources));
+        filesets.addAll(sources);
+        filesets.addAll(moreSources);
+        if (mode == null || !mode.getValue().equals(Mode.LIGHT)) {
+            for (Iterator iter = s.iterator(); iter.hasNext();) {
+                outputs.add(getTarget((File) iter.next()));
+            }
+        }
+        if (target != null) {
+            outputs.add(target);
+        }
     }
 
     /**
@@ -293,19 +334,28 @@ public class WixTask extends Task {
 
         Set toProcess = new HashSet();
         Set generatedTargets = new HashSet();
+        FileTimestamps timestamps = new FileTimestamps(getProject());
         Iterator iter = s.iterator();
         while (iter.hasNext()) {
             File thisSource = (File) iter.next();
             File t = getTarget(thisSource);
             generatedTargets.add(t);
-            if (isOutOfDate(t, thisSource, ms)) {
+            if (isOutOfDate(timestamps, t, thisSource, ms)) {
                 toProcess.add(thisSource);
             }
         }
         if (toProcess.size() != 0) {
-            runCandle(toProcess);
+            if (PlanMode.shouldRun(this, wixExecutable("candle.exe"), null,
+                                   toProcess.size() + " of " + s.size()
+                                   + " sources are newer than their"
+                                   + " targets", toProcess)) {
+                runCandle(toProcess);
+            } else {
+                candlePlanned = true;
+            }
             return generatedTargets;
         }
+        PlanMode.recordUpToDate(this, wixExecutable("candle.exe"), null);
         return Collections.EMPTY_SET;
     }
 
@@ -316,8 +366,23 @@ public class WixTask extends Task {
                          Collection moreLightSources) {
         Set tmp = new HashSet(lightSources);
         tmp.addAll(moreLightSources);
-        if (isOutOfDate(target, tmp)) {
-            runLight(lightSources);
+        String light = wixExecutable(useLit ? "lit.exe" : "light.exe");
+        // candle may just have rewritten some of the sources
+        FileTimestamps timestamps = new FileTimestamps(getProject());
+        if (isOutOfDate(timestamps, target, tmp)) {
+            String reason =
+                PlanMode.getReason(target, timestamps.lastModified(target),
+                                   countNewer(timestamps, target, tmp),
+                                   tmp.size());
+            if (PlanMode.shouldRun(this, light, null, reason, null)) {
+                runLight(lightSources);
+            }
+        } else if (candlePlanned) {
+            // in plan mode candle hasn't updated the light sources
+            PlanMode.shouldRun(this, light, null,
+                               "candle would update its sources", null);
+        } else {
+            PlanMode.recordUpToDate(this, light, null);
         }
     }
 
@@ -390,21 +455,44 @@ public class WixTask extends Task {
     /**
      * Is t older than s or any of the files in list?
      */
-    private boolean isOutOfDate(File t, File s, Collection l) {
-        return t.lastModified() < s.lastModified() || isOutOfDate(t, l);
+    private boolean isOutOfDate(FileTimestamps timestamps, File t, File s,
+                                Collection l) {
+        if (timestamps.lastModified(t) < timestamps.lastModified(s)) {
+            RebuildReasons.record(this, t.exists() ? RebuildReasons.MTIME
+                                  : RebuildReasons.MISSING, s, t);
+            return true;
+        }
+        return isOutOfDate(timestamps, t, l);
     }
 
     /**
-     * Is t older than any of the files in list?
+     * How many of the files in list are newer than t?
      */
-    private boolean isOutOfDate(File t, Collection l) {
+    private int countNewer(FileTimestamps timestamps, File t, Collection l) {
+        long targetTime = timestamps.lastModified(t);
+        timestamps.readAll(l);
+        int count = 0;
         Iterator iter = l.iterator();
         while (iter.hasNext()) {
             File f = (File) iter.next();
-            if (t.lastModified() < f.lastModified()) {
-                return true;
+            if (targetTime < timestamps.lastModified(f)) {
+                count++;
             }
         }
+        return count;
+    }
+
+    /**
+     * Is t older than any of the files in list?
+     */
+    private boolean isOutOfDate(FileTimestamps timestamps, File t,
+                                Collection l) {
+        File newer = timestamps.findNewer(l, timestamps.lastModified(t));
+        if (newer != null) {
+            RebuildReasons.record(this, t.exists() ? RebuildReasons.MTIME
+                                  : RebuildReasons.MISSING, newer, t);
+            return true;
+        }
         return false;
     }
 